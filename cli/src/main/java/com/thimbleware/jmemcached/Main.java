@@ -15,12 +15,16 @@
  */
 package com.thimbleware.jmemcached;
 
+import com.thimbleware.jmemcached.persistence.LoggedCacheStorage;
+import com.thimbleware.jmemcached.persistence.WriteAheadLog;
+import com.thimbleware.jmemcached.storage.arena.ArenaCacheStorage;
 import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
 import com.thimbleware.jmemcached.storage.CacheStorage;
 import com.thimbleware.jmemcached.storage.bytebuffer.BlockStoreFactory;
 import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
 import org.apache.commons.cli.*;
 
+import java.io.File;
 import java.net.InetSocketAddress;
 
 import com.thimbleware.jmemcached.util.Bytes;
@@ -43,14 +47,34 @@ public class Main {
         options.addOption("h", "help", false, "print this help screen");
         options.addOption("bl", "block-store", false, "use external (from JVM) heap");
         options.addOption("f", "mapped-file", false, "use external (from JVM) heap through a memory mapped file");
+        options.addOption("ar", "arena", false, "use JVM heap, with items packed into large byte array pages");
         options.addOption("bs", "block-size", true, "block size (in bytes) for external memory mapped file allocator.  default is 8 bytes");
         options.addOption("i", "idle", true, "disconnect after idle <x> seconds");
         options.addOption("p", "port", true, "port to listen on");
+        options.addOption("U", "udp-port", true, "UDP port to also listen on, for the text protocol.  default is 0, off");
+        options.addOption("us", "unix-socket", true, "Unix domain socket path to also listen on (needs Java 16 or later)");
+        options.addOption("usc", "unix-socket-connections", true, "number of connections to serve on the Unix domain socket at once.  default is " + MemCacheDaemon.DEFAULT_UNIX_SOCKET_MAX_CONNECTIONS);
         options.addOption("m", "memory", true, "max memory to use; in bytes, specify K, kb, M, GB for larger units");
         options.addOption("c", "ceiling", true, "ceiling memory to use; in bytes, specify K, kb, M, GB for larger units");
         options.addOption("l", "listen", true, "Address to listen on");
         options.addOption("s", "size", true, "max items");
         options.addOption("b", "binary", false, "binary protocol mode");
+        options.addOption("sf", "snapshot-file", true, "file written by the snapshot command");
+        options.addOption("ls", "load-snapshot", true, "load the cache from a snapshot file at startup");
+        options.addOption("w", "wal", true, "write ahead log file; mutations are logged to it and replayed at startup");
+        options.addOption("ws", "wal-sync", true, "write ahead log fsync policy: none, interval or always.  default is interval");
+        options.addOption("wi", "wal-sync-interval", true, "milliseconds between write ahead log fsyncs under the interval policy.  default is 1000");
+        options.addOption("wp", "wal-prefix", true, "only log keys starting with these (comma separated) prefixes");
+        options.addOption("t", "threads", true, "number of I/O worker threads.  default is twice the number of processors");
+        options.addOption("tn", "thread-name", true, "name prefix for the network threads.  default is " + ExecutionConfig.DEFAULT_THREAD_NAME_PREFIX);
+        options.addOption("tp", "thread-priority", true, "priority (1-10) of the network threads.  default is " + Thread.NORM_PRIORITY);
+        options.addOption("ct", "command-threads", true, "number of threads to execute commands on, off the I/O threads.  default is 0, executing them on the I/O threads");
+        options.addOption("tc", "thread-per-connection", false, "execute each connection's commands on a thread of its own, which may block on storage");
+        options.addOption("cq", "command-queue", true, "bytes of commands a connection may queue for the command threads before its reads are suspended; specify K, kb, M, GB for larger units");
+        options.addOption("cqt", "command-queue-total", true, "bytes of commands which may be queued for the command threads in all before reads are suspended; specify K, kb, M, GB for larger units");
+        options.addOption("oh", "output-high", true, "bytes of responses a connection may have waiting to be written before its reads are suspended; 0 for no limit; specify K, kb, M, GB for larger units");
+        options.addOption("ol", "output-low", true, "bytes of waiting responses a suspended connection has to get down to for its reads to resume; specify K, kb, M, GB for larger units");
+        options.addOption("ot", "output-total", true, "bytes of responses which may be waiting to be written in all before reads are suspended; 0 for no limit; specify K, kb, M, GB for larger units");
         options.addOption("V", false, "Show version number");
         options.addOption("v", false, "verbose (show commands)");
 
@@ -86,6 +110,27 @@ public class Main {
             addr = new InetSocketAddress(cmdline.getOptionValue("listen"), port);
         }
 
+        int udpPort = 0;
+        if (cmdline.hasOption("U")) {
+            udpPort = Integer.parseInt(cmdline.getOptionValue("U"));
+        } else if (cmdline.hasOption("udp-port")) {
+            udpPort = Integer.parseInt(cmdline.getOptionValue("udp-port"));
+        }
+
+        String unixSocket = null;
+        if (cmdline.hasOption("us")) {
+            unixSocket = cmdline.getOptionValue("us");
+        } else if (cmdline.hasOption("unix-socket")) {
+            unixSocket = cmdline.getOptionValue("unix-socket");
+        }
+
+        int unixSocketConnections = MemCacheDaemon.DEFAULT_UNIX_SOCKET_MAX_CONNECTIONS;
+        if (cmdline.hasOption("usc")) {
+            unixSocketConnections = Integer.parseInt(cmdline.getOptionValue("usc"));
+        } else if (cmdline.hasOption("unix-socket-connections")) {
+            unixSocketConnections = Integer.parseInt(cmdline.getOptionValue("unix-socket-connections"));
+        }
+
         int max_size = 1000000;
         if (cmdline.hasOption("s"))
             max_size = (int)Bytes.valueOf(cmdline.getOptionValue("s")).bytes();
@@ -115,6 +160,13 @@ public class Main {
             blockStore = true;
         }
 
+        boolean arena = false;
+        if (cmdline.hasOption("ar")) {
+            arena = true;
+        } else if (cmdline.hasOption("arena")) {
+            arena = true;
+        }
+
         boolean verbose = false;
         if (cmdline.hasOption("v")) {
             verbose = true;
@@ -173,6 +225,98 @@ public class Main {
             return;
         }
 
+        String snapshotFile = null;
+        if (cmdline.hasOption("sf")) {
+            snapshotFile = cmdline.getOptionValue("sf");
+        } else if (cmdline.hasOption("snapshot-file")) {
+            snapshotFile = cmdline.getOptionValue("snapshot-file");
+        }
+
+        String loadSnapshot = null;
+        if (cmdline.hasOption("ls")) {
+            loadSnapshot = cmdline.getOptionValue("ls");
+        } else if (cmdline.hasOption("load-snapshot")) {
+            loadSnapshot = cmdline.getOptionValue("load-snapshot");
+        }
+
+        String walFile = null;
+        if (cmdline.hasOption("w")) {
+            walFile = cmdline.getOptionValue("w");
+        } else if (cmdline.hasOption("wal")) {
+            walFile = cmdline.getOptionValue("wal");
+        }
+
+        WriteAheadLog.SyncPolicy walSync = WriteAheadLog.SyncPolicy.INTERVAL;
+        if (cmdline.hasOption("ws")) {
+            walSync = WriteAheadLog.SyncPolicy.valueOf(cmdline.getOptionValue("ws").toUpperCase());
+        } else if (cmdline.hasOption("wal-sync")) {
+            walSync = WriteAheadLog.SyncPolicy.valueOf(cmdline.getOptionValue("wal-sync").toUpperCase());
+        }
+
+        long walSyncInterval = 1000;
+        if (cmdline.hasOption("wi")) {
+            walSyncInterval = Long.parseLong(cmdline.getOptionValue("wi"));
+        } else if (cmdline.hasOption("wal-sync-interval")) {
+            walSyncInterval = Long.parseLong(cmdline.getOptionValue("wal-sync-interval"));
+        }
+
+        String walPrefixes = null;
+        if (cmdline.hasOption("wp")) {
+            walPrefixes = cmdline.getOptionValue("wp");
+        } else if (cmdline.hasOption("wal-prefix")) {
+            walPrefixes = cmdline.getOptionValue("wal-prefix");
+        }
+
+        ExecutionConfig.Builder execution = new ExecutionConfig.Builder();
+        if (cmdline.hasOption("t")) {
+            execution.workerCount(Integer.parseInt(cmdline.getOptionValue("t")));
+        } else if (cmdline.hasOption("threads")) {
+            execution.workerCount(Integer.parseInt(cmdline.getOptionValue("threads")));
+        }
+        if (cmdline.hasOption("tn")) {
+            execution.threadNamePrefix(cmdline.getOptionValue("tn"));
+        } else if (cmdline.hasOption("thread-name")) {
+            execution.threadNamePrefix(cmdline.getOptionValue("thread-name"));
+        }
+        if (cmdline.hasOption("tp")) {
+            execution.threadPriority(Integer.parseInt(cmdline.getOptionValue("tp")));
+        } else if (cmdline.hasOption("thread-priority")) {
+            execution.threadPriority(Integer.parseInt(cmdline.getOptionValue("thread-priority")));
+        }
+        if (cmdline.hasOption("ct")) {
+            execution.commandThreads(Integer.parseInt(cmdline.getOptionValue("ct")));
+        } else if (cmdline.hasOption("command-threads")) {
+            execution.commandThreads(Integer.parseInt(cmdline.getOptionValue("command-threads")));
+        }
+        if (cmdline.hasOption("tc") || cmdline.hasOption("thread-per-connection")) {
+            execution.threadPerConnection(true);
+        }
+        if (cmdline.hasOption("cq")) {
+            execution.maxChannelMemorySize(Bytes.valueOf(cmdline.getOptionValue("cq")).bytes());
+        } else if (cmdline.hasOption("command-queue")) {
+            execution.maxChannelMemorySize(Bytes.valueOf(cmdline.getOptionValue("command-queue")).bytes());
+        }
+        if (cmdline.hasOption("cqt")) {
+            execution.maxTotalMemorySize(Bytes.valueOf(cmdline.getOptionValue("cqt")).bytes());
+        } else if (cmdline.hasOption("command-queue-total")) {
+            execution.maxTotalMemorySize(Bytes.valueOf(cmdline.getOptionValue("command-queue-total")).bytes());
+        }
+        if (cmdline.hasOption("oh")) {
+            execution.outputHighWaterMark(Bytes.valueOf(cmdline.getOptionValue("oh")).bytes());
+        } else if (cmdline.hasOption("output-high")) {
+            execution.outputHighWaterMark(Bytes.valueOf(cmdline.getOptionValue("output-high")).bytes());
+        }
+        if (cmdline.hasOption("ol")) {
+            execution.outputLowWaterMark(Bytes.valueOf(cmdline.getOptionValue("ol")).bytes());
+        } else if (cmdline.hasOption("output-low")) {
+            execution.outputLowWaterMark(Bytes.valueOf(cmdline.getOptionValue("output-low")).bytes());
+        }
+        if (cmdline.hasOption("ot")) {
+            execution.maxTotalOutputSize(Bytes.valueOf(cmdline.getOptionValue("ot")).bytes());
+        } else if (cmdline.hasOption("output-total")) {
+            execution.maxTotalOutputSize(Bytes.valueOf(cmdline.getOptionValue("output-total")).bytes());
+        }
+
         // create daemon and start it
         final MemCacheDaemon<LocalCacheElement> daemon = new MemCacheDaemon<LocalCacheElement>();
 
@@ -185,17 +329,49 @@ public class Main {
             BlockStoreFactory blockStoreFactory = MemoryMappedBlockStore.getFactory();
 
             storage = new BlockStorageCacheStorage(8, (int)ceiling, blockSize, maxBytes, max_size, blockStoreFactory);
+        }  else if (arena) {
+            storage = new ArenaCacheStorage(16, maxBytes, max_size);
         }
         else  {
             storage = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.FIFO, max_size, maxBytes);
         }
 
 
-        daemon.setCache(new CacheImpl(storage));
+        WriteAheadLog wal = null;
+        if (walFile != null) {
+            wal = new WriteAheadLog(new File(walFile), walSync, walSyncInterval);
+            if (walPrefixes != null) {
+                for (String prefix : walPrefixes.split(",")) {
+                    wal.addPrefix(prefix);
+                }
+            }
+            storage = new LoggedCacheStorage(storage, wal);
+        }
+
+        CacheImpl cache = new CacheImpl(storage);
+        if (snapshotFile != null) {
+            cache.setSnapshotFile(new File(snapshotFile));
+        }
+        if (loadSnapshot != null) {
+            System.out.println("Loading snapshot " + loadSnapshot);
+            int items = cache.restore(new File(loadSnapshot));
+            System.out.println("Loaded " + items + " items from snapshot");
+        }
+        if (wal != null) {
+            System.out.println("Replaying write ahead log " + walFile);
+            int records = cache.recover(wal);
+            System.out.println("Replayed " + records + " records from write ahead log");
+        }
+
+        daemon.setCache(cache);
         daemon.setBinary(binary);
         daemon.setAddr(addr);
+        if (udpPort != 0) daemon.setUdpAddr(new InetSocketAddress(addr.getAddress(), udpPort));
+        if (unixSocket != null) daemon.setUnixSocket(new File(unixSocket));
+        daemon.setUnixSocketMaxConnections(unixSocketConnections);
         daemon.setIdleTime(idle);
         daemon.setVerbose(verbose);
+        daemon.setExecutionConfig(execution.build());
         daemon.start();
 
         Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
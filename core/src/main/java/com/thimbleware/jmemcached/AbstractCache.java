@@ -42,6 +42,11 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
 
     public abstract long getCurrentBytes();
 
+    /**
+     * @return statistics particular to the cache's storage
+     */
+    protected abstract Map<String, String> getStorageStats();
+
 
     public final int getGetCmds() {
         return getCmds.get();
@@ -84,6 +89,10 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
         // Not really the same thing precisely, but meaningful nonetheless. potentially this should be renamed
         multiSet(result, "pid", valueOf(Thread.currentThread().getId()));
 
+        for (Map.Entry<String, String> stat : getStorageStats().entrySet()) {
+            multiSet(result, stat.getKey(), stat.getValue());
+        }
+
         // stuff we know nothing about; gets faked only because some clients expect this
         multiSet(result, "rusage_user", "0:0");
         multiSet(result, "rusage_system", "0:0");
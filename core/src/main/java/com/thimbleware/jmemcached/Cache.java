@@ -21,6 +21,35 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
         DELETED, NOT_FOUND
     }
 
+    /**
+     * Told the outcome of a snapshot started with {@link Cache#snapshot(SnapshotCallback)}
+     */
+    public interface SnapshotCallback {
+        /**
+         * @param items the number of items written, or -1 if the snapshot failed
+         * @param failure why the snapshot failed, or null if it didn't
+         */
+        void snapshotDone(int items, IOException failure);
+    }
+
+    /**
+     * Enum defining the outcomes of a get which may take out a lease
+     */
+    public enum LeaseStatus {
+        /**
+         * The item is fresh; no lease is involved
+         */
+        FRESH,
+        /**
+         * The item is missing or stale, and the caller now holds the lease to compute its new value
+         */
+        WON,
+        /**
+         * The item is missing or stale, and someone else holds the lease
+         */
+        PENDING
+    }
+
     /**
      * Handle the deletion of an item from the cache.
      *
@@ -30,6 +59,24 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
      */
     DeleteResponse delete(Key key, int time);
 
+    /**
+     * Delete several items from the cache at once, with each partition of the storage locked once for all of its
+     * keys rather than once per key.
+     *
+     * @param keys the keys for the items
+     * @return the response for each key, at the same index
+     */
+    DeleteResponse[] deleteMulti(Key[] keys);
+
+    /**
+     * Mark an item stale rather than removing it, so that it can still be served, flagged as stale, through
+     * {@link #getWithLease} while its new value is computed.
+     *
+     * @param key the key for the item
+     * @return DELETED if the item was there to be invalidated
+     */
+    DeleteResponse invalidate(Key key);
+
     /**
      * Add an element to the cache
      *
@@ -70,6 +117,33 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
      */
     StoreResponse set(CACHE_ELEMENT e);
 
+    /**
+     * Set several elements in the cache at once, with each partition of the storage locked once for all of its
+     * elements rather than once per element.
+     *
+     * @param elements the elements to set
+     * @return the store response code for each element, at the same index
+     */
+    StoreResponse[] setMulti(CACHE_ELEMENT[] elements);
+
+    /**
+     * Change the expiry of several items at once, without fetching them
+     *
+     * @param expire the new expiry time, in the form elements carry it; 0 for none
+     * @param keys the keys for the items
+     * @return whether each item was there to be touched, at the same index
+     */
+    boolean[] touchMulti(long expire, Key[] keys);
+
+    /**
+     * Get several items and change their expiry in the same pass, as gat does
+     *
+     * @param expire the new expiry time, in the form elements carry it; 0 for none
+     * @param keys the keys for the items
+     * @return the touched items, or null where an item wasn't there, at the same index
+     */
+    CACHE_ELEMENT[] getAndTouch(long expire, Key... keys);
+
     /**
      * Set an element in the cache but only if the element has not been touched
      * since the last 'gets'
@@ -94,6 +168,18 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
      */
     CACHE_ELEMENT[] get(Key ... keys);
 
+    /**
+     * Get an element, taking out a lease on it if it is missing or stale, so that of all the clients who find it so at
+     * once only the first goes on to recompute it. The lease is released when the item is next stored, or lapses after
+     * the given time if it never is.
+     *
+     * @param key the key for the element to lookup
+     * @param leaseMillis how long a lease granted now lasts
+     * @param status filled in with the outcome, at index 0
+     * @return the element, fresh or stale, or 'null' if there is none
+     */
+    CACHE_ELEMENT getWithLease(Key key, long leaseMillis, LeaseStatus[] status);
+
     /**
      * Flush all cache entries
      * @return command response
@@ -107,6 +193,21 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
      */
     boolean flush_all(int expire);
 
+    /**
+     * Write a point in time snapshot of the cache contents to the configured snapshot file
+     * @return the number of items written
+     * @throws IOException on failure to write the snapshot, or if no snapshot file is configured
+     */
+    int snapshot() throws IOException;
+
+    /**
+     * Start writing a snapshot, as {@link #snapshot()} does, without waiting for it. The dump runs on a thread of its
+     * own; a snapshot asked for while one is already being written joins that one rather than starting another.
+     *
+     * @param callback told the outcome once the dump is done, on the thread which ran it
+     */
+    void snapshot(SnapshotCallback callback);
+
     /**
      * Close the cache, freeing all resources on which it depends.
      * @throws IOException
@@ -40,4 +40,6 @@ public interface CacheElement extends Serializable, SizedItem {
     CacheElement prepend(LocalCacheElement element);
 
     LocalCacheElement.IncrDecrResult add(int mod);
+
+    CacheElement copy();
 }
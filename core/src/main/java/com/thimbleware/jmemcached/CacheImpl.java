@@ -15,12 +15,20 @@
  */
 package com.thimbleware.jmemcached;
 
+import com.thimbleware.jmemcached.persistence.Snapshot;
+import com.thimbleware.jmemcached.persistence.WriteAheadLog;
 import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.util.NamedThreadFactory;
 import org.jboss.netty.buffer.ChannelBuffers;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
 
@@ -31,7 +39,26 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
 
     final CacheStorage<Key, LocalCacheElement> storage;
     final DelayQueue<DelayedMCElement> deleteQueue;
+
+    /**
+     * Leases on missing or stale items, by key, with the {@link System#nanoTime} at which each lapses. Unlike
+     * {@link #Now()}, which is cut down to an int and wraps, it's only ever compared by subtraction, so it doesn't.
+     */
+    final ConcurrentHashMap<Key, Long> leases = new ConcurrentHashMap<Key, Long>();
     private final ScheduledExecutorService scavenger;
+    private volatile File snapshotFile;
+
+    /**
+     * Snapshots are written on a thread of their own, one at a time, so that a dump never holds up a thread
+     * serving connections
+     */
+    private final ExecutorService snapshotter = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("jmemcached-snapshot", Thread.NORM_PRIORITY, true));
+
+    /**
+     * The dump being written, if there is one; guarded by this
+     */
+    private SnapshotTask dump;
 
     /**
      * @inheritDoc
@@ -45,6 +72,7 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
         scavenger.scheduleAtFixedRate(new Runnable(){
             public void run() {
                 asyncEventPing();
+                expireLeases();
             }
         }, 10, 2, TimeUnit.SECONDS);
     }
@@ -61,8 +89,9 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
             LocalCacheElement placeHolder = new LocalCacheElement(key, 0, 0, 0L);
             placeHolder.setData(ChannelBuffers.buffer(0));
             placeHolder.block(Now() + (long)time);
+            placeHolder = owned(placeHolder);
 
-            storage.replace(key, placeHolder);
+            storage.replace(placeHolder.getKey(), placeHolder);
 
             // this must go on a queue for processing later...
             deleteQueue.add(new DelayedMCElement(placeHolder));
@@ -74,16 +103,42 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
 
     }
 
+    /**
+     * @inheritDoc
+     *
+     * The item is made stale by moving its expiry into the past.
+     */
+    public DeleteResponse invalidate(Key key) {
+        return touchMulti(Now() - 1, new Key[] { key })[0] ? DeleteResponse.DELETED : DeleteResponse.NOT_FOUND;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public DeleteResponse[] deleteMulti(Key[] keys) {
+        boolean[] removed = new boolean[keys.length];
+        storage.removeAll(keys, removed);
+
+        DeleteResponse[] responses = new DeleteResponse[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            responses[i] = removed[i] ? DeleteResponse.DELETED : DeleteResponse.NOT_FOUND;
+        }
+        return responses;
+    }
+
     /**
      * @inheritDoc
      */
     public StoreResponse add(LocalCacheElement e) {
         final long origCasUnique = e.getCasUnique();
         e.setCasUnique(casCounter.getAndIncrement());
-        final boolean stored = storage.putIfAbsent(e.getKey(), e) == null;
+        LocalCacheElement owned = owned(e);
+        final boolean stored = storage.putIfAbsent(owned.getKey(), owned) == null;
         // we should restore the former cas so that the object isn't left dirty
         if (!stored) {
             e.setCasUnique(origCasUnique);
+        } else {
+            settle(e.getKey());
         }
         return stored ? StoreResponse.STORED : StoreResponse.NOT_STORED;
     }
@@ -92,7 +147,12 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      * @inheritDoc
      */
     public StoreResponse replace(LocalCacheElement e) {
-        return storage.replace(e.getKey(), e) != null ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+        e.setCasUnique(casCounter.getAndIncrement());
+        LocalCacheElement owned = owned(e);
+        if (storage.replace(owned.getKey(), owned) == null) return StoreResponse.NOT_STORED;
+
+        settle(e.getKey());
+        return StoreResponse.STORED;
     }
 
     /**
@@ -105,7 +165,9 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
             return StoreResponse.NOT_FOUND;
         }
         else {
-            return storage.replace(old.getKey(), old, old.append(element)) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+            LocalCacheElement appended = old.append(owned(element));
+            appended.setCasUnique(casCounter.getAndIncrement());
+            return storage.replaceAppended(old.getKey(), old, appended, element.size()) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
         }
     }
 
@@ -119,7 +181,9 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
             return StoreResponse.NOT_FOUND;
         }
         else {
-            return storage.replace(old.getKey(), old, old.prepend(element)) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+            LocalCacheElement prepended = old.prepend(owned(element));
+            prepended.setCasUnique(casCounter.getAndIncrement());
+            return storage.replacePrepended(old.getKey(), old, prepended, element.size()) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
         }
     }
 
@@ -131,11 +195,88 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
 
         e.setCasUnique(casCounter.getAndIncrement());
 
-        storage.put(e.getKey(), e);
+        LocalCacheElement owned = owned(e);
+        storage.set(owned.getKey(), owned);
+        settle(e.getKey());
 
         return StoreResponse.STORED;
     }
 
+    /**
+     * @inheritDoc
+     */
+    public StoreResponse[] setMulti(LocalCacheElement[] elements) {
+        setCmds.addAndGet(elements.length);//update stats
+
+        // one run of cas uniques for the lot
+        long cas = casCounter.getAndAdd(elements.length);
+
+        Key[] keys = new Key[elements.length];
+        LocalCacheElement[] owned = new LocalCacheElement[elements.length];
+        StoreResponse[] responses = new StoreResponse[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i].setCasUnique(cas + i);
+            owned[i] = owned(elements[i]);
+            keys[i] = owned[i].getKey();
+            responses[i] = StoreResponse.STORED;
+        }
+        storage.putAll(keys, owned);
+        for (Key key : keys) {
+            settle(key);
+        }
+
+        return responses;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public boolean[] touchMulti(long expire, Key[] keys) {
+        boolean[] replaced = new boolean[keys.length];
+        touch(expire, keys, new LocalCacheElement[keys.length], replaced);
+        return replaced;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public LocalCacheElement[] getAndTouch(long expire, Key... keys) {
+        getCmds.incrementAndGet();
+
+        LocalCacheElement[] touched = new LocalCacheElement[keys.length];
+        boolean[] replaced = new boolean[keys.length];
+        touch(expire, keys, touched, replaced);
+
+        int hits = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (replaced[i]) hits++;
+            else touched[i] = null;
+        }
+        getHits.addAndGet(hits);
+        getMisses.addAndGet(keys.length - hits);
+
+        return touched;
+    }
+
+    /**
+     * Give the live items for some keys a new expiry, in place where the storage allows it.
+     *
+     * @param touched filled in with the touched elements, which share their data with the stored ones
+     * @param replaced filled in with whether each item was touched
+     */
+    private void touch(long expire, Key[] keys, LocalCacheElement[] touched, boolean[] replaced) {
+        LocalCacheElement[] originals = new LocalCacheElement[keys.length];
+        storage.getAll(keys, originals);
+
+        for (int i = 0; i < keys.length; i++) {
+            LocalCacheElement e = originals[i];
+            if (e == null || isExpired(e) || e.isBlocked()) originals[i] = null;
+            else touched[i] = e.touch(expire);
+        }
+
+        storage.touchAll(keys, originals, touched, replaced);
+    }
+
     /**
      * @inheritDoc
      */
@@ -150,8 +291,11 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
         if (element.getCasUnique() == cas_key) {
             // casUnique matches, now set the element
         	e.setCasUnique(casCounter.getAndIncrement());
-            if (storage.replace(e.getKey(), element, e)) return StoreResponse.STORED;
-            else {
+            LocalCacheElement owned = owned(e);
+            if (storage.replace(owned.getKey(), element, owned)) {
+                settle(e.getKey());
+                return StoreResponse.STORED;
+            } else {
                 getMisses.incrementAndGet();
                 return StoreResponse.NOT_FOUND;
             }
@@ -171,11 +315,37 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
             return null;
         } else {
             LocalCacheElement.IncrDecrResult result = old.add(mod);
+            result.replace.setCasUnique(casCounter.getAndIncrement());
             return storage.replace(old.getKey(), old, result.replace) ? result.oldValue : null;
         }
     }
 
 
+    /**
+     * Release any lease on a key, now that it has a new value
+     */
+    private void settle(Key key) {
+        if (!leases.isEmpty()) leases.remove(key);
+    }
+
+    /**
+     * Forget leases which have lapsed without their item being stored
+     */
+    void expireLeases() {
+        long now = System.nanoTime();
+        for (Map.Entry<Key, Long> lease : leases.entrySet()) {
+            if (lease.getValue() - now < 0) leases.remove(lease.getKey(), lease.getValue());
+        }
+    }
+
+    /**
+     * Elements arrive as views onto the buffers they were decoded from. A storage which keeps elements by reference
+     * gets a right-sized copy instead, so that it never keeps a receive buffer alive.
+     */
+    private LocalCacheElement owned(LocalCacheElement e) {
+        return storage.retainsValues() ? e.copy() : e;
+    }
+
     protected boolean isBlocked(CacheElement e) {
         return e.isBlocked() && e.getBlockedUntil() > Now();
     }
@@ -191,22 +361,19 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
         getCmds.incrementAndGet();//updates stats
 
         LocalCacheElement[] elements = new LocalCacheElement[keys.length];
-        int x = 0;
+        storage.getAll(keys, elements);
+
         int hits = 0;
         int misses = 0;
-        for (Key key : keys) {
-            LocalCacheElement e = storage.get(key);
+        for (int x = 0; x < elements.length; x++) {
+            LocalCacheElement e = elements[x];
             if (e == null || isExpired(e) || e.isBlocked()) {
                 misses++;
 
                 elements[x] = null;
             } else {
                 hits++;
-
-                elements[x] = e;
             }
-            x++;
-
         }
         getMisses.addAndGet(misses);
         getHits.addAndGet(hits);
@@ -215,6 +382,45 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
 
     }
 
+    /**
+     * @inheritDoc
+     *
+     * An expired item is stale until it is overwritten or evicted; one blocked by a delayed delete counts as missing.
+     */
+    public LocalCacheElement getWithLease(Key key, long leaseMillis, LeaseStatus[] status) {
+        getCmds.incrementAndGet();//updates stats
+
+        LocalCacheElement e = storage.get(key);
+        if (e != null && e.isBlocked()) e = null;
+
+        if (e != null && !isExpired(e)) {
+            getHits.incrementAndGet();
+            status[0] = LeaseStatus.FRESH;
+            return e;
+        }
+        getMisses.incrementAndGet();
+
+        // the key may be a view onto a receive buffer, and the lease outlives it
+        Key owned = null;
+        long leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        while (true) {
+            long now = System.nanoTime();
+            Long until = leases.get(key);
+            if (until == null) {
+                if (owned == null) owned = new Key(ChannelBuffers.copiedBuffer(key.bytes));
+                if (leases.putIfAbsent(owned, now + leaseNanos) == null) break;
+            } else if (until - now >= 0) {
+                status[0] = LeaseStatus.PENDING;
+                return e;
+            } else if (leases.replace(key, until, now + leaseNanos)) {
+                // the last lease lapsed; this caller takes over
+                break;
+            }
+        }
+        status[0] = LeaseStatus.WON;
+        return e;
+    }
+
     /**
      * @inheritDoc
      */
@@ -228,17 +434,148 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
     public boolean flush_all(int expire) {
         // TODO implement this, it isn't right... but how to handle efficiently? (don't want to linear scan entire cacheStorage)
         storage.clear();
+        leases.clear();
         return true;
     }
 
+    /**
+     * @inheritDoc
+     */
+    public int snapshot() throws IOException {
+        final int[] items = new int[1];
+        final IOException[] failure = new IOException[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        snapshot(new SnapshotCallback() {
+            public void snapshotDone(int written, IOException e) {
+                items[0] = written;
+                failure[0] = e;
+                done.countDown();
+            }
+        });
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted waiting for the snapshot");
+        }
+        if (failure[0] != null) throw failure[0];
+        return items[0];
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public void snapshot(SnapshotCallback callback) {
+        File file = snapshotFile;
+        if (file == null) {
+            callback.snapshotDone(-1, new IOException("no snapshot file configured"));
+            return;
+        }
+
+        synchronized (this) {
+            if (dump == null) {
+                dump = new SnapshotTask(file);
+                snapshotter.execute(dump);
+            }
+            dump.callbacks.add(callback);
+        }
+    }
+
+    /**
+     * A dump of the storage, and everyone waiting for it
+     */
+    private final class SnapshotTask implements Runnable {
+        private final File file;
+        final List<SnapshotCallback> callbacks = new ArrayList<SnapshotCallback>();
+
+        SnapshotTask(File file) {
+            this.file = file;
+        }
+
+        public void run() {
+            int items = -1;
+            IOException failure = null;
+            try {
+                items = new Snapshot(file).dump(storage);
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException("snapshot failed: " + e);
+                failure.initCause(e);
+            }
+
+            // no more can join once this is no longer the running dump
+            synchronized (CacheImpl.this) {
+                dump = null;
+            }
+            for (SnapshotCallback callback : callbacks) {
+                callback.snapshotDone(items, failure);
+            }
+        }
+    }
+
+    /**
+     * Load a snapshot into the cache, skipping items which have since expired. Items keep their cas uniques, and
+     * new ones are issued from above the largest loaded.
+     *
+     * @param file the snapshot file
+     * @return the number of items loaded
+     * @throws IOException on failure to read the snapshot
+     */
+    public int restore(File file) throws IOException {
+        Snapshot snapshot = new Snapshot(file);
+        int items = snapshot.load(storage, Now());
+
+        long cas;
+        while ((cas = casCounter.get()) <= snapshot.getMaxCasUnique()
+                && !casCounter.compareAndSet(cas, snapshot.getMaxCasUnique() + 1));
+
+        return items;
+    }
+
+    /**
+     * Replay a write ahead log into the cache, then compact it and open it for logging. The cache's storage should be
+     * a LoggedCacheStorage over the same log, so that mutations from here on are recorded.
+     *
+     * @param log the write ahead log
+     * @return the number of log records replayed
+     * @throws IOException on failure to read or rewrite the log
+     */
+    public int recover(WriteAheadLog log) throws IOException {
+        int records = log.replay(storage, Now());
+
+        long cas;
+        while ((cas = casCounter.get()) <= log.getMaxCasUnique()
+                && !casCounter.compareAndSet(cas, log.getMaxCasUnique() + 1));
+
+        log.compactAndOpen(storage, Now());
+        return records;
+    }
+
+    /**
+     * @param snapshotFile the file the snapshot command writes to
+     */
+    public void setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
     /**
      * @inheritDoc
      */
     public void close() throws IOException {
         scavenger.shutdown();;
+        snapshotter.shutdown();
         storage.close();
     }
 
+    /**
+     * @inheritDoc
+     */
+    @Override
+    protected Map<String, String> getStorageStats() {
+        return storage.getStats();
+    }
+
     /**
      * @inheritDoc
      */
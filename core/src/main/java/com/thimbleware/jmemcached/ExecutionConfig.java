@@ -0,0 +1,253 @@
+package com.thimbleware.jmemcached;
+
+import com.thimbleware.jmemcached.util.NamedThreadFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * How the daemon runs its network threads: the executors for the boss (accepting) and worker (I/O) threads, and the
+ * number of I/O workers. Optionally, commands are executed on a separate pool of command threads rather than on the
+ * I/O workers, or each connection's commands on a thread of its own, which is free to block on storage; see
+ * {@link com.thimbleware.jmemcached.protocol.CommandExecutionHandler}. Reads from a connection are also suspended while
+ * too much output is waiting to go out to it; see {@link com.thimbleware.jmemcached.protocol.OutboundThrottleHandler}.
+ * Built with {@link Builder}; anything left unset
+ * gets a default.
+ *
+ * The executors are shut down along with the daemon, including ones passed in. Threads keep the names their executors
+ * give them; netty is told not to rename them.
+ */
+public final class ExecutionConfig {
+
+    public static final String DEFAULT_THREAD_NAME_PREFIX = "jmemcached";
+    public static final long DEFAULT_MAX_CHANNEL_MEMORY_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_MAX_TOTAL_MEMORY_SIZE = 256 * 1024 * 1024;
+    public static final long DEFAULT_OUTPUT_HIGH_WATER_MARK = 4 * 1024 * 1024;
+    public static final long DEFAULT_OUTPUT_LOW_WATER_MARK = 1024 * 1024;
+    public static final long DEFAULT_MAX_TOTAL_OUTPUT_SIZE = 256 * 1024 * 1024;
+
+    private final Executor bossExecutor;
+    private final Executor workerExecutor;
+    private final int workerCount;
+    private final String threadNamePrefix;
+    private final int threadPriority;
+    private final int commandThreads;
+    private final boolean threadPerConnection;
+    private final long maxChannelMemorySize;
+    private final long maxTotalMemorySize;
+    private final long outputHighWaterMark;
+    private final long outputLowWaterMark;
+    private final long maxTotalOutputSize;
+
+    private ExecutionConfig(Builder builder) {
+        this.threadNamePrefix = builder.threadNamePrefix;
+        this.threadPriority = builder.threadPriority;
+        this.commandThreads = builder.commandThreads;
+        this.threadPerConnection = builder.threadPerConnection;
+        this.maxChannelMemorySize = builder.maxChannelMemorySize;
+        this.maxTotalMemorySize = builder.maxTotalMemorySize;
+        this.outputHighWaterMark = builder.outputHighWaterMark;
+        this.outputLowWaterMark = builder.outputLowWaterMark;
+        this.maxTotalOutputSize = builder.maxTotalOutputSize;
+        this.workerCount = builder.workerCount > 0 ? builder.workerCount : Runtime.getRuntime().availableProcessors() * 2;
+        this.bossExecutor = builder.bossExecutor != null ? builder.bossExecutor
+                : Executors.newCachedThreadPool(new NamedThreadFactory(builder.threadNamePrefix + "-boss", builder.threadPriority, false));
+        this.workerExecutor = builder.workerExecutor != null ? builder.workerExecutor
+                : Executors.newCachedThreadPool(new NamedThreadFactory(builder.threadNamePrefix + "-worker", builder.threadPriority, false));
+    }
+
+    /**
+     * @return a configuration with every setting at its default
+     */
+    public static ExecutionConfig defaults() {
+        return new Builder().build();
+    }
+
+    public Executor getBossExecutor() {
+        return bossExecutor;
+    }
+
+    public Executor getWorkerExecutor() {
+        return workerExecutor;
+    }
+
+    /**
+     * @return the number of I/O worker threads
+     */
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    public String getThreadNamePrefix() {
+        return threadNamePrefix;
+    }
+
+    public int getThreadPriority() {
+        return threadPriority;
+    }
+
+    /**
+     * @return the number of command threads; 0 if commands are executed on the I/O workers
+     */
+    public int getCommandThreads() {
+        return commandThreads;
+    }
+
+    /**
+     * @return true if each connection's commands are executed on a thread of its own
+     */
+    public boolean isThreadPerConnection() {
+        return threadPerConnection;
+    }
+
+    public long getMaxChannelMemorySize() {
+        return maxChannelMemorySize;
+    }
+
+    public long getMaxTotalMemorySize() {
+        return maxTotalMemorySize;
+    }
+
+    public long getOutputHighWaterMark() {
+        return outputHighWaterMark;
+    }
+
+    public long getOutputLowWaterMark() {
+        return outputLowWaterMark;
+    }
+
+    public long getMaxTotalOutputSize() {
+        return maxTotalOutputSize;
+    }
+
+    public static final class Builder {
+        private Executor bossExecutor;
+        private Executor workerExecutor;
+        private int workerCount;
+        private String threadNamePrefix = DEFAULT_THREAD_NAME_PREFIX;
+        private int threadPriority = Thread.NORM_PRIORITY;
+        private int commandThreads;
+        private boolean threadPerConnection;
+        private long maxChannelMemorySize = DEFAULT_MAX_CHANNEL_MEMORY_SIZE;
+        private long maxTotalMemorySize = DEFAULT_MAX_TOTAL_MEMORY_SIZE;
+        private long outputHighWaterMark = DEFAULT_OUTPUT_HIGH_WATER_MARK;
+        private long outputLowWaterMark = DEFAULT_OUTPUT_LOW_WATER_MARK;
+        private long maxTotalOutputSize = DEFAULT_MAX_TOTAL_OUTPUT_SIZE;
+
+        /**
+         * @param workerCount the number of I/O worker threads; by default twice the number of processors
+         */
+        public Builder workerCount(int workerCount) {
+            this.workerCount = workerCount;
+            return this;
+        }
+
+        /**
+         * @param bossExecutor the executor to run the threads accepting connections on, in place of a cached pool
+         */
+        public Builder bossExecutor(Executor bossExecutor) {
+            this.bossExecutor = bossExecutor;
+            return this;
+        }
+
+        /**
+         * @param workerExecutor the executor to run the I/O worker threads on, in place of a cached pool; it needs to
+         * be able to run workerCount tasks at once
+         */
+        public Builder workerExecutor(Executor workerExecutor) {
+            this.workerExecutor = workerExecutor;
+            return this;
+        }
+
+        /**
+         * @param threadNamePrefix prefix for the names of the default executors' threads
+         */
+        public Builder threadNamePrefix(String threadNamePrefix) {
+            this.threadNamePrefix = threadNamePrefix;
+            return this;
+        }
+
+        /**
+         * @param threadPriority priority of the default executors' threads
+         */
+        public Builder threadPriority(int threadPriority) {
+            if (threadPriority < Thread.MIN_PRIORITY || threadPriority > Thread.MAX_PRIORITY)
+                throw new IllegalArgumentException("thread priority must be between " + Thread.MIN_PRIORITY + " and " + Thread.MAX_PRIORITY);
+            this.threadPriority = threadPriority;
+            return this;
+        }
+
+        /**
+         * @param commandThreads the number of threads to execute commands on, keeping each connection's commands in
+         * order; 0, the default, executes them on the I/O workers
+         */
+        public Builder commandThreads(int commandThreads) {
+            this.commandThreads = commandThreads;
+            return this;
+        }
+
+        /**
+         * @param threadPerConnection true to execute each connection's commands on a thread of its own, taken from an
+         * unbounded pool while the connection has commands queued, so that commands may block on storage (the flash
+         * tier, or a synced write ahead log) without holding up other connections; cannot be combined with
+         * commandThreads
+         */
+        public Builder threadPerConnection(boolean threadPerConnection) {
+            this.threadPerConnection = threadPerConnection;
+            return this;
+        }
+
+        /**
+         * @param maxChannelMemorySize bytes of commands a connection may have queued for the command threads before
+         * reads from it are suspended; 0 for no limit
+         */
+        public Builder maxChannelMemorySize(long maxChannelMemorySize) {
+            this.maxChannelMemorySize = maxChannelMemorySize;
+            return this;
+        }
+
+        /**
+         * @param maxTotalMemorySize bytes of commands which may be queued for the command threads in all before reads
+         * are suspended; 0 for no limit
+         */
+        public Builder maxTotalMemorySize(long maxTotalMemorySize) {
+            this.maxTotalMemorySize = maxTotalMemorySize;
+            return this;
+        }
+
+        /**
+         * @param outputHighWaterMark bytes of responses a connection may have waiting to be written before reads from
+         * it are suspended; 0 for no limit
+         */
+        public Builder outputHighWaterMark(long outputHighWaterMark) {
+            this.outputHighWaterMark = outputHighWaterMark;
+            return this;
+        }
+
+        /**
+         * @param outputLowWaterMark bytes of responses a connection whose reads were suspended has to get down to
+         * for them to resume
+         */
+        public Builder outputLowWaterMark(long outputLowWaterMark) {
+            this.outputLowWaterMark = outputLowWaterMark;
+            return this;
+        }
+
+        /**
+         * @param maxTotalOutputSize bytes of responses which may be waiting to be written in all before reads are
+         * suspended from the connections adding to them; 0 for no limit
+         */
+        public Builder maxTotalOutputSize(long maxTotalOutputSize) {
+            this.maxTotalOutputSize = maxTotalOutputSize;
+            return this;
+        }
+
+        public ExecutionConfig build() {
+            if (threadPerConnection && commandThreads > 0)
+                throw new IllegalArgumentException("a thread per connection and a pool of command threads are exclusive");
+            if (outputHighWaterMark != 0 && outputLowWaterMark > outputHighWaterMark)
+                throw new IllegalArgumentException("the output low water mark must not be above the high water mark");
+            return new ExecutionConfig(this);
+        }
+    }
+}
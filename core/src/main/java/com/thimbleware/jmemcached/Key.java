@@ -1,21 +1,31 @@
 package com.thimbleware.jmemcached;
 
+import com.thimbleware.jmemcached.util.BufferUtils;
+import com.thimbleware.jmemcached.util.Murmur3;
 import org.jboss.netty.buffer.ChannelBuffer;
 
-import java.util.Arrays;
-
 /**
  * Represents a given key for lookup in the cache.
  *
- * Wraps a byte array with a precomputed hashCode.
+ * Wraps a view of the key bytes with a precomputed hashCode, the Murmur3 hash of the key bytes. Keys are immutable and
+ * may be shared between threads: nothing moves the indices of the view, and everything reads it by absolute index
+ * from 0 to its capacity. The bytes are not copied, so a key over a slice of a received buffer serves as a lookup
+ * probe for free; a key which outlives the buffer it was decoded from has to be built over a copy.
  */
-public class Key {
-    public ChannelBuffer bytes;
-    private int hashCode;
+public final class Key {
+    public final ChannelBuffer bytes;
+    private final int hashCode;
 
     public Key(ChannelBuffer bytes) {
         this.bytes = bytes.slice();
-        this.hashCode = this.bytes.hashCode();
+        this.hashCode = Murmur3.hash32(this.bytes, 0, this.bytes.capacity(), 0);
+    }
+
+    /**
+     * @return the number of bytes in the key
+     */
+    public int length() {
+        return bytes.capacity();
     }
 
     @Override
@@ -25,17 +35,13 @@ public class Key {
 
         Key key1 = (Key) o;
 
-        bytes.readerIndex(0);
-        key1.bytes.readerIndex(0);
-        if (!bytes.equals(key1.bytes)) return false;
-
-        return true;
+        return hashCode == key1.hashCode
+                && bytes.capacity() == key1.bytes.capacity()
+                && BufferUtils.equals(bytes, 0, key1.bytes, 0, bytes.capacity());
     }
 
     @Override
     public int hashCode() {
         return hashCode;
     }
-
-
 }
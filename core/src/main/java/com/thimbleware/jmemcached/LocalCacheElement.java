@@ -59,51 +59,49 @@ public final class LocalCacheElement implements CacheElement {
         return (int) (System.currentTimeMillis() / 1000);
     }
 
+    /**
+     * Turn an expiry as given by a client, in seconds, into an element's expiry: an absolute time if it was short
+     * enough to be relative
+     */
+    public static long expiry(int seconds) {
+        long expire = seconds * 1000L;
+        return expire != 0 && expire < THIRTY_DAYS ? Now() + expire : expire;
+    }
+
     public int size() {
         return getData().capacity();
     }
 
+    /**
+     * Produce a new element with the data of the given element appended to ours. The existing bytes are not copied;
+     * the new element's data is a composite of ours and the appended data.
+     */
     public LocalCacheElement append(LocalCacheElement appendElement) {
-        int newLength = size() + appendElement.size();
         LocalCacheElement appendedElement = new LocalCacheElement(getKey(), getFlags(), getExpire(), 0L);
-        ChannelBuffer appended = ChannelBuffers.buffer(newLength);
-        ChannelBuffer existing = getData();
-        ChannelBuffer append = appendElement.getData();
-
-        appended.writeBytes(existing);
-        appended.writeBytes(append);
-
-        appended.readerIndex(0);
-
-        existing.readerIndex(0);
-        append.readerIndex(0);
-
-        appendedElement.setData(appended);
-        appendedElement.setCasUnique(appendedElement.getCasUnique() + 1);
+        appendedElement.setData(BufferUtils.append(getData(), appendElement.getData()));
 
         return appendedElement;
     }
 
+    /**
+     * Produce a new element with the data of the given element prepended to ours, without copying the existing bytes.
+     */
     public LocalCacheElement prepend(LocalCacheElement prependElement) {
-        int newLength = size() + prependElement.size();
-
         LocalCacheElement prependedElement = new LocalCacheElement(getKey(), getFlags(), getExpire(), 0L);
-        ChannelBuffer prepended = ChannelBuffers.buffer(newLength);
-        ChannelBuffer prepend = prependElement.getData();
-        ChannelBuffer existing = getData();
-
-        prepended.writeBytes(prepend);
-        prepended.writeBytes(existing);
+        prependedElement.setData(BufferUtils.prepend(getData(), prependElement.getData()));
 
-        existing.readerIndex(0);
-        prepend.readerIndex(0);
-
-        prepended.readerIndex(0);
+        return prependedElement;
+    }
 
-        prependedElement.setData(prepended);
-        prependedElement.setCasUnique(prependedElement.getCasUnique() + 1);
+    /**
+     * Produce a new element like this one but expiring at the given time. The data is shared, not copied, and the cas
+     * unique is kept, as a change of expiry doesn't change the item.
+     */
+    public LocalCacheElement touch(long expire) {
+        LocalCacheElement touched = new LocalCacheElement(getKey(), getFlags(), expire, getCasUnique());
+        touched.setData(getData());
 
-        return prependedElement;
+        return touched;
     }
 
     public static class IncrDecrResult {
@@ -128,7 +126,6 @@ public final class LocalCacheElement implements CacheElement {
 
         LocalCacheElement replace = new LocalCacheElement(getKey(), getFlags(), getExpire(), 0L);
         replace.setData(newData);
-        replace.setCasUnique(replace.getCasUnique() + 1);
 
         return new IncrDecrResult(modVal, replace);
     }
@@ -163,6 +160,24 @@ public final class LocalCacheElement implements CacheElement {
         return result;
     }
 
+    /**
+     * Produce a copy of this element which owns its bytes. The key and the data are copied together into one array of
+     * exactly their combined size, so that the copy retains no more memory than it accounts for.
+     */
+    public LocalCacheElement copy() {
+        int keyLength = key.length();
+        int size = size();
+        byte[] bytes = new byte[keyLength + size];
+        key.bytes.getBytes(0, bytes, 0, keyLength);
+        getData().getBytes(0, bytes, keyLength, size);
+
+        LocalCacheElement copy = new LocalCacheElement(new Key(ChannelBuffers.wrappedBuffer(bytes, 0, keyLength)), flags, expire, casUnique);
+        copy.setData(ChannelBuffers.wrappedBuffer(bytes, keyLength, size));
+        copy.blocked = blocked;
+        copy.blockedUntil = blockedUntil;
+        return copy;
+    }
+
     public static LocalCacheElement key(Key key) {
         return new LocalCacheElement(key);
     }
@@ -211,43 +226,4 @@ public final class LocalCacheElement implements CacheElement {
         this.data = data;
     }
 
-    public static LocalCacheElement readFromBuffer(ChannelBuffer in) {
-        int bufferSize = in.readInt();
-        long expiry = in.readLong();
-        int keyLength = in.readInt();
-        ChannelBuffer key = in.slice(in.readerIndex(), keyLength);
-        in.skipBytes(keyLength);
-        LocalCacheElement localCacheElement = new LocalCacheElement(new Key(key));
-
-        localCacheElement.expire = expiry;
-        localCacheElement.flags = in.readInt();
-
-        int dataLength = in.readInt();
-        localCacheElement.data = in.slice(in.readerIndex(), dataLength);
-        in.skipBytes(dataLength);
-
-        localCacheElement.casUnique = in.readInt();
-        localCacheElement.blocked = in.readByte() == 1;
-        localCacheElement.blockedUntil = in.readLong();
-
-        return localCacheElement;
-    }
-
-    public int bufferSize() {
-        return 4 + 8 + 4 + key.bytes.capacity() + 4 + 4 + 4 + data.capacity() + 8 + 1 + 8;
-    }
-
-    public void writeToBuffer(ChannelBuffer out) {
-        out.writeInt(bufferSize());
-        out.writeLong(expire) ;
-        out.writeInt(key.bytes.capacity());
-        out.writeBytes(key.bytes);
-        out.writeInt(flags);
-        out.writeInt(data.capacity());
-        out.writeBytes(data);
-        out.writeLong(casUnique);
-        out.writeByte(blocked ? 1 : 0);
-        out.writeLong(blockedUntil);
-    }
-
-}
\ No newline at end of file
+}
@@ -15,21 +15,35 @@
  */
 package com.thimbleware.jmemcached;
 
+import com.thimbleware.jmemcached.protocol.CommandExecutionHandler;
+import com.thimbleware.jmemcached.protocol.ConnectionExecutor;
+import com.thimbleware.jmemcached.protocol.OutboundBudget;
+import com.thimbleware.jmemcached.protocol.PipelineOptions;
+import com.thimbleware.jmemcached.protocol.WorkerStats;
 import com.thimbleware.jmemcached.protocol.binary.MemcachedBinaryPipelineFactory;
 import com.thimbleware.jmemcached.protocol.text.MemcachedPipelineFactory;
+import com.thimbleware.jmemcached.protocol.text.MemcachedUdpFrameHandler;
+import com.thimbleware.jmemcached.protocol.text.MemcachedUdpPipelineFactory;
+import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.FixedReceiveBufferSizePredictorFactory;
 import org.jboss.netty.channel.group.ChannelGroupFuture;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.DatagramChannelFactory;
 import org.jboss.netty.channel.socket.ServerSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioDatagramChannelFactory;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.util.ThreadNameDeterminer;
+import org.jboss.netty.util.ThreadRenamingRunnable;
+import com.thimbleware.jmemcached.util.NamedThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.concurrent.Executors;
 
 /**
  * The actual daemon - responsible for the binding and configuration of the network configuration.
@@ -40,17 +54,29 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
 
     public static String memcachedVersion = "0.9";
 
+    /**
+     * Connections served on the Unix domain socket at once, unless set otherwise; each has a thread of its own
+     */
+    public static final int DEFAULT_UNIX_SOCKET_MAX_CONNECTIONS = 1024;
+
     private int frameSize = 32768 * 1024;
 
     private boolean binary = false;
     private boolean verbose;
     private int idleTime;
     private InetSocketAddress addr;
+    private InetSocketAddress udpAddr;
+    private File unixSocket;
+    private int unixSocketMaxConnections = DEFAULT_UNIX_SOCKET_MAX_CONNECTIONS;
     private Cache<CACHE_ELEMENT> cache;
+    private ExecutionConfig executionConfig;
 
     private boolean running = false;
     private ServerSocketChannelFactory channelFactory;
+    private DatagramChannelFactory datagramChannelFactory;
+    private UnixSocketListener unixSocketListener;
     private DefaultChannelGroup allChannels;
+    private CommandExecutionHandler commandExecution;
 
 
     public MemCacheDaemon() {
@@ -60,15 +86,44 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
         this.cache = cache;
     }
 
+    public MemCacheDaemon(Cache<CACHE_ELEMENT> cache, ExecutionConfig executionConfig) {
+        this.cache = cache;
+        this.executionConfig = executionConfig;
+    }
+
     /**
      * Bind the network connection and start the network processing threads.
      */
     public void start() {
-        // TODO provide tweakable options here for passing in custom executors.
+        ExecutionConfig execution = executionConfig != null ? executionConfig : ExecutionConfig.defaults();
         channelFactory =
                 new NioServerSocketChannelFactory(
-                        Executors.newCachedThreadPool(),
-                        Executors.newCachedThreadPool());
+                        execution.getBossExecutor(),
+                        execution.getWorkerExecutor(),
+                        execution.getWorkerCount());
+        WorkerStats workerStats = new WorkerStats(execution.getWorkerCount());
+        OutboundBudget outboundBudget = new OutboundBudget(execution.getOutputHighWaterMark(),
+                execution.getOutputLowWaterMark(), execution.getMaxTotalOutputSize());
+
+        // keep the names the executors gave their threads, rather than netty's "New I/O server worker #n"
+        ThreadRenamingRunnable.setThreadNameDeterminer(ThreadNameDeterminer.CURRENT);
+
+        commandExecution = null;
+        if (execution.isThreadPerConnection()) {
+            commandExecution = new CommandExecutionHandler(new ConnectionExecutor(
+                    new NamedThreadFactory(execution.getThreadNamePrefix() + "-connection", execution.getThreadPriority(), false),
+                    execution.getMaxChannelMemorySize()));
+        } else if (execution.getCommandThreads() > 0) {
+            commandExecution = new CommandExecutionHandler(execution.getCommandThreads(),
+                    execution.getMaxChannelMemorySize(), execution.getMaxTotalMemorySize(),
+                    new NamedThreadFactory(execution.getThreadNamePrefix() + "-command", execution.getThreadPriority(), false));
+        }
+
+        PipelineOptions options = new PipelineOptions.Builder()
+                .workerStats(workerStats)
+                .commandExecution(commandExecution)
+                .outboundBudget(outboundBudget)
+                .build();
 
         allChannels = new DefaultChannelGroup("jmemcachedChannelGroup");
 
@@ -76,9 +131,9 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
 
         ChannelPipelineFactory pipelineFactory;
         if (binary)
-            pipelineFactory = createMemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels);
+            pipelineFactory = createMemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels, options);
         else
-            pipelineFactory = createMemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, frameSize, allChannels);
+            pipelineFactory = createMemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, frameSize, allChannels, options);
 
         bootstrap.setPipelineFactory(pipelineFactory);
         bootstrap.setOption("sendBufferSize", 65536 );
@@ -89,22 +144,66 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
 
         log.info("Listening on " + String.valueOf(addr.getHostName()) + ":" + addr.getPort());
 
+        unixSocketListener = null;
+        if (unixSocket != null) {
+            try {
+                unixSocketListener = new UnixSocketListener(unixSocket, pipelineFactory, allChannels,
+                        new NamedThreadFactory(execution.getThreadNamePrefix() + "-unix", execution.getThreadPriority(), false),
+                        unixSocketMaxConnections);
+            } catch (IOException e) {
+                throw new RuntimeException("failure to listen on unix socket " + unixSocket, e);
+            }
+            unixSocketListener.start();
+
+            log.info("Listening on unix socket " + unixSocket);
+        }
+
+        datagramChannelFactory = null;
+        if (udpAddr != null) {
+            datagramChannelFactory = new NioDatagramChannelFactory(execution.getWorkerExecutor(), 1);
+
+            ConnectionlessBootstrap udpBootstrap = new ConnectionlessBootstrap(datagramChannelFactory);
+            udpBootstrap.setPipelineFactory(createMemcachedUdpPipelineFactory(cache, memcachedVersion, verbose, allChannels, options));
+            udpBootstrap.setOption("sendBufferSize", 65536);
+            udpBootstrap.setOption("receiveBufferSize", 65536);
+            udpBootstrap.setOption("receiveBufferSizePredictorFactory",
+                    new FixedReceiveBufferSizePredictorFactory(MemcachedUdpFrameHandler.MAX_REQUEST_BYTES));
+
+            allChannels.add(udpBootstrap.bind(udpAddr));
+
+            log.info("Listening for UDP on " + String.valueOf(udpAddr.getHostName()) + ":" + udpAddr.getPort());
+        }
+
         running = true;
     }
 
     protected ChannelPipelineFactory createMemcachedBinaryPipelineFactory(
-            Cache cache, String memcachedVersion, boolean verbose, int idleTime, DefaultChannelGroup allChannels) {
-        return new MemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels);
+            Cache cache, String memcachedVersion, boolean verbose, int idleTime, DefaultChannelGroup allChannels, PipelineOptions options) {
+        return new MemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels, options);
     }
 
     protected ChannelPipelineFactory createMemcachedPipelineFactory(
-            Cache cache, String memcachedVersion, boolean verbose, int idleTime, int receiveBufferSize, DefaultChannelGroup allChannels) {
-        return new MemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, receiveBufferSize, allChannels);
+            Cache cache, String memcachedVersion, boolean verbose, int idleTime, int receiveBufferSize, DefaultChannelGroup allChannels,
+            PipelineOptions options) {
+        return new MemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, receiveBufferSize, allChannels, options);
+    }
+
+    protected ChannelPipelineFactory createMemcachedUdpPipelineFactory(
+            Cache cache, String memcachedVersion, boolean verbose, DefaultChannelGroup allChannels, PipelineOptions options) {
+        return new MemcachedUdpPipelineFactory(cache, memcachedVersion, verbose, allChannels, options);
     }
 
     public void stop() {
         log.info("terminating daemon; closing all channels");
 
+        if (unixSocketListener != null) {
+            try {
+                unixSocketListener.close();
+            } catch (IOException e) {
+                log.warn("failure to close unix socket " + unixSocket, e);
+            }
+        }
+
         ChannelGroupFuture future = allChannels.close();
         future.awaitUninterruptibly();
         if (!future.isCompleteSuccess()) {
@@ -117,6 +216,8 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
             throw new RuntimeException("exception while closing storage", e);
         }
         channelFactory.releaseExternalResources();
+        if (datagramChannelFactory != null) datagramChannelFactory.releaseExternalResources();
+        if (commandExecution != null) commandExecution.releaseExternalResources();
 
         running = false;
         log.info("successfully shut down");
@@ -134,6 +235,29 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
         this.addr = addr;
     }
 
+    /**
+     * @param udpAddr the address to also serve the text protocol on over UDP, or null (the default) not to
+     */
+    public void setUdpAddr(InetSocketAddress udpAddr) {
+        this.udpAddr = udpAddr;
+    }
+
+    /**
+     * @param unixSocket the path of a Unix domain socket to also serve the protocol on, or null (the default) not
+     * to; needs Java 16 or later
+     */
+    public void setUnixSocket(File unixSocket) {
+        this.unixSocket = unixSocket;
+    }
+
+    /**
+     * @param unixSocketMaxConnections the number of connections to serve on the Unix domain socket at once, each of
+     * which has a thread of its own; further connections are closed as soon as they are accepted
+     */
+    public void setUnixSocketMaxConnections(int unixSocketMaxConnections) {
+        this.unixSocketMaxConnections = unixSocketMaxConnections;
+    }
+
     public Cache<CACHE_ELEMENT> getCache() {
         return cache;
     }
@@ -142,6 +266,17 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
         this.cache = cache;
     }
 
+    public ExecutionConfig getExecutionConfig() {
+        return executionConfig;
+    }
+
+    /**
+     * @param executionConfig the network threads to use; takes effect on start
+     */
+    public void setExecutionConfig(ExecutionConfig executionConfig) {
+        this.executionConfig = executionConfig;
+    }
+
     public boolean isRunning() {
         return running;
     }
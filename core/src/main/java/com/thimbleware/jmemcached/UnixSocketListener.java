@@ -0,0 +1,271 @@
+package com.thimbleware.jmemcached;
+
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Serves the daemon's protocol on a Unix domain socket, for clients on the same host, which then skip the TCP stack.
+ * <p/>
+ * Netty has no transport for these sockets, so each connection accepted on the path is joined to a pipeline from
+ * the daemon's own pipeline factory over Netty's in-VM transport: a thread per connection reads from the socket and
+ * passes what it reads on, and responses are written back to the socket by whichever thread produced them. As each
+ * connection costs a thread, only so many are served at once; connections past that are closed as soon as they are
+ * accepted.
+ * <p/>
+ * The JDK's Unix domain socket channels (Java 16 and later) are reached by reflection, so the daemon still builds
+ * and runs on older JDKs, which just can't listen on a path.
+ */
+final class UnixSocketListener implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(UnixSocketListener.class);
+
+    /**
+     * Bytes read from a connection's socket at a time
+     */
+    static final int READ_BUFFER_BYTES = 16 * 1024;
+
+    private final File path;
+    private final ServerSocketChannel serverChannel;
+    private final ThreadFactory threadFactory;
+    private final Semaphore connections;
+    private final LocalAddress localAddress;
+    private final DefaultLocalClientChannelFactory clientChannelFactory = new DefaultLocalClientChannelFactory();
+
+    /**
+     * Bind the path, and the in-VM channel its connections are joined to, without accepting anything yet.
+     *
+     * @param path the socket path; a socket left there by an earlier run, which no longer accepts connections, is
+     * replaced
+     * @param pipelineFactory the pipelines to serve connections with
+     * @param allChannels where to keep the in-VM server channel, to be closed with the daemon's others
+     * @param threadFactory factory for the accepting thread and each connection's reading thread
+     * @param maxConnections the number of connections to serve at once
+     * @throws IOException if something other than a stale socket is at the path, or the path can't be bound
+     */
+    UnixSocketListener(File path, ChannelPipelineFactory pipelineFactory, ChannelGroup allChannels, ThreadFactory threadFactory,
+                       int maxConnections) throws IOException {
+        this.path = path;
+        this.threadFactory = threadFactory;
+        this.connections = new Semaphore(maxConnections);
+
+        removeStaleSocket(path);
+        serverChannel = bind(path);
+
+        localAddress = new LocalAddress("jmemcached:" + path.getAbsolutePath());
+        ServerBootstrap bootstrap = new ServerBootstrap(new DefaultLocalServerChannelFactory());
+        bootstrap.setPipelineFactory(pipelineFactory);
+        allChannels.add(bootstrap.bind(localAddress));
+    }
+
+    /**
+     * Start accepting connections
+     */
+    void start() {
+        threadFactory.newThread(this).start();
+    }
+
+    public void run() {
+        while (serverChannel.isOpen()) {
+            SocketChannel socket;
+            try {
+                socket = serverChannel.accept();
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) log.error("failed to accept on " + path, e);
+                return;
+            }
+
+            if (!connections.tryAcquire()) {
+                log.warn("refusing a connection on " + path + "; already serving as many as allowed");
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    log.warn("failed to close connection on " + path, e);
+                }
+                continue;
+            }
+            threadFactory.newThread(new Connection(socket)).start();
+        }
+    }
+
+    /**
+     * Stop accepting connections and remove the socket file. Connections already made are closed along with the
+     * daemon's channels.
+     */
+    void close() throws IOException {
+        try {
+            serverChannel.close();
+        } finally {
+            path.delete();
+        }
+    }
+
+    /**
+     * A connection accepted on the path, and the in-VM channel it is joined to the protocol pipeline by.
+     */
+    private final class Connection extends SimpleChannelUpstreamHandler implements Runnable {
+        private final SocketChannel socket;
+
+        Connection(SocketChannel socket) {
+            this.socket = socket;
+        }
+
+        public void run() {
+            Channel channel = clientChannelFactory.newChannel(Channels.pipeline(this));
+            try {
+                if (!channel.connect(localAddress).awaitUninterruptibly().isSuccess()) return;
+
+                // the pipeline may hold on to what it is given, so it gets a copy of just the bytes read
+                ByteBuffer read = ByteBuffer.allocate(READ_BUFFER_BYTES);
+                for (;;) {
+                    read.clear();
+                    if (socket.read(read) == -1) break;
+
+                    read.flip();
+                    if (read.hasRemaining()) channel.write(ChannelBuffers.copiedBuffer(read));
+                }
+            } catch (IOException e) {
+                // the client went away, or the pipeline closed the socket
+            } finally {
+                channel.close();
+                closeSocket();
+                connections.release();
+            }
+        }
+
+        /**
+         * A response from the pipeline, which goes straight out on the socket
+         */
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            ByteBuffer response = ((ChannelBuffer) e.getMessage()).toByteBuffer();
+            synchronized (socket) {
+                while (response.hasRemaining()) socket.write(response);
+            }
+        }
+
+        /**
+         * The pipeline ended the connection, as quit does
+         */
+        @Override
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            closeSocket();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+            closeSocket();
+            ctx.getChannel().close();
+        }
+
+        private void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.warn("failed to close connection on " + path, e);
+            }
+        }
+    }
+
+    /**
+     * Remove the socket an earlier run left at a path, so that it can be bound again. Anything else there is left
+     * alone: a regular file or directory, or a socket some other process is still accepting connections on.
+     *
+     * @throws IOException if the path is taken by something other than a stale socket
+     */
+    static void removeStaleSocket(File path) throws IOException {
+        if (!path.exists()) return;
+        if (path.isFile() || path.isDirectory())
+            throw new IOException(path + " exists and is not a socket");
+
+        SocketChannel probe = (SocketChannel) open(SocketChannel.class);
+        try {
+            SocketChannel.class.getMethod("connect", SocketAddress.class).invoke(probe, address(path));
+        } catch (InvocationTargetException e) {
+            // refused: nothing is listening, so the socket is stale
+            if (!(e.getCause() instanceof IOException)) throw failure(e.getCause());
+            if (!path.delete()) throw new IOException("failed to remove stale socket " + path);
+            return;
+        } catch (Exception e) {
+            throw failure(e);
+        } finally {
+            probe.close();
+        }
+        throw new IOException(path + " is in use by another listener");
+    }
+
+    /**
+     * Open a server socket channel bound to a Unix domain socket path.
+     *
+     * @throws IOException if the path can't be bound, or the JDK has no Unix domain sockets
+     */
+    static ServerSocketChannel bind(File path) throws IOException {
+        ServerSocketChannel channel = (ServerSocketChannel) open(ServerSocketChannel.class);
+        try {
+            ServerSocketChannel.class.getMethod("bind", SocketAddress.class).invoke(channel, address(path));
+            return channel;
+        } catch (InvocationTargetException e) {
+            channel.close();
+            throw failure(e.getCause());
+        } catch (Exception e) {
+            channel.close();
+            throw failure(e);
+        }
+    }
+
+    /**
+     * Open an unbound, unconnected Unix domain socket channel of the given class, SocketChannel or ServerSocketChannel
+     */
+    private static Object open(Class<?> channelClass) throws IOException {
+        try {
+            Class<?> protocolFamily = Class.forName("java.net.ProtocolFamily");
+            Object unix = Class.forName("java.net.StandardProtocolFamily").getField("UNIX").get(null);
+            return channelClass.getMethod("open", protocolFamily).invoke(null, unix);
+        } catch (InvocationTargetException e) {
+            throw failure(e.getCause());
+        } catch (Exception e) {
+            throw failure(new UnsupportedOperationException("Unix domain sockets need Java 16 or later"));
+        }
+    }
+
+    private static Object address(File path) throws IOException {
+        try {
+            return Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path.getPath());
+        } catch (InvocationTargetException e) {
+            throw failure(e.getCause());
+        } catch (Exception e) {
+            throw failure(new UnsupportedOperationException("Unix domain sockets need Java 16 or later"));
+        }
+    }
+
+    private static IOException failure(Throwable cause) {
+        if (cause instanceof IOException) return (IOException) cause;
+        IOException e = new IOException(String.valueOf(cause.getMessage()));
+        e.initCause(cause);
+        return e;
+    }
+}
@@ -0,0 +1,519 @@
+package com.thimbleware.jmemcached.persistence;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache storage which records its mutations in a write ahead log before applying them to the underlying storage.
+ *
+ * A mutation of a key is logged, synced (if the sync policy calls for it) and only then applied, all under a lock
+ * striped by key. So the log holds each key's mutations in the order the storage applied them, a mutation whose record
+ * couldn't be written is never applied, and under the ALWAYS policy no reader sees a write which the log could still
+ * lose. Writers to keys of different stripes still share fsyncs.
+ *
+ * Conditional mutations are checked against the storage before they are logged. Should the storage then refuse one
+ * all the same (the item was evicted in between, say), a record of what it holds instead follows.
+ *
+ * Until the log is opened, mutations pass through unlogged, which is what replay and snapshot loading want.
+ */
+public final class LoggedCacheStorage implements CacheStorage<Key, LocalCacheElement> {
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final CacheStorage<Key, LocalCacheElement> storage;
+    private final WriteAheadLog log;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    public LoggedCacheStorage(CacheStorage<Key, LocalCacheElement> storage, WriteAheadLog log) {
+        this.storage = storage;
+        this.log = log;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    private static int stripe(Object key) {
+        return key.hashCode() & (LOCK_STRIPES - 1);
+    }
+
+    private ReentrantLock lockFor(Object key) {
+        return locks[stripe(key)];
+    }
+
+    /**
+     * Take the stripe locks of all of some keys, in stripe order so that bulk mutations can't deadlock each other
+     *
+     * @return the locks taken, for {@link #unlock}
+     */
+    private List<ReentrantLock> lockAll(Key[] keys) {
+        boolean[] stripes = new boolean[LOCK_STRIPES];
+        for (Key key : keys) {
+            stripes[stripe(key)] = true;
+        }
+
+        List<ReentrantLock> held = new ArrayList<ReentrantLock>();
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            if (!stripes[i]) continue;
+            locks[i].lock();
+            held.add(locks[i]);
+        }
+        return held;
+    }
+
+    private static void unlock(List<ReentrantLock> held) {
+        for (int i = held.size() - 1; i >= 0; i--) {
+            held.get(i).unlock();
+        }
+    }
+
+    private boolean logging(Object key) {
+        return log.isOpen() && key instanceof Key && log.covers((Key) key);
+    }
+
+    private long logStore(Key key, LocalCacheElement value) throws IOException {
+        // a blocked element is a placeholder for a delayed delete; the item is gone as far as readers are concerned
+        return value.isBlocked() ? log.delete(key) : log.set(value);
+    }
+
+    /**
+     * Log whatever the storage holds for a key, after it refused a mutation which had already been logged
+     */
+    private long relog(Key key) throws IOException {
+        LocalCacheElement current = storage.get(key);
+        return current == null ? log.delete(key) : logStore(key, current);
+    }
+
+    /**
+     * Whether an item is still the version a conditional mutation expects. Every change to an item other than its
+     * expiry gets a new cas unique, so the data needn't be compared.
+     */
+    private static boolean matches(LocalCacheElement current, Object expected) {
+        if (current == null || !(expected instanceof LocalCacheElement)) return false;
+
+        LocalCacheElement e = (LocalCacheElement) expected;
+        return current.getCasUnique() == e.getCasUnique() && current.size() == e.size() && current.getFlags() == e.getFlags()
+                && current.getExpire() == e.getExpire() && current.isBlocked() == e.isBlocked();
+    }
+
+    private static RuntimeException logFailure(IOException e) {
+        return new RuntimeException("unable to write to the write ahead log", e);
+    }
+
+    public LocalCacheElement put(Key key, LocalCacheElement value) {
+        if (!logging(key)) return storage.put(key, value);
+
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            log.sync(logStore(key, value));
+            return storage.put(key, value);
+        } catch (IOException e) {
+            throw logFailure(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void set(Key key, LocalCacheElement value) {
+        if (!logging(key)) {
+            storage.set(key, value);
+            return;
+        }
+
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            log.sync(logStore(key, value));
+            storage.set(key, value);
+        } catch (IOException e) {
+            throw logFailure(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public LocalCacheElement putIfAbsent(Key key, LocalCacheElement value) {
+        if (!logging(key)) return storage.putIfAbsent(key, value);
+
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            LocalCacheElement old = storage.get(key);
+            if (old != null) return old;
+
+            log.sync(logStore(key, value));
+            old = storage.putIfAbsent(key, value);
+            if (old != null) log.sync(relog(key));
+            return old;
+        } catch (IOException e) {
+            throw logFailure(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean replace(Key key, LocalCacheElement original, LocalCacheElement replace) {
+        if (!logging(key)) return storage.replace(key, original, replace);
+
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            if (!matches(storage.get(key), original)) return false;
+
+            log.sync(logStore(key, replace));
+            boolean replaced = storage.replace(key, original, replace);
+            if (!replaced) log.sync(relog(key));
+            return replaced;
+        } catch (IOException e) {
+            throw logFailure(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public LocalCacheElement replace(Key key, LocalCacheElement value) {
+        if (!logging(key)) return storage.replace(key, value);
+
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            if (!storage.containsKey(key)) return null;
+
+            log.sync(logStore(key, value));
+            LocalCacheElement old = storage.replace(key, value);
+            if (old == null) log.sync(relog(key));
+            return old;
+        } catch (IOException e) {
+            throw logFailure(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Only the appended bytes are logged.
+     */
+    public boolean replaceAppended(Key key, LocalCacheElement original, LocalCacheElement replace, int appendedBytes) {
+        if (!logging(key)) return storage.replaceAppended(key, original, replace, appendedBytes);
+
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            if (!matches(storage.get(key), original)) return false;
+
+            log.sync(log.append(key, replace.getData().slice(replace.size() - appendedBytes, appendedBytes), replace.getCasUnique()));
+            boolean replaced = storage.replaceAppended(key, original, replace, appendedBytes);
+            if (!replaced) log.sync(relog(key));
+            return replaced;
+        } catch (IOException e) {
+            throw logFailure(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Only the prepended bytes are logged.
+     */
+    public boolean replacePrepended(Key key, LocalCacheElement original, LocalCacheElement replace, int prependedBytes) {
+        if (!logging(key)) return storage.replacePrepended(key, original, replace, prependedBytes);
+
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            if (!matches(storage.get(key), original)) return false;
+
+            log.sync(log.prepend(key, replace.getData().slice(0, prependedBytes), replace.getCasUnique()));
+            boolean replaced = storage.replacePrepended(key, original, replace, prependedBytes);
+            if (!replaced) log.sync(relog(key));
+            return replaced;
+        } catch (IOException e) {
+            throw logFailure(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public LocalCacheElement remove(Object key) {
+        if (!logging(key)) return storage.remove(key);
+
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            if (!storage.containsKey(key)) return null;
+
+            // should the item vanish before it is removed, the delete is still true of it
+            log.sync(log.delete((Key) key));
+            return storage.remove(key);
+        } catch (IOException e) {
+            throw logFailure(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean remove(Object key, Object value) {
+        if (!logging(key)) return storage.remove(key, value);
+
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            if (!matches(storage.get(key), value)) return false;
+
+            log.sync(log.delete((Key) key));
+            boolean removed = storage.remove(key, value);
+            if (!removed) log.sync(relog((Key) key));
+            return removed;
+        } catch (IOException e) {
+            throw logFailure(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The stripe locks of all the keys are held while the entries are logged, the log is synced once for the lot, and
+     * then the entries are stored together.
+     */
+    public void putAll(Key[] keys, LocalCacheElement[] values) {
+        if (!log.isOpen()) {
+            storage.putAll(keys, values);
+            return;
+        }
+
+        List<ReentrantLock> held = lockAll(keys);
+        try {
+            long seq = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (logging(keys[i])) seq = logStore(keys[i], values[i]);
+            }
+            log.sync(seq);
+            storage.putAll(keys, values);
+        } catch (IOException e) {
+            throw logFailure(e);
+        } finally {
+            unlock(held);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * As {@link #putAll(Key[], LocalCacheElement[])}, for removals.
+     */
+    public void removeAll(Key[] keys, boolean[] removed) {
+        if (!log.isOpen()) {
+            storage.removeAll(keys, removed);
+            return;
+        }
+
+        List<ReentrantLock> held = lockAll(keys);
+        try {
+            long seq = 0;
+            for (Key key : keys) {
+                if (logging(key) && storage.containsKey(key)) seq = log.delete(key);
+            }
+            log.sync(seq);
+            storage.removeAll(keys, removed);
+        } catch (IOException e) {
+            throw logFailure(e);
+        } finally {
+            unlock(held);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * As {@link #putAll(Key[], LocalCacheElement[])}; any replacement the storage then refuses is followed in the log
+     * by what it holds instead.
+     */
+    public void replaceAll(Key[] keys, LocalCacheElement[] originals, LocalCacheElement[] replacements, boolean[] replaced) {
+        if (!log.isOpen()) {
+            storage.replaceAll(keys, originals, replacements, replaced);
+            return;
+        }
+
+        List<ReentrantLock> held = lockAll(keys);
+        try {
+            boolean[] logged = new boolean[keys.length];
+            long seq = 0;
+            LocalCacheElement[] current = new LocalCacheElement[keys.length];
+            storage.getAll(keys, current);
+            for (int i = 0; i < keys.length; i++) {
+                if (originals[i] == null || !logging(keys[i]) || !matches(current[i], originals[i])) continue;
+                seq = logStore(keys[i], replacements[i]);
+                logged[i] = true;
+            }
+            log.sync(seq);
+
+            storage.replaceAll(keys, originals, replacements, replaced);
+            log.sync(relogRefused(keys, logged, replaced));
+        } catch (IOException e) {
+            throw logFailure(e);
+        } finally {
+            unlock(held);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * As {@link #replaceAll}, with only the new expiry logged.
+     */
+    public void touchAll(Key[] keys, LocalCacheElement[] originals, LocalCacheElement[] touched, boolean[] replaced) {
+        if (!log.isOpen()) {
+            storage.touchAll(keys, originals, touched, replaced);
+            return;
+        }
+
+        List<ReentrantLock> held = lockAll(keys);
+        try {
+            boolean[] logged = new boolean[keys.length];
+            long seq = 0;
+            LocalCacheElement[] current = new LocalCacheElement[keys.length];
+            storage.getAll(keys, current);
+            for (int i = 0; i < keys.length; i++) {
+                if (originals[i] == null || !logging(keys[i]) || !matches(current[i], originals[i])) continue;
+                seq = log.touch(keys[i], touched[i].getExpire(), touched[i].getCasUnique());
+                logged[i] = true;
+            }
+            log.sync(seq);
+
+            storage.touchAll(keys, originals, touched, replaced);
+            log.sync(relogRefused(keys, logged, replaced));
+        } catch (IOException e) {
+            throw logFailure(e);
+        } finally {
+            unlock(held);
+        }
+    }
+
+    /**
+     * After a bulk conditional mutation, log what the storage holds for any logged key whose outcome wasn't the one
+     * logged
+     *
+     * @return the sequence number of the last record written, or 0 if there were none
+     */
+    private long relogRefused(Key[] keys, boolean[] logged, boolean[] replaced) throws IOException {
+        long seq = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (logging(keys[i]) && logged[i] != replaced[i]) seq = relog(keys[i]);
+        }
+        return seq;
+    }
+
+    public void putAll(Map<? extends Key, ? extends LocalCacheElement> map) {
+        for (Entry<? extends Key, ? extends LocalCacheElement> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public void clear() {
+        if (!log.isOpen()) {
+            storage.clear();
+            return;
+        }
+
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+        try {
+            log.sync(log.flush());
+            storage.clear();
+        } catch (IOException e) {
+            throw logFailure(e);
+        } finally {
+            for (ReentrantLock lock : locks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    public LocalCacheElement get(Object key) {
+        return storage.get(key);
+    }
+
+    public void getAll(Key[] keys, LocalCacheElement[] values) {
+        storage.getAll(keys, values);
+    }
+
+    public boolean containsKey(Object key) {
+        return storage.containsKey(key);
+    }
+
+    public boolean containsValue(Object value) {
+        return storage.containsValue(value);
+    }
+
+    public int size() {
+        return storage.size();
+    }
+
+    public boolean isEmpty() {
+        return storage.isEmpty();
+    }
+
+    public Set<Key> keySet() {
+        return storage.keySet();
+    }
+
+    public Collection<LocalCacheElement> values() {
+        return storage.values();
+    }
+
+    public Set<Entry<Key, LocalCacheElement>> entrySet() {
+        return storage.entrySet();
+    }
+
+    public long getMemoryCapacity() {
+        return storage.getMemoryCapacity();
+    }
+
+    public long getMemoryUsed() {
+        return storage.getMemoryUsed();
+    }
+
+    public int capacity() {
+        return storage.capacity();
+    }
+
+    public boolean retainsValues() {
+        return storage.retainsValues();
+    }
+
+    public Map<String, String> getStats() {
+        return storage.getStats();
+    }
+
+    public int getPartitionCount() {
+        return storage.getPartitionCount();
+    }
+
+    public Collection<LocalCacheElement> copyPartition(int partition) {
+        return storage.copyPartition(partition);
+    }
+
+    public void close() throws IOException {
+        try {
+            storage.close();
+        } finally {
+            log.close();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.thimbleware.jmemcached.persistence;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Point in time snapshot of the contents of a cache storage, in a file.
+ *
+ * The file is a header followed by independently checksummed sections, each holding some of the items of one
+ * partition of the storage:
+ * <pre>
+ *   int    magic
+ *   int    version
+ *   section*:
+ *     int    number of items
+ *     int    length of the items in bytes
+ *     item*:
+ *       int    key length, byte[] key
+ *       int    flags
+ *       long   expiry
+ *       long   cas unique
+ *       int    data length, byte[] data
+ *     long   CRC32 of the items
+ * </pre>
+ *
+ * Partitions are copied out of the storage one at a time, so at most one partition is locked by a dump at any moment;
+ * encoding, checksumming and writing happen in parallel with that. Loading decodes and stores sections in parallel.
+ */
+public final class Snapshot {
+
+    private static final int MAGIC = 0x4a4d5353;
+    private static final int VERSION = 1;
+
+    /**
+     * Sections are cut at this size, to bound the memory needed to write or load one
+     */
+    static final int MAX_SECTION_BYTES = 16 * 1024 * 1024;
+
+    private final File file;
+    private final int threads;
+
+    private final AtomicLong maxCasUnique = new AtomicLong();
+
+    public Snapshot(File file) {
+        this(file, Runtime.getRuntime().availableProcessors());
+    }
+
+    public Snapshot(File file, int threads) {
+        this.file = file;
+        this.threads = threads;
+    }
+
+    /**
+     * Write the contents of the storage to the snapshot file. The file is written under a temporary name and moved
+     * into place once complete, so an existing snapshot is never left half overwritten.
+     *
+     * @param storage the storage to dump
+     * @return the number of items written
+     * @throws IOException on failure to write the file
+     */
+    public int dump(final CacheStorage<Key, LocalCacheElement> storage) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(tmp);
+        final FileChannel channel = out.getChannel();
+
+        final AtomicInteger items = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // bounds the number of copied partitions waiting to be written
+        final Semaphore inFlight = new Semaphore(threads);
+        try {
+            ChannelBuffer header = ChannelBuffers.buffer(8);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            write(channel, header);
+
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < storage.getPartitionCount(); i++) {
+                inFlight.acquireUninterruptibly();
+                final Collection<LocalCacheElement> values;
+                try {
+                    values = storage.copyPartition(i);
+                } catch (RuntimeException e) {
+                    inFlight.release();
+                    throw e;
+                }
+
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        try {
+                            items.addAndGet(writeSections(channel, values));
+                            return null;
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                }));
+            }
+
+            await(futures);
+            channel.force(true);
+        } finally {
+            executor.shutdown();
+            out.close();
+        }
+
+        if (file.exists() && !file.delete())
+            throw new IOException("unable to replace snapshot " + file);
+        if (!tmp.renameTo(file))
+            throw new IOException("unable to move snapshot into place at " + file);
+
+        return items.get();
+    }
+
+    private int writeSections(FileChannel channel, Collection<LocalCacheElement> values) throws IOException {
+        ChannelBuffer section = newSection();
+        int count = 0;
+        int written = 0;
+        for (LocalCacheElement element : values) {
+            // pending deletes are not carried over
+            if (element.isBlocked()) continue;
+
+            ChannelBuffer key = element.getKey().bytes;
+            ChannelBuffer data = element.getData();
+            section.writeInt(key.capacity());
+            section.writeBytes(key, 0, key.capacity());
+            section.writeInt(element.getFlags());
+            section.writeLong(element.getExpire());
+            section.writeLong(element.getCasUnique());
+            section.writeInt(element.size());
+            section.writeBytes(data, data.readerIndex(), element.size());
+            count++;
+
+            if (section.readableBytes() >= MAX_SECTION_BYTES) {
+                writeSection(channel, section, count);
+                written += count;
+                section = newSection();
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            writeSection(channel, section, count);
+            written += count;
+        }
+        return written;
+    }
+
+    private static ChannelBuffer newSection() {
+        ChannelBuffer section = ChannelBuffers.dynamicBuffer(64 * 1024);
+        section.writerIndex(8);
+        section.readerIndex(8);
+        return section;
+    }
+
+    private static void writeSection(FileChannel channel, ChannelBuffer section, int count) throws IOException {
+        int length = section.readableBytes();
+
+        CRC32 crc = new CRC32();
+        crc.update(section.array(), section.arrayOffset() + section.readerIndex(), length);
+        section.writeLong(crc.getValue());
+
+        // fill in the section header in the room left for it
+        section.setInt(0, count);
+        section.setInt(4, length);
+        section.readerIndex(0);
+
+        synchronized (channel) {
+            write(channel, section);
+        }
+    }
+
+    private static void write(FileChannel channel, ChannelBuffer buffer) throws IOException {
+        ByteBuffer bytes = buffer.toByteBuffer();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+     * Load the snapshot file into the storage. Sections are checked and stored in parallel.
+     *
+     * @param storage the storage to load into
+     * @param now the current time, in the units of item expiry; items which have expired by then are skipped
+     * @return the number of items loaded
+     * @throws IOException on failure to read the file, or if it is corrupt
+     */
+    public int load(final CacheStorage<Key, LocalCacheElement> storage, final long now) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+
+        final AtomicInteger items = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // bounds the number of sections read but not yet stored
+        final Semaphore inFlight = new Semaphore(threads * 2);
+        try {
+            if (in.readInt() != MAGIC) throw new IOException(file + " is not a snapshot");
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("unsupported snapshot version " + version);
+
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            while (true) {
+                final int count;
+                try {
+                    count = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int length = in.readInt();
+                if (count < 0 || length < 0 || length > MAX_SECTION_BYTES * 2)
+                    throw new IOException("corrupt snapshot section header in " + file);
+
+                final byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                final long checksum = in.readLong();
+
+                inFlight.acquireUninterruptibly();
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        try {
+                            items.addAndGet(loadSection(storage, bytes, count, checksum, now));
+                            return null;
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                }));
+            }
+
+            await(futures);
+        } finally {
+            executor.shutdown();
+            in.close();
+        }
+
+        return items.get();
+    }
+
+    private int loadSection(CacheStorage<Key, LocalCacheElement> storage, byte[] bytes, int count, long checksum, long now) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if (crc.getValue() != checksum) throw new IOException("checksum mismatch in snapshot " + file);
+
+        ChannelBuffer section = ChannelBuffers.wrappedBuffer(bytes);
+        int loaded = 0;
+        for (int i = 0; i < count; i++) {
+            Key key = new Key(section.readBytes(section.readInt()));
+            int flags = section.readInt();
+            long expire = section.readLong();
+            long casUnique = section.readLong();
+            ChannelBuffer data = section.readBytes(section.readInt());
+
+            if (expire != 0 && expire < now) continue;
+
+            LocalCacheElement element = new LocalCacheElement(key, flags, expire, casUnique);
+            element.setData(data);
+            storage.set(key, element);
+            loaded++;
+
+            long max;
+            while (casUnique > (max = maxCasUnique.get()) && !maxCasUnique.compareAndSet(max, casUnique));
+        }
+        return loaded;
+    }
+
+    /**
+     * @return the largest cas unique of the items loaded so far
+     */
+    public long getMaxCasUnique() {
+        return maxCasUnique.get();
+    }
+
+    private static void await(List<Future<?>> futures) throws IOException {
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during snapshot");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException("snapshot failed: " + cause);
+        }
+    }
+}
@@ -0,0 +1,467 @@
+package com.thimbleware.jmemcached.persistence;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of cache mutations, replayed into the storage on startup.
+ *
+ * Each record is framed as:
+ * <pre>
+ *   int    length of the payload
+ *   int    CRC32 of the payload
+ *   byte   type
+ *   long   cas unique
+ *   int    key length, byte[] key
+ *   SET:              int flags, long expiry, int data length, byte[] data
+ *   APPEND, PREPEND:  int data length, byte[] data
+ *   TOUCH:            long expiry
+ *   DELETE, FLUSH:    nothing further
+ * </pre>
+ * Replay stops at the first short or corrupt record, which is where a crash interrupted the last write; a length which
+ * runs past the end of the file marks such a record before anything is allocated for it.
+ *
+ * How hard the log is pushed to disk is set by the {@link SyncPolicy}. Under ALWAYS, writers wait for an fsync which
+ * covers their record; whichever writer gets to the disk first syncs everything written so far on behalf of the others
+ * (group commit), so concurrent writers share fsyncs rather than queueing for one each.
+ */
+public final class WriteAheadLog {
+
+    final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    /**
+     * When the log is forced to disk
+     */
+    public static enum SyncPolicy {
+        /**
+         * never; records survive a process crash, but not necessarily an OS crash
+         */
+        NONE,
+        /**
+         * periodically, from a background thread
+         */
+        INTERVAL,
+        /**
+         * before a mutation is acknowledged
+         */
+        ALWAYS
+    }
+
+    static final byte SET = 1;
+    static final byte DELETE = 2;
+    static final byte APPEND = 3;
+    static final byte PREPEND = 4;
+    static final byte FLUSH = 5;
+    static final byte TOUCH = 6;
+
+    private final File file;
+    private final SyncPolicy syncPolicy;
+    private final long syncIntervalMillis;
+    private final List<byte[]> prefixes = new ArrayList<byte[]>();
+
+    private FileOutputStream out;
+    private FileChannel channel;
+    private ScheduledExecutorService syncer;
+
+    // orders writes to the log; guards written and end
+    private final Object writeLock = new Object();
+    private long written;
+    private long end;
+
+    // held by the writer performing a sync on behalf of the others
+    private final Object syncLock = new Object();
+    private volatile long synced;
+
+    private long maxCasUnique;
+
+    /**
+     * @param file the log file
+     * @param syncPolicy when to force the log to disk
+     * @param syncIntervalMillis time between syncs, under the INTERVAL policy
+     */
+    public WriteAheadLog(File file, SyncPolicy syncPolicy, long syncIntervalMillis) {
+        this.file = file;
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    /**
+     * Restrict the log to keys starting with the given prefix. May be called several times; with no prefixes, every
+     * key is logged.
+     *
+     * @param prefix the key prefix
+     */
+    public void addPrefix(String prefix) {
+        prefixes.add(prefix.getBytes());
+    }
+
+    /**
+     * @param key a key
+     * @return true if mutations of the key are logged
+     */
+    public boolean covers(Key key) {
+        if (prefixes.isEmpty()) return true;
+
+        ChannelBuffer bytes = key.bytes;
+        for (byte[] prefix : prefixes) {
+            if (bytes.capacity() >= prefix.length) {
+                int i = 0;
+                while (i < prefix.length && bytes.getByte(i) == prefix[i]) i++;
+                if (i == prefix.length) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true once the log has been opened for writing
+     */
+    public boolean isOpen() {
+        return channel != null;
+    }
+
+    /**
+     * Apply the records in the log file, if there is one, to the storage.
+     *
+     * @param storage the storage to replay into
+     * @param now the current time, in the units of item expiry; items which have expired by then are skipped
+     * @return the number of records applied
+     * @throws IOException on failure to read the log
+     */
+    public int replay(CacheStorage<Key, LocalCacheElement> storage, long now) throws IOException {
+        if (!file.exists()) return 0;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        long remaining = file.length();
+        int records = 0;
+        try {
+            while (true) {
+                byte[] payload;
+                int checksum;
+                try {
+                    int length = in.readInt();
+                    checksum = in.readInt();
+                    remaining -= 8;
+                    // a torn tail can hold any length at all
+                    if (length < 0 || length > remaining) break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    remaining -= length;
+                } catch (EOFException e) {
+                    break;
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) break;
+
+                apply(storage, ChannelBuffers.wrappedBuffer(payload), now);
+                records++;
+            }
+        } finally {
+            in.close();
+        }
+
+        if (records > 0) logger.info("replayed " + records + " records from " + file);
+        return records;
+    }
+
+    private void apply(CacheStorage<Key, LocalCacheElement> storage, ChannelBuffer record, long now) {
+        byte type = record.readByte();
+        long casUnique = record.readLong();
+        maxCasUnique = Math.max(maxCasUnique, casUnique);
+        Key key = new Key(record.readBytes(record.readInt()));
+
+        switch (type) {
+            case SET: {
+                int flags = record.readInt();
+                long expire = record.readLong();
+                ChannelBuffer data = record.readBytes(record.readInt());
+                if (expire != 0 && expire < now) {
+                    storage.remove(key);
+                } else {
+                    LocalCacheElement element = new LocalCacheElement(key, flags, expire, casUnique);
+                    element.setData(data);
+                    storage.set(key, element);
+                }
+                break;
+            }
+            case APPEND:
+            case PREPEND: {
+                ChannelBuffer data = record.readBytes(record.readInt());
+                LocalCacheElement old = storage.get(key);
+                if (old != null) {
+                    LocalCacheElement change = new LocalCacheElement(key);
+                    change.setData(data);
+                    LocalCacheElement replace = type == APPEND ? old.append(change) : old.prepend(change);
+                    replace.setCasUnique(casUnique);
+                    if (type == APPEND)
+                        storage.replaceAppended(key, old, replace, data.capacity());
+                    else
+                        storage.replacePrepended(key, old, replace, data.capacity());
+                }
+                break;
+            }
+            case TOUCH: {
+                long expire = record.readLong();
+                LocalCacheElement old = storage.get(key);
+                if (old != null) {
+                    if (expire != 0 && expire < now) storage.remove(key);
+                    else storage.replace(key, old, old.touch(expire));
+                }
+                break;
+            }
+            case DELETE:
+                storage.remove(key);
+                break;
+            case FLUSH:
+                storage.clear();
+                break;
+        }
+    }
+
+    /**
+     * @return the largest cas unique seen in replay
+     */
+    public long getMaxCasUnique() {
+        return maxCasUnique;
+    }
+
+    /**
+     * Replace the log with one holding just the current contents of the storage, then open it for writing.
+     *
+     * @param storage the storage, after replay
+     * @param now the current time, in the units of item expiry; items which have expired by then are left out
+     * @throws IOException on failure to write the log
+     */
+    public void compactAndOpen(CacheStorage<Key, LocalCacheElement> storage, long now) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream compacted = new FileOutputStream(tmp);
+        try {
+            FileChannel compactedChannel = compacted.getChannel();
+            for (int i = 0; i < storage.getPartitionCount(); i++) {
+                for (LocalCacheElement element : storage.copyPartition(i)) {
+                    if (element.isBlocked() || (element.getExpire() != 0 && element.getExpire() < now) || !covers(element.getKey()))
+                        continue;
+                    write(compactedChannel, setRecord(element));
+                }
+            }
+            compactedChannel.force(true);
+        } finally {
+            compacted.close();
+        }
+
+        if (file.exists() && !file.delete())
+            throw new IOException("unable to replace log " + file);
+        if (!tmp.renameTo(file))
+            throw new IOException("unable to move compacted log into place at " + file);
+
+        out = new FileOutputStream(file, true);
+        channel = out.getChannel();
+        synchronized (writeLock) {
+            end = channel.size();
+        }
+
+        if (syncPolicy == SyncPolicy.INTERVAL) {
+            syncer = Executors.newSingleThreadScheduledExecutor();
+            syncer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        syncAll();
+                    } catch (IOException e) {
+                        logger.error("failed to sync log", e);
+                    }
+                }
+            }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Log the storing of an element
+     * @return the sequence number of the record, for sync
+     */
+    public long set(LocalCacheElement element) throws IOException {
+        return append(setRecord(element));
+    }
+
+    /**
+     * Log the removal of a key
+     * @return the sequence number of the record, for sync
+     */
+    public long delete(Key key) throws IOException {
+        return append(seal(record(DELETE, 0L, key, 0)));
+    }
+
+    /**
+     * Log data appended to an element
+     * @return the sequence number of the record, for sync
+     */
+    public long append(Key key, ChannelBuffer data, long casUnique) throws IOException {
+        return append(changeRecord(APPEND, key, data, casUnique));
+    }
+
+    /**
+     * Log data prepended to an element
+     * @return the sequence number of the record, for sync
+     */
+    public long prepend(Key key, ChannelBuffer data, long casUnique) throws IOException {
+        return append(changeRecord(PREPEND, key, data, casUnique));
+    }
+
+    /**
+     * Log a change of an element's expiry
+     * @return the sequence number of the record, for sync
+     */
+    public long touch(Key key, long expire, long casUnique) throws IOException {
+        ChannelBuffer record = record(TOUCH, casUnique, key, 8);
+        record.writeLong(expire);
+        return append(seal(record));
+    }
+
+    /**
+     * Log the removal of all elements
+     * @return the sequence number of the record, for sync
+     */
+    public long flush() throws IOException {
+        return append(seal(record(FLUSH, 0L, new Key(ChannelBuffers.EMPTY_BUFFER), 0)));
+    }
+
+    /**
+     * Wait until the record with the given sequence number is on disk, if the sync policy calls for it.
+     *
+     * @param seq the sequence number returned when the record was logged
+     * @throws IOException on failure to sync the log
+     */
+    public void sync(long seq) throws IOException {
+        if (syncPolicy != SyncPolicy.ALWAYS || synced >= seq) return;
+
+        synchronized (syncLock) {
+            // someone else's sync may have covered us while we waited
+            if (synced >= seq) return;
+            force();
+        }
+    }
+
+    private void syncAll() throws IOException {
+        synchronized (syncLock) {
+            force();
+        }
+    }
+
+    private void force() throws IOException {
+        long upTo;
+        synchronized (writeLock) {
+            upTo = written;
+        }
+        if (upTo > synced) {
+            channel.force(false);
+            synced = upTo;
+        }
+    }
+
+    /**
+     * Write a record at the end of the log. Should the write fail part way, the log is cut back to where the record
+     * started, so that the records after it aren't lost behind a torn one on replay.
+     */
+    private long append(ChannelBuffer record) throws IOException {
+        synchronized (writeLock) {
+            try {
+                write(channel, record);
+            } catch (IOException e) {
+                try {
+                    channel.truncate(end);
+                } catch (IOException ignored) {
+                    // the original failure is the one worth reporting
+                }
+                throw e;
+            }
+            end += record.readableBytes();
+            return ++written;
+        }
+    }
+
+    private static ChannelBuffer setRecord(LocalCacheElement element) {
+        ChannelBuffer data = element.getData();
+        int size = element.size();
+
+        ChannelBuffer record = record(SET, element.getCasUnique(), element.getKey(), 16 + size);
+        record.writeInt(element.getFlags());
+        record.writeLong(element.getExpire());
+        record.writeInt(size);
+        record.writeBytes(data, data.readerIndex(), size);
+        return seal(record);
+    }
+
+    private static ChannelBuffer changeRecord(byte type, Key key, ChannelBuffer data, long casUnique) {
+        int size = data.readableBytes();
+
+        ChannelBuffer record = record(type, casUnique, key, 4 + size);
+        record.writeInt(size);
+        record.writeBytes(data, data.readerIndex(), size);
+        return seal(record);
+    }
+
+    /**
+     * Start a record, leaving room for its frame and reserving room for the given number of bytes of body
+     */
+    private static ChannelBuffer record(byte type, long casUnique, Key key, int body) {
+        ChannelBuffer keyBytes = key.bytes;
+        ChannelBuffer record = ChannelBuffers.buffer(8 + 1 + 8 + 4 + keyBytes.capacity() + body);
+        record.writerIndex(8);
+        record.writeByte(type);
+        record.writeLong(casUnique);
+        record.writeInt(keyBytes.capacity());
+        record.writeBytes(keyBytes, 0, keyBytes.capacity());
+        return record;
+    }
+
+    /**
+     * Fill in the frame of a completed record
+     */
+    private static ChannelBuffer seal(ChannelBuffer record) {
+        int length = record.writerIndex() - 8;
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), record.arrayOffset() + 8, length);
+        record.setInt(0, length);
+        record.setInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    private static void write(FileChannel channel, ChannelBuffer buffer) throws IOException {
+        ByteBuffer bytes = buffer.toByteBuffer();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+     * Sync and close the log
+     * @throws IOException on failure to sync the log
+     */
+    public void close() throws IOException {
+        if (syncer != null) syncer.shutdown();
+        if (channel == null) return;
+
+        try {
+            if (syncPolicy != SyncPolicy.NONE) syncAll();
+        } finally {
+            out.close();
+            channel = null;
+        }
+    }
+}
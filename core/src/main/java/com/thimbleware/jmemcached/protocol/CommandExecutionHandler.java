@@ -0,0 +1,74 @@
+package com.thimbleware.jmemcached.protocol;
+
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import org.jboss.netty.util.DefaultObjectSizeEstimator;
+import org.jboss.netty.util.ObjectSizeEstimator;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands decoded commands over from the I/O threads to a pool of command threads, so that an expensive command only
+ * holds up its own connection. Events for a channel are executed in the order they arrived, one at a time.
+ * <p/>
+ * The pool accounts for the memory held by queued commands; once a channel (or all of them together) has more than
+ * its share queued, reads stop until the backlog drains.
+ * <p/>
+ * Commands are detached from the decoder's buffers on the way through, as the decoder is free to reuse them as soon
+ * as the command has been handed over.
+ */
+@ChannelHandler.Sharable
+public final class CommandExecutionHandler extends ExecutionHandler {
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * @param threads number of command threads
+     * @param maxChannelMemorySize bytes of queued commands per channel above which its reads are suspended; 0 for no
+     * limit
+     * @param maxTotalMemorySize bytes of queued commands overall above which reads are suspended; 0 for no limit
+     * @param threadFactory factory for the command threads
+     */
+    public CommandExecutionHandler(int threads, long maxChannelMemorySize, long maxTotalMemorySize, ThreadFactory threadFactory) {
+        super(new OrderedMemoryAwareThreadPoolExecutor(threads, maxChannelMemorySize, maxTotalMemorySize,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new CommandSizeEstimator(), threadFactory));
+    }
+
+    /**
+     * @param executor the executor to run commands on, which has to keep each channel's events in order, as
+     * {@link ConnectionExecutor} does
+     */
+    public CommandExecutionHandler(Executor executor) {
+        super(executor);
+    }
+
+    @Override
+    public void handleUpstream(ChannelHandlerContext context, ChannelEvent e) throws Exception {
+        if (e instanceof MessageEvent && ((MessageEvent) e).getMessage() instanceof CommandMessage) {
+            ((CommandMessage) ((MessageEvent) e).getMessage()).detach();
+        }
+        super.handleUpstream(context, e);
+    }
+
+    /**
+     * Sizes commands by the keys and data they carry, which the default estimator can't see into.
+     */
+    private static final class CommandSizeEstimator implements ObjectSizeEstimator {
+        private final ObjectSizeEstimator fallback = new DefaultObjectSizeEstimator();
+
+        public int estimateSize(Object o) {
+            Object event = o instanceof ChannelEventRunnable ? ((ChannelEventRunnable) o).getEvent() : o;
+            if (event instanceof MessageEvent && ((MessageEvent) event).getMessage() instanceof CommandMessage) {
+                return ((CommandMessage) ((MessageEvent) event).getMessage()).estimateSize();
+            }
+            return fallback.estimateSize(o);
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.thimbleware.jmemcached.protocol;
 import com.thimbleware.jmemcached.CacheElement;
 import com.thimbleware.jmemcached.Key;
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -41,6 +42,21 @@ public final class CommandMessage<CACHE_ELEMENT extends CacheElement> implements
     public int incrExpiry;
     public int incrAmount;
 
+    /**
+     * The new expiry given to touch, gat and gats, in the form elements carry it
+     */
+    public long expire;
+
+    /**
+     * The flags of a meta command; null for the others
+     */
+    public MetaFlags meta;
+
+    /**
+     * Commands of the same op which arrived straight after this one, to be executed together with it; null if none
+     */
+    public List<CommandMessage<CACHE_ELEMENT>> batch;
+
     private CommandMessage(Op op) {
         this.op = op;
         element = null;
@@ -58,6 +74,44 @@ public final class CommandMessage<CACHE_ELEMENT extends CacheElement> implements
         }
     }
 
+    /**
+     * Copy the key and element bytes out of the buffers they were decoded from, so that the command can be executed
+     * after the decoder has moved on and reused them.
+     */
+    @SuppressWarnings("unchecked")
+    public void detach() {
+        if (element != null) element = (CACHE_ELEMENT) element.copy();
+        if (keys != null) {
+            for (int i = 0; i < keys.size(); i++) {
+                keys.set(i, new Key(ChannelBuffers.copiedBuffer(keys.get(i).bytes)));
+            }
+        }
+        if (batch != null) {
+            for (CommandMessage<CACHE_ELEMENT> command : batch) {
+                command.detach();
+            }
+        }
+    }
+
+    /**
+     * @return roughly the number of bytes of memory the command holds on to
+     */
+    public int estimateSize() {
+        int size = 64;
+        if (element != null) size += element.size() + element.getKey().length();
+        if (keys != null) {
+            for (Key key : keys) {
+                size += 16 + key.length();
+            }
+        }
+        if (batch != null) {
+            for (CommandMessage<CACHE_ELEMENT> command : batch) {
+                size += command.estimateSize();
+            }
+        }
+        return size;
+    }
+
     public static CommandMessage command(Op operation) {
         return new CommandMessage(operation);
     }
@@ -0,0 +1,153 @@
+package com.thimbleware.jmemcached.protocol;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes each connection's events on a thread of its own, one at a time and in the order they arrived. A connection
+ * holds a thread while it has events queued and gives it back to the pool when it runs dry, so there are as many
+ * threads as busy connections, and a command blocking on the disk stalls nobody but its own connection.
+ * <p/>
+ * Once more than maxChannelMemorySize bytes of commands are queued for a connection, reads from it are suspended until
+ * its thread has caught up.
+ */
+public final class ConnectionExecutor extends AbstractExecutorService {
+
+    private final ExecutorService threads;
+    private final long maxChannelMemorySize;
+    private final ConcurrentMap<Channel, ChildExecutor> children = new ConcurrentHashMap<Channel, ChildExecutor>();
+
+    /**
+     * @param threadFactory factory for the connection threads
+     * @param maxChannelMemorySize bytes of queued commands per connection above which its reads are suspended; 0 for
+     * no limit
+     */
+    public ConnectionExecutor(ThreadFactory threadFactory, long maxChannelMemorySize) {
+        this.threads = Executors.newCachedThreadPool(threadFactory);
+        this.maxChannelMemorySize = maxChannelMemorySize;
+    }
+
+    public void execute(Runnable task) {
+        if (!(task instanceof ChannelEventRunnable)) {
+            threads.execute(task);
+            return;
+        }
+
+        ChannelEventRunnable runnable = (ChannelEventRunnable) task;
+        Channel channel = runnable.getEvent().getChannel();
+        ChildExecutor child = children.get(channel);
+        if (child == null) {
+            child = new ChildExecutor(channel);
+            ChildExecutor existing = children.putIfAbsent(channel, child);
+            if (existing != null) child = existing;
+        }
+        child.execute(runnable);
+    }
+
+    private static int estimateSize(ChannelEvent event) {
+        if (event instanceof MessageEvent && ((MessageEvent) event).getMessage() instanceof CommandMessage) {
+            return ((CommandMessage) ((MessageEvent) event).getMessage()).estimateSize();
+        }
+        return 0;
+    }
+
+    private static boolean isClosed(ChannelEvent event) {
+        return event instanceof ChannelStateEvent
+                && ((ChannelStateEvent) event).getState() == ChannelState.OPEN
+                && ((ChannelStateEvent) event).getValue() == Boolean.FALSE;
+    }
+
+    public void shutdown() {
+        threads.shutdown();
+    }
+
+    public List<Runnable> shutdownNow() {
+        return threads.shutdownNow();
+    }
+
+    public boolean isShutdown() {
+        return threads.isShutdown();
+    }
+
+    public boolean isTerminated() {
+        return threads.isTerminated();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return threads.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * The queue of one connection's events, and the task which drains it on a pooled thread.
+     */
+    private final class ChildExecutor implements Runnable {
+        private final Channel channel;
+        private final LinkedList<ChannelEventRunnable> tasks = new LinkedList<ChannelEventRunnable>();
+        private long queuedBytes;
+        private boolean running;
+        private boolean suspended;
+
+        ChildExecutor(Channel channel) {
+            this.channel = channel;
+        }
+
+        void execute(ChannelEventRunnable task) {
+            boolean start;
+            boolean suspend = false;
+            synchronized (tasks) {
+                tasks.add(task);
+                queuedBytes += estimateSize(task.getEvent());
+                if (maxChannelMemorySize > 0 && !suspended && queuedBytes > maxChannelMemorySize) {
+                    suspended = suspend = true;
+                }
+                start = !running;
+                running = true;
+            }
+
+            if (suspend) channel.setReadable(false);
+            if (start) threads.execute(this);
+        }
+
+        public void run() {
+            for (;;) {
+                ChannelEventRunnable task;
+                synchronized (tasks) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+
+                try {
+                    task.run();
+                } finally {
+                    boolean resume = false;
+                    synchronized (tasks) {
+                        queuedBytes -= estimateSize(task.getEvent());
+                        if (suspended && queuedBytes <= maxChannelMemorySize) {
+                            suspended = false;
+                            resume = true;
+                        }
+                    }
+                    if (resume && channel.isOpen()) channel.setReadable(true);
+                    if (isClosed(task.getEvent())) children.remove(channel);
+                }
+            }
+        }
+    }
+}
@@ -22,9 +22,16 @@ import com.thimbleware.jmemcached.Key;
 import com.thimbleware.jmemcached.protocol.exceptions.UnknownCommandException;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.DatagramChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 // TODO implement flush_all delay
@@ -68,6 +75,16 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
      */
     private final DefaultChannelGroup channelGroup;
 
+    /**
+     * Per thread command counts, or null if they aren't kept.
+     */
+    private final WorkerStats workerStats;
+
+    /**
+     * The limits on and tally of output pending to clients, or null if there are none.
+     */
+    private final OutboundBudget outboundBudget;
+
     /**
      * Construct the server session handler
      *
@@ -78,12 +95,30 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
      * @param channelGroup
      */
     public MemcachedCommandHandler(Cache cache, String memcachedVersion, boolean verbosity, int idle, DefaultChannelGroup channelGroup) {
+        this(cache, memcachedVersion, verbosity, idle, channelGroup, PipelineOptions.none());
+    }
+
+    /**
+     * Construct the server session handler
+     *
+     * @param cache            the cache to use
+     * @param memcachedVersion the version string to return to clients
+     * @param verbosity        verbosity level for debugging
+     * @param idle             how long sessions can be idle for
+     * @param channelGroup
+     * @param options          the command counts to keep, and the output limits whose tally to report, along with the
+     *                         other settings shared by the daemon's pipelines
+     */
+    public MemcachedCommandHandler(Cache cache, String memcachedVersion, boolean verbosity, int idle, DefaultChannelGroup channelGroup,
+                                   PipelineOptions options) {
         this.cache = cache;
 
         version = memcachedVersion;
         verbose = verbosity;
         idle_limit = idle;
         this.channelGroup = channelGroup;
+        this.workerStats = options.getWorkerStats();
+        this.outboundBudget = options.getOutboundBudget();
     }
 
 
@@ -137,6 +172,15 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
         Op cmd = command.op;
         int cmdKeysSize = command.keys == null ? 0 : command.keys.size();
 
+        if (workerStats != null) {
+            workerStats.commandExecuted();
+            if (command.batch != null) {
+                for (int i = 0; i < command.batch.size(); i++) {
+                    workerStats.commandExecuted();
+                }
+            }
+        }
+
         // first process any messages in the delete queue
         cache.asyncEventPing();
 
@@ -203,6 +247,32 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
             case VERBOSITY:
                 handleVerbosity(channelHandlerContext, command, channel);
                 break;
+            case SNAPSHOT:
+                handleSnapshot(channelHandlerContext, command, channel);
+                break;
+            case MG:
+                handleMetaGet(channelHandlerContext, command, channel);
+                break;
+            case MS:
+                handleMetaSet(channelHandlerContext, command, channel);
+                break;
+            case MD:
+                if (command.meta.invalidate) handleInvalidate(channelHandlerContext, command, channel);
+                else handleDelete(channelHandlerContext, command, channel);
+                break;
+            case MA:
+                handleMetaArithmetic(channelHandlerContext, command, channel);
+                break;
+            case MN:
+                handleNoOp(channelHandlerContext, command);
+                break;
+            case TOUCH:
+                handleTouch(channelHandlerContext, command, channel);
+                break;
+            case GAT:
+            case GATS:
+                handleGetAndTouch(channelHandlerContext, command, channel);
+                break;
             default:
                  throw new UnknownCommandException("unknown command");
         }
@@ -221,6 +291,27 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
     	Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command), channel.getRemoteAddress());
  	}
 
+    /**
+     * Starts a snapshot, or joins the one already being written, and answers once it is done. The dump runs on the
+     * cache's snapshot thread, so this thread goes straight back to serving connections; responses to commands
+     * pipelined behind the snapshot may therefore be sent before its own. Over UDP, where the answer has to go out
+     * with the datagram it answers, snapshots are refused.
+     */
+    protected void handleSnapshot(final ChannelHandlerContext channelHandlerContext, final CommandMessage<CACHE_ELEMENT> command, final Channel channel) {
+        if (channel instanceof DatagramChannel) {
+            Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withSnapshotResponse(-1), channel.getRemoteAddress());
+            return;
+        }
+
+        cache.snapshot(new Cache.SnapshotCallback() {
+            public void snapshotDone(int items, IOException failure) {
+                if (failure == null) logger.info("snapshot written with " + items + " items");
+                else logger.error("snapshot failed", failure);
+                Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withSnapshotResponse(items), channel.getRemoteAddress());
+            }
+        });
+    }
+
     protected void handleQuit(Channel channel) {
         channel.disconnect();
     }
@@ -236,14 +327,38 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
         if (cmdKeysSize > 0) {
             option = command.keys.get(0).bytes.toString();
         }
-        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withStatResponse(cache.stat(option)), channel.getRemoteAddress());
+        Map<String, Set<String>> stats = cache.stat(option);
+        if (workerStats != null) workerStats.addTo(stats);
+        if (outboundBudget != null) outboundBudget.addTo(stats);
+        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withStatResponse(stats), channel.getRemoteAddress());
     }
 
     protected void handleDelete(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        if (command.batch != null) {
+            handleDeleteBatch(channelHandlerContext, command, channel);
+            return;
+        }
+
         Cache.DeleteResponse dr = cache.delete(command.keys.get(0), command.time);
         Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withDeleteResponse(dr), channel.getRemoteAddress());
     }
 
+    /**
+     * Deletes a command and the batch which came with it in one go, answering each in turn.
+     */
+    protected void handleDeleteBatch(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        List<CommandMessage<CACHE_ELEMENT>> commands = batched(command);
+        Key[] keys = new Key[commands.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = commands.get(i).keys.get(0);
+        }
+
+        Cache.DeleteResponse[] responses = cache.deleteMulti(keys);
+        for (int i = 0; i < responses.length; i++) {
+            Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(commands.get(i)).withDeleteResponse(responses[i]), channel.getRemoteAddress());
+        }
+    }
+
     protected void handleDecr(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
         Integer incrDecrResp = cache.get_add(command.keys.get(0), -1 * command.incrAmount);
         Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withIncrDecrResponse(incrDecrResp), channel.getRemoteAddress());
@@ -285,11 +400,43 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
     }
 
     protected void handleSet(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        if (command.batch != null) {
+            handleSetBatch(channelHandlerContext, command, channel);
+            return;
+        }
+
         Cache.StoreResponse ret;
         ret = cache.set(command.element);
         Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withResponse(ret), channel.getRemoteAddress());
     }
 
+    /**
+     * Sets a command and the batch which came with it in one go, answering each in turn.
+     */
+    @SuppressWarnings("unchecked")
+    protected void handleSetBatch(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        List<CommandMessage<CACHE_ELEMENT>> commands = batched(command);
+        CACHE_ELEMENT[] elements = (CACHE_ELEMENT[]) Array.newInstance(command.element.getClass(), commands.size());
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = commands.get(i).element;
+        }
+
+        Cache.StoreResponse[] responses = cache.setMulti(elements);
+        for (int i = 0; i < responses.length; i++) {
+            Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(commands.get(i)).withResponse(responses[i]), channel.getRemoteAddress());
+        }
+    }
+
+    /**
+     * @return a command followed by the commands of its batch
+     */
+    private List<CommandMessage<CACHE_ELEMENT>> batched(CommandMessage<CACHE_ELEMENT> command) {
+        List<CommandMessage<CACHE_ELEMENT>> commands = new ArrayList<CommandMessage<CACHE_ELEMENT>>(command.batch.size() + 1);
+        commands.add(command);
+        commands.addAll(command.batch);
+        return commands;
+    }
+
     protected void handleGets(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
         Key[] keys = new Key[command.keys.size()];
         keys = command.keys.toArray(keys);
@@ -298,6 +445,72 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
         Channels.fireMessageReceived(channelHandlerContext, resp, channel.getRemoteAddress());
     }
 
+    protected void handleTouch(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        boolean touched = cache.touchMulti(command.expire, new Key[] { command.keys.get(0) })[0];
+        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withTouchResponse(touched), channel.getRemoteAddress());
+    }
+
+    protected void handleGetAndTouch(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        Key[] keys = new Key[command.keys.size()];
+        keys = command.keys.toArray(keys);
+        CACHE_ELEMENT[] results = cache.getAndTouch(command.expire, keys);
+        ResponseMessage<CACHE_ELEMENT> resp = new ResponseMessage<CACHE_ELEMENT>(command).withElements(results);
+        Channels.fireMessageReceived(channelHandlerContext, resp, channel.getRemoteAddress());
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void handleMetaGet(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        Key key = command.keys.get(0);
+        boolean touch = command.meta.expire != MetaFlags.NO_EXPIRE;
+
+        ResponseMessage<CACHE_ELEMENT> resp = new ResponseMessage<CACHE_ELEMENT>(command);
+        if (command.meta.leaseMillis != 0) {
+            // a new expiry is applied first, so that the item returned carries it
+            if (touch) cache.touchMulti(command.meta.expire, new Key[] { key });
+            Cache.LeaseStatus[] status = new Cache.LeaseStatus[1];
+            CACHE_ELEMENT element = cache.getWithLease(key, command.meta.leaseMillis, status);
+            resp.withElements((CACHE_ELEMENT[]) new CacheElement[] { element }).withLeaseStatus(status[0]);
+        } else if (touch) {
+            resp.withElements(cache.getAndTouch(command.meta.expire, key));
+        } else {
+            resp.withElements(get(key));
+        }
+        Channels.fireMessageReceived(channelHandlerContext, resp, channel.getRemoteAddress());
+    }
+
+    protected void handleInvalidate(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        Cache.DeleteResponse dr = cache.invalidate(command.keys.get(0));
+        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withDeleteResponse(dr), channel.getRemoteAddress());
+    }
+
+    protected void handleMetaSet(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        Cache.StoreResponse ret;
+        if (command.meta.compareCas != 0) ret = cache.cas(command.meta.compareCas, command.element);
+        else switch (command.meta.mode) {
+            case 'E':
+                ret = cache.add(command.element);
+                break;
+            case 'A':
+                ret = cache.append(command.element);
+                break;
+            case 'P':
+                ret = cache.prepend(command.element);
+                break;
+            case 'R':
+                ret = cache.replace(command.element);
+                break;
+            default:
+                ret = cache.set(command.element);
+        }
+        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withResponse(ret), channel.getRemoteAddress());
+    }
+
+    protected void handleMetaArithmetic(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        boolean decrement = command.meta.mode == 'D' || command.meta.mode == '-';
+        Integer incrDecrResp = cache.get_add(command.keys.get(0), (int) (decrement ? -command.meta.delta : command.meta.delta));
+        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withIncrDecrResponse(incrDecrResp), channel.getRemoteAddress());
+    }
+
     /**
      * Get an element from the cache
      *
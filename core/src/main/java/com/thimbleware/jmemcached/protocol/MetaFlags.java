@@ -0,0 +1,78 @@
+package com.thimbleware.jmemcached.protocol;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.io.Serializable;
+
+/**
+ * The flags of a meta command: which fields its response carries, and the options which modify what it does.
+ */
+public final class MetaFlags implements Serializable {
+
+    /**
+     * Means no new expiry was given
+     */
+    public static final long NO_EXPIRE = -1;
+
+    /**
+     * The letters of the flags which ask for a field in the response, in the order they were given
+     */
+    public String returned = "";
+
+    /**
+     * Whether the value itself is returned (v)
+     */
+    public boolean value;
+
+    /**
+     * Whether the response is left out when it is the usual one (q): a miss for mg, success for the others
+     */
+    public boolean quiet;
+
+    /**
+     * The opaque token to echo back (O), or null
+     */
+    public ChannelBuffer opaque;
+
+    /**
+     * The new expiry (T), in the form elements carry it, or NO_EXPIRE
+     */
+    public long expire = NO_EXPIRE;
+
+    /**
+     * The cas unique the item must still have (C), or 0 for none
+     */
+    public long compareCas;
+
+    /**
+     * The client flags to store (F)
+     */
+    public int clientFlags;
+
+    /**
+     * The mode (M): for ms one of S, E, A, P or R; for ma one of I, +, D or -
+     */
+    public byte mode;
+
+    /**
+     * The amount to add or subtract (D)
+     */
+    public long delta = 1;
+
+    /**
+     * How long a lease taken out on a missing or stale item lasts (N), in milliseconds, or 0 for no lease
+     */
+    public long leaseMillis;
+
+    /**
+     * Whether md marks the item stale rather than removing it (I)
+     */
+    public boolean invalidate;
+
+    /**
+     * @return whether a response field was asked for
+     */
+    public boolean returns(char flag) {
+        return returned.indexOf(flag) != -1;
+    }
+}
@@ -16,32 +16,66 @@
 package com.thimbleware.jmemcached.protocol;
 
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
-
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  */
 public enum Op {
     GET, GETS, APPEND, PREPEND, DELETE, DECR,
     INCR, REPLACE, ADD, SET, CAS, STATS, VERSION,
-    QUIT, FLUSH_ALL, VERBOSITY;
+    QUIT, FLUSH_ALL, VERBOSITY, SNAPSHOT,
+    // the meta commands: get, set, delete, arithmetic and no-op
+    MG, MS, MD, MA, MN,
+    // touch, and get and touch: gat returns items as get does, gats as gets does
+    TOUCH, GAT, GATS;
+
+    // the lower case name, as it appears in the text protocol
+    private final byte[] bytes = name().toLowerCase().getBytes();
 
-    private static Map<ChannelBuffer, Op> opsbf = new HashMap<ChannelBuffer, Op>();
+    // ops by the first byte of their name
+    private static final Op[][] BY_FIRST_BYTE = new Op[128][];
 
     static {
-        for (int x = 0 ; x < Op.values().length; x++) {
-            byte[] bytes = Op.values()[x].toString().toLowerCase().getBytes();
-            opsbf.put(ChannelBuffers.wrappedBuffer(bytes), Op.values()[x]);
+        for (Op op : Op.values()) {
+            Op[] ops = BY_FIRST_BYTE[op.bytes[0]];
+            Op[] grown = new Op[ops == null ? 1 : ops.length + 1];
+            if (ops != null) System.arraycopy(ops, 0, grown, 0, ops.length);
+            grown[grown.length - 1] = op;
+            BY_FIRST_BYTE[op.bytes[0]] = grown;
         }
     }
 
 
     public static Op FindOp(ChannelBuffer cmd) {
-        cmd.readerIndex(0);
-        return opsbf.get(cmd);
+        return findOp(cmd, 0, cmd.capacity());
+    }
+
+    /**
+     * Find the op named by a range of a buffer, without slicing it or hashing it.
+     *
+     * @param buffer the buffer
+     * @param index index of the first byte of the name
+     * @param length number of bytes in the name
+     * @return the op, or null if no op has that name
+     */
+    public static Op findOp(ChannelBuffer buffer, int index, int length) {
+        if (length == 0) return null;
+
+        byte first = buffer.getByte(index);
+        if (first < 0) return null;
+
+        Op[] candidates = BY_FIRST_BYTE[first];
+        if (candidates == null) return null;
+
+        for (Op op : candidates) {
+            if (op.bytes.length == length && matches(op.bytes, buffer, index)) return op;
+        }
+        return null;
     }
 
+    private static boolean matches(byte[] name, ChannelBuffer buffer, int index) {
+        for (int i = 1; i < name.length; i++) {
+            if (buffer.getByte(index + i) != name[i]) return false;
+        }
+        return true;
+    }
 }
@@ -0,0 +1,103 @@
+package com.thimbleware.jmemcached.protocol;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The limits on output waiting to be written to clients, which each channel's {@link OutboundThrottleHandler}
+ * enforces, and the tally of that output across all of them, for the stats command.
+ */
+public final class OutboundBudget {
+
+    private final long highWaterMark;
+    private final long lowWaterMark;
+    private final long maxTotalSize;
+
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicInteger throttledChannels = new AtomicInteger();
+    private final AtomicLong throttles = new AtomicLong();
+
+    /**
+     * @param highWaterMark bytes of output a channel may have pending before reads from it are suspended; 0 for no
+     * limit
+     * @param lowWaterMark bytes of pending output a suspended channel has to get down to for reads to resume
+     * @param maxTotalSize bytes of output which may be pending in all before reads are suspended from every channel
+     * writing more; 0 for no limit
+     */
+    public OutboundBudget(long highWaterMark, long lowWaterMark, long maxTotalSize) {
+        if (highWaterMark != 0 && lowWaterMark > highWaterMark)
+            throw new IllegalArgumentException("the low water mark must not be above the high water mark");
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = lowWaterMark;
+        this.maxTotalSize = maxTotalSize;
+    }
+
+    /**
+     * @return whether a channel with this much output pending, while this much is pending in all, is to stop reading
+     */
+    boolean exceeded(long channelPending, long totalPending) {
+        return (highWaterMark != 0 && channelPending > highWaterMark) || (maxTotalSize != 0 && totalPending > maxTotalSize);
+    }
+
+    /**
+     * @return whether a channel which stopped reading may resume, with this much output pending, while this much is
+     * pending in all; one with nothing left pending always may, as no write is left to wake it later
+     */
+    boolean drained(long channelPending, long totalPending) {
+        return channelPending == 0 || (channelPending <= lowWaterMark && (maxTotalSize == 0 || totalPending <= maxTotalSize));
+    }
+
+    /**
+     * @return the output pending in all, with a write of some bytes added
+     */
+    long written(int bytes) {
+        return pending.addAndGet(bytes);
+    }
+
+    /**
+     * @return the output pending in all, with a finished write of some bytes taken off
+     */
+    long sent(int bytes) {
+        return pending.addAndGet(-bytes);
+    }
+
+    void throttled() {
+        throttledChannels.incrementAndGet();
+        throttles.incrementAndGet();
+    }
+
+    void resumed() {
+        throttledChannels.decrementAndGet();
+    }
+
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public long getLowWaterMark() {
+        return lowWaterMark;
+    }
+
+    public long getMaxTotalSize() {
+        return maxTotalSize;
+    }
+
+    /**
+     * Add the pending output, the channels not being read from because of it, and how often channels have been
+     * throttled, to a stats response
+     */
+    public void addTo(Map<String, Set<String>> stats) {
+        stats.put("outbound_bytes", singleton(String.valueOf(pending.get())));
+        stats.put("throttled_channels", singleton(String.valueOf(throttledChannels.get())));
+        stats.put("total_throttles", singleton(String.valueOf(throttles.get())));
+    }
+
+    private static Set<String> singleton(String value) {
+        Set<String> set = new HashSet<String>();
+        set.add(value);
+        return set;
+    }
+}
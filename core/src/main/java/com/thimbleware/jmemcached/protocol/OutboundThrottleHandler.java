@@ -0,0 +1,103 @@
+package com.thimbleware.jmemcached.protocol;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelDownstreamHandler;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Suspends reads from a channel while too much of what has been written to it is still waiting to go out, so that a
+ * client which sends requests faster than it reads the responses (a slow reader issuing huge multigets, say) backs up
+ * into its own socket rather than into the daemon's memory. Reads stop once the channel has more output pending than
+ * the high water mark, or the daemon more than its total budget; they resume once the channel is down to the low
+ * water mark, or has nothing pending at all, so that no channel waits on the others' output for ever.
+ * <p/>
+ * Sits at the head of the pipeline, below the write coalescing, where writes are on their way to the socket. Reads
+ * may also be suspended from above, by the command queue's limits; they stay suspended while either wants them to
+ * be. One per channel.
+ */
+public final class OutboundThrottleHandler implements ChannelDownstreamHandler {
+
+    private final OutboundBudget budget;
+
+    private final AtomicLong pending = new AtomicLong();
+
+    // whether this handler has suspended reads, and whether the handlers above last asked for them to be suspended
+    private boolean throttled;
+    private boolean suspendedAbove;
+
+    public OutboundThrottleHandler(OutboundBudget budget) {
+        this.budget = budget;
+    }
+
+    public void handleDownstream(final ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+        if (e instanceof ChannelStateEvent && ((ChannelStateEvent) e).getState() == ChannelState.INTEREST_OPS) {
+            synchronized (this) {
+                suspendedAbove = (((Integer) ((ChannelStateEvent) e).getValue()) & Channel.OP_READ) == 0;
+                // resuming is left until the output has drained
+                if (throttled && !suspendedAbove) {
+                    e.getFuture().setSuccess();
+                    return;
+                }
+            }
+            ctx.sendDownstream(e);
+            return;
+        }
+
+        if (!(e instanceof MessageEvent) || !(((MessageEvent) e).getMessage() instanceof ChannelBuffer)) {
+            ctx.sendDownstream(e);
+            return;
+        }
+
+        final int bytes = ((ChannelBuffer) ((MessageEvent) e).getMessage()).readableBytes();
+        long channelPending = pending.addAndGet(bytes);
+        long totalPending = budget.written(bytes);
+
+        e.getFuture().addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (budget.drained(pending.addAndGet(-bytes), budget.sent(bytes))) resume(ctx);
+            }
+        });
+
+        if (budget.exceeded(channelPending, totalPending)) throttle(ctx);
+        ctx.sendDownstream(e);
+    }
+
+    private void throttle(ChannelHandlerContext ctx) {
+        synchronized (this) {
+            if (throttled) return;
+            throttled = true;
+        }
+        budget.throttled();
+        setReadable(ctx, false);
+    }
+
+    private void resume(ChannelHandlerContext ctx) {
+        boolean readable;
+        synchronized (this) {
+            if (!throttled) return;
+            throttled = false;
+            readable = !suspendedAbove;
+        }
+        budget.resumed();
+        if (readable && ctx.getChannel().isOpen()) setReadable(ctx, true);
+    }
+
+    /**
+     * Change whether the channel is read from, below the handlers above, which don't see it
+     */
+    private static void setReadable(ChannelHandlerContext ctx, boolean readable) {
+        Channel channel = ctx.getChannel();
+        int interestOps = readable ? channel.getInterestOps() | Channel.OP_READ : channel.getInterestOps() & ~Channel.OP_READ;
+        Channels.setInterestOps(ctx, Channels.future(channel), interestOps);
+    }
+}
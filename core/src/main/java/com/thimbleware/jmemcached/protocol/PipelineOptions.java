@@ -0,0 +1,76 @@
+package com.thimbleware.jmemcached.protocol;
+
+import org.jboss.netty.channel.ChannelHandler;
+
+/**
+ * What the daemon shares with every connection's pipeline besides the cache: the per thread command counts, the
+ * stage commands are executed on, and the limits on output pending to clients. The daemon builds these once from its
+ * {@link com.thimbleware.jmemcached.ExecutionConfig} when it starts. Built with {@link Builder}; anything left unset
+ * is off.
+ */
+public final class PipelineOptions {
+
+    private final WorkerStats workerStats;
+    private final ChannelHandler commandExecution;
+    private final OutboundBudget outboundBudget;
+
+    private PipelineOptions(Builder builder) {
+        this.workerStats = builder.workerStats;
+        this.commandExecution = builder.commandExecution;
+        this.outboundBudget = builder.outboundBudget;
+    }
+
+    /**
+     * @return options with nothing on: no command counts, commands executed on the I/O threads, output unlimited
+     */
+    public static PipelineOptions none() {
+        return new Builder().build();
+    }
+
+    /**
+     * @return per thread command counts to keep and report, or null
+     */
+    public WorkerStats getWorkerStats() {
+        return workerStats;
+    }
+
+    /**
+     * @return handler placed between the decoder and the command handler to move execution off the I/O threads, or
+     * null to execute commands on them
+     */
+    public ChannelHandler getCommandExecution() {
+        return commandExecution;
+    }
+
+    /**
+     * @return limits on output pending to clients, past which reads are suspended, or null for none
+     */
+    public OutboundBudget getOutboundBudget() {
+        return outboundBudget;
+    }
+
+    public static final class Builder {
+        private WorkerStats workerStats;
+        private ChannelHandler commandExecution;
+        private OutboundBudget outboundBudget;
+
+        public Builder workerStats(WorkerStats workerStats) {
+            this.workerStats = workerStats;
+            return this;
+        }
+
+        public Builder commandExecution(ChannelHandler commandExecution) {
+            this.commandExecution = commandExecution;
+            return this;
+        }
+
+        public Builder outboundBudget(OutboundBudget outboundBudget) {
+            this.outboundBudget = outboundBudget;
+            return this;
+        }
+
+        public PipelineOptions build() {
+            return new PipelineOptions(this);
+        }
+    }
+}
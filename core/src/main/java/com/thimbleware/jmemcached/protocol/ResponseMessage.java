@@ -24,6 +24,9 @@ public final class ResponseMessage<CACHE_ELEMENT extends CacheElement> implement
     public Cache.DeleteResponse deleteResponse;
     public Integer incrDecrResponse;
     public boolean flushSuccess;
+    public int snapshotItems;
+    public Cache.LeaseStatus leaseStatus;
+    public boolean touched;
 
     public ResponseMessage<CACHE_ELEMENT> withElements(CACHE_ELEMENT[] elements) {
         this.elements = elements;
@@ -57,4 +60,31 @@ public final class ResponseMessage<CACHE_ELEMENT extends CacheElement> implement
 
         return this;
     }
+
+    /**
+     * @param leaseStatus the outcome of a get which may have taken out a lease
+     */
+    public ResponseMessage<CACHE_ELEMENT> withLeaseStatus(Cache.LeaseStatus leaseStatus) {
+        this.leaseStatus = leaseStatus;
+
+        return this;
+    }
+
+    /**
+     * @param touched whether the item was there to be touched
+     */
+    public ResponseMessage<CACHE_ELEMENT> withTouchResponse(boolean touched) {
+        this.touched = touched;
+
+        return this;
+    }
+
+    /**
+     * @param items the number of items written to the snapshot, or -1 if it failed
+     */
+    public ResponseMessage<CACHE_ELEMENT> withSnapshotResponse(int items) {
+        this.snapshotItems = items;
+
+        return this;
+    }
 }
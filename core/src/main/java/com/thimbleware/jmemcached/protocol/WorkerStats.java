@@ -0,0 +1,93 @@
+package com.thimbleware.jmemcached.protocol;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the commands executed by each thread, for the stats command. Each thread increments a counter of its own,
+ * so counting costs no contention between workers.
+ * <p/>
+ * The threads counted are those which execute commands: the I/O workers, or the command threads once commands are
+ * handed off to a stage of their own. Those may come and go (a cached pool's threads time out, and thread per
+ * connection has one per client), so a thread's counter is dropped once it has exited, and its count is added to a
+ * total for all exited threads; only live threads are listed.
+ */
+public final class WorkerStats {
+
+    private final int threads;
+    private final List<Counter> counters = new CopyOnWriteArrayList<Counter>();
+    private final AtomicLong exitedCommands = new AtomicLong();
+
+    private final ThreadLocal<Counter> counter = new ThreadLocal<Counter>() {
+        @Override
+        protected Counter initialValue() {
+            retireExited();
+            Counter counter = new Counter(Thread.currentThread());
+            counters.add(counter);
+            return counter;
+        }
+    };
+
+    /**
+     * @param threads the number of worker threads configured
+     */
+    public WorkerStats(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Count a command against the calling thread
+     */
+    public void commandExecuted() {
+        counter.get().commands.incrementAndGet();
+    }
+
+    /**
+     * Add the number of threads, and the commands executed by each live one and by all those which have exited, to a
+     * stats response
+     */
+    public void addTo(Map<String, Set<String>> stats) {
+        retireExited();
+        stats.put("threads", singleton(String.valueOf(threads)));
+        for (Counter counter : counters) {
+            stats.put("thread_" + counter.name + "_commands", singleton(String.valueOf(counter.commands.get())));
+        }
+        stats.put("exited_thread_commands", singleton(String.valueOf(exitedCommands.get())));
+    }
+
+    /**
+     * Fold the counters of threads which have exited into the total; nothing increments them any more
+     */
+    private void retireExited() {
+        for (Counter counter : counters) {
+            if (!counter.isAlive() && counters.remove(counter)) exitedCommands.addAndGet(counter.commands.get());
+        }
+    }
+
+    private static Set<String> singleton(String value) {
+        Set<String> set = new HashSet<String>();
+        set.add(value);
+        return set;
+    }
+
+    private static final class Counter {
+        final String name;
+        final WeakReference<Thread> thread;
+        final AtomicLong commands = new AtomicLong();
+
+        Counter(Thread thread) {
+            this.name = thread.getName();
+            this.thread = new WeakReference<Thread>(thread);
+        }
+
+        boolean isAlive() {
+            Thread t = thread.get();
+            return t != null && t.isAlive();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.thimbleware.jmemcached.protocol;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelDownstreamHandler;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sits at the head of the pipeline (below only {@link OutboundThrottleHandler}) and holds back the responses written while a read is being decoded and executed,
+ * then writes them to the channel as one buffer once the read is done, so that a client pipelining a hundred requests
+ * gets one write back rather than a hundred. Writes are also let through early once more than
+ * {@link #FLUSH_THRESHOLD_BYTES} have been held back.
+ * <p/>
+ * Events sent down while a batch is held or being written (including writes from other threads, and closes) join the
+ * batch, so nothing overtakes it; only changes to the interest ops pass straight through. One per channel.
+ * <p/>
+ * A response is held back while the commands after it in the same read run, so the buffers written here must not be
+ * views onto memory those commands could change: values come from the cache as copies no later store or delete will
+ * reuse (see {@link com.thimbleware.jmemcached.storage.CacheStorage}).
+ */
+public final class WriteCoalescingHandler implements ChannelUpstreamHandler, ChannelDownstreamHandler {
+
+    static final int FLUSH_THRESHOLD_BYTES = 64 * 1024;
+
+    private List<ChannelEvent> pending = new ArrayList<ChannelEvent>();
+    private int pendingBytes;
+    private boolean reading;
+    private boolean flushing;
+
+    public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+        if (!(e instanceof MessageEvent)) {
+            ctx.sendUpstream(e);
+            return;
+        }
+
+        synchronized (this) {
+            reading = true;
+        }
+        try {
+            ctx.sendUpstream(e);
+        } finally {
+            boolean flush;
+            synchronized (this) {
+                reading = false;
+                flush = !flushing;
+                flushing = true;
+            }
+            if (flush) flush(ctx);
+        }
+    }
+
+    public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+        // suspending and resuming reads is neither a write nor ordered against them, and holding it back would leave
+        // isReadable() stale for anyone deciding whether to resume
+        if (e instanceof ChannelStateEvent && ((ChannelStateEvent) e).getState() == ChannelState.INTEREST_OPS) {
+            ctx.sendDownstream(e);
+            return;
+        }
+
+        boolean flush = false;
+        synchronized (this) {
+            if (reading || flushing) {
+                pending.add(e);
+                if (isBufferWrite(e)) pendingBytes += ((ChannelBuffer) ((MessageEvent) e).getMessage()).readableBytes();
+                if (flushing || pendingBytes < FLUSH_THRESHOLD_BYTES) return;
+
+                flushing = flush = true;
+            }
+        }
+
+        if (flush) flush(ctx);
+        else ctx.sendDownstream(e);
+    }
+
+    /**
+     * Send everything held back, until nothing more is; the caller has set flushing.
+     */
+    private void flush(ChannelHandlerContext ctx) {
+        for (;;) {
+            List<ChannelEvent> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    flushing = false;
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<ChannelEvent>();
+                pendingBytes = 0;
+            }
+
+            int i = 0;
+            while (i < batch.size()) {
+                int end = i;
+                while (end < batch.size() && isBufferWrite(batch.get(end))) end++;
+
+                if (end - i > 1) {
+                    write(ctx, batch.subList(i, end));
+                    i = end;
+                } else {
+                    ctx.sendDownstream(batch.get(i++));
+                }
+            }
+        }
+    }
+
+    private static boolean isBufferWrite(ChannelEvent e) {
+        return e instanceof MessageEvent && ((MessageEvent) e).getMessage() instanceof ChannelBuffer;
+    }
+
+    /**
+     * Write a run of buffers as one, completing each of their futures with the outcome of the whole.
+     */
+    private static void write(ChannelHandlerContext ctx, List<ChannelEvent> writes) {
+        ChannelBuffer[] buffers = new ChannelBuffer[writes.size()];
+        final ChannelFuture[] futures = new ChannelFuture[writes.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            MessageEvent write = (MessageEvent) writes.get(i);
+            buffers[i] = (ChannelBuffer) write.getMessage();
+            futures[i] = write.getFuture();
+        }
+
+        ChannelFuture future = Channels.future(ctx.getChannel());
+        future.addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                for (ChannelFuture f : futures) {
+                    if (future.isSuccess()) f.setSuccess();
+                    else if (future.isCancelled()) f.cancel();
+                    else f.setFailure(future.getCause());
+                }
+            }
+        });
+        Channels.write(ctx, future, ChannelBuffers.wrappedBuffer(buffers));
+    }
+}
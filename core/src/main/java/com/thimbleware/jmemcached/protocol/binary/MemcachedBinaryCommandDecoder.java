@@ -6,25 +6,39 @@ import com.thimbleware.jmemcached.CacheElement;
 import com.thimbleware.jmemcached.protocol.Op;
 import com.thimbleware.jmemcached.protocol.CommandMessage;
 import com.thimbleware.jmemcached.protocol.exceptions.MalformedCommandException;
+import com.thimbleware.jmemcached.protocol.exceptions.UnknownCommandException;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
 
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.nio.ByteOrder;
+import java.util.List;
 
 /**
+ * Decodes requests in the binary protocol. Keeps the state of the request being read, so there is one per connection.
  */
-@ChannelHandler.Sharable
 public class MemcachedBinaryCommandDecoder extends FrameDecoder {
 
     public static final Charset USASCII = Charset.forName("US-ASCII");
 
+    static final int HEADER_LENGTH = 24;
+
+    // ops by their opcode
+    private static final BinaryOp[] BY_CODE = new BinaryOp[256];
+
+    static {
+        for (BinaryOp op : BinaryOp.values()) {
+            BY_CODE[op.code & 0xff] = op;
+        }
+    }
+
+    /**
+     * Most quiet commands to gather into one batch
+     */
+    static final int MAX_BATCH = 1024;
+
     public static enum BinaryOp {
         Get(0x00, Op.GET, false),
         Set(0x01, Op.SET, false),
@@ -35,7 +49,7 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
         Decrement(0x06, Op.DECR, false),
         Quit(0x07, Op.QUIT, false),
         Flush(0x08, Op.FLUSH_ALL, false),
-        GetQ(0x09, Op.GET, false),
+        GetQ(0x09, Op.GET, true),
         Noop(0x0A, null, false),
         Version(0x0B, Op.VERSION, false),
         GetK(0x0C, Op.GET, false, true),
@@ -52,7 +66,12 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
         QuitQ(0x17, Op.QUIT, true),
         FlushQ(0x18, Op.FLUSH_ALL, true),
         AppendQ(0x19, Op.APPEND, true),
-        PrependQ(0x1A, Op.PREPEND, true);
+        PrependQ(0x1A, Op.PREPEND, true),
+        Touch(0x1C, Op.TOUCH, false),
+        GAT(0x1D, Op.GAT, false),
+        GATQ(0x1E, Op.GAT, true),
+        GATK(0x23, Op.GAT, false, true),
+        GATKQ(0x24, Op.GAT, true, true);
 
         public byte code;
         public Op correspondingOp;
@@ -84,42 +103,114 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
 
     }
 
+    /**
+     * Where the decoder is in the current request
+     */
+    private static enum State {
+        READ_HEADER,
+        READ_BODY
+    }
+
+    private State state = State.READ_HEADER;
+
+    // the header of the request whose body is awaited
+    private BinaryOp bcmd;
+    private int keyLength;
+    private int extraLength;
+    private int totalBodyLength;
+    private int opaque;
+    private long cas;
+
+    /**
+     * The header is read where it lies in the frame buffer, once; then the body is awaited, and the key and value are
+     * sliced out of it, so nothing is copied. The command is handed on before the frame buffer is next touched, and
+     * anything which keeps its key or value beyond that copies them.
+     */
     protected Object decode(ChannelHandlerContext channelHandlerContext, Channel channel, ChannelBuffer channelBuffer) throws Exception {
+        if (state == State.READ_HEADER) {
+            // need at least 24 bytes, to get header
+            if (channelBuffer.readableBytes() < HEADER_LENGTH) return null;
 
-        // need at least 24 bytes, to get header
-        if (channelBuffer.readableBytes() < 24) return null;
+            readHeader(channelBuffer);
+            state = State.READ_BODY;
+        }
 
-        // get the header
-        channelBuffer.markReaderIndex();
-        ChannelBuffer headerBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 24);
-        channelBuffer.readBytes(headerBuffer);
+        // we want the whole of totalBodyLength; otherwise, keep waiting.
+        if (channelBuffer.readableBytes() < totalBodyLength) return null;
 
-        short magic = headerBuffer.readUnsignedByte();
+        state = State.READ_HEADER;
+        CommandMessage cmdMessage = readBody(channelBuffer);
+
+        // a run of quiet sets or deletes which has already arrived in full is executed as one bulk operation
+        if (bcmd == BinaryOp.SetQ || bcmd == BinaryOp.DeleteQ) gatherBatch(channelBuffer, cmdMessage);
+
+        return cmdMessage;
+    }
+
+    /**
+     * Take the requests following a quiet set or delete which are complete in the buffer and have the same opcode,
+     * and attach them to it as its batch.
+     */
+    @SuppressWarnings("unchecked")
+    private void gatherBatch(ChannelBuffer channelBuffer, CommandMessage first) throws Exception {
+        BinaryOp op = bcmd;
+        List<CommandMessage> batch = null;
+        while (batch == null || batch.size() < MAX_BATCH) {
+            // anything else, including a malformed request, is left for decode to deal with as usual
+            int header = channelBuffer.readerIndex();
+            if (channelBuffer.readableBytes() < HEADER_LENGTH
+                    || channelBuffer.getUnsignedByte(header) != 0x80
+                    || channelBuffer.getUnsignedByte(header + 1) != op.code
+                    || channelBuffer.getUnsignedShort(header + 2) == 0) break;
+            int bodyLength = channelBuffer.getInt(header + 8);
+            if (bodyLength < channelBuffer.getUnsignedShort(header + 2) + channelBuffer.getUnsignedByte(header + 4)
+                    || channelBuffer.readableBytes() - HEADER_LENGTH < bodyLength) break;
+
+            readHeader(channelBuffer);
+            CommandMessage next = readBody(channelBuffer);
+            if (batch == null) batch = new ArrayList<CommandMessage>();
+            batch.add(next);
+        }
+        first.batch = batch;
+    }
+
+    /**
+     * Read the header where it lies in the buffer into the decoder's state, and skip past it.
+     */
+    private void readHeader(ChannelBuffer channelBuffer) throws MalformedCommandException {
+        int header = channelBuffer.readerIndex();
+        short magic = channelBuffer.getUnsignedByte(header);
 
         // magic should be 0x80
         if (magic != 0x80) {
-            headerBuffer.resetReaderIndex();
-
             throw new MalformedCommandException("binary request payload is invalid, magic byte incorrect");
         }
 
-        short opcode = headerBuffer.readUnsignedByte();
-        short keyLength = headerBuffer.readShort();
-        short extraLength = headerBuffer.readUnsignedByte();
-        short dataType = headerBuffer.readUnsignedByte();   // unused
-        short reserved = headerBuffer.readShort(); // unused
-        int totalBodyLength = headerBuffer.readInt();
-        int opaque = headerBuffer.readInt();
-        long cas = headerBuffer.readLong();
+        short opcode = channelBuffer.getUnsignedByte(header + 1);
+        keyLength = channelBuffer.getUnsignedShort(header + 2);
+        extraLength = channelBuffer.getUnsignedByte(header + 4);
+        // data type (header + 5) and reserved (header + 6) are unused
+        totalBodyLength = channelBuffer.getInt(header + 8);
+        opaque = channelBuffer.getInt(header + 12);
+        cas = channelBuffer.getLong(header + 16);
 
-        // we want the whole of totalBodyLength; otherwise, keep waiting.
-        if (channelBuffer.readableBytes() < totalBodyLength) {
-            channelBuffer.resetReaderIndex();
-            return null;
-        }
+        if (totalBodyLength < keyLength + extraLength)
+            throw new MalformedCommandException("binary request body is shorter than its key and extras");
+
+        channelBuffer.skipBytes(HEADER_LENGTH);
+
+        bcmd = BY_CODE[opcode];
+    }
+
+    /**
+     * Turn the body of the request whose header was last read into a command, and skip past it.
+     */
+    private CommandMessage readBody(ChannelBuffer channelBuffer) throws UnknownCommandException {
+        int extras = channelBuffer.readerIndex();
+        channelBuffer.skipBytes(totalBodyLength);
 
-        // This assumes correct order in the enum. If that ever changes, we will have to scan for 'code' field.
-        BinaryOp bcmd = BinaryOp.values()[opcode];
+        if (bcmd == null)
+            throw new UnknownCommandException("unknown binary opcode");
 
         Op cmdType = bcmd.correspondingOp;
         CommandMessage cmdMessage = CommandMessage.command(cmdType);
@@ -128,17 +219,15 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
         cmdMessage.opaque = opaque;
         cmdMessage.addKeyToResponse = bcmd.addKeyToResponse;
 
-        // get extras. could be empty.
-        ChannelBuffer extrasBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, extraLength);
-        channelBuffer.readBytes(extrasBuffer);
+        // extras, if any, come first; then the key
+        int keyIndex = extras + extraLength;
 
         // get the key if any
         if (keyLength != 0) {
-            ChannelBuffer keyBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, keyLength);
-            channelBuffer.readBytes(keyBuffer);
+            Key key = new Key(channelBuffer.slice(keyIndex, keyLength));
 
-            ArrayList<Key> keys = new ArrayList<Key>();
-            keys.add(new Key(keyBuffer.copy()));
+            ArrayList<Key> keys = new ArrayList<Key>(1);
+            keys.add(key);
 
             cmdMessage.keys = keys;
 
@@ -150,23 +239,24 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
                     cmdType == Op.PREPEND)
             {
                 // TODO these are backwards from the spec, but seem to be what spymemcached demands -- which has the mistake?!
-                long expire = ((short) (extrasBuffer.capacity() != 0 ? extrasBuffer.readUnsignedShort() : 0)) * 1000;
-                short flags = (short) (extrasBuffer.capacity() != 0 ? extrasBuffer.readUnsignedShort() : 0);
+                long expire = ((short) (extraLength >= 2 ? channelBuffer.getUnsignedShort(extras) : 0)) * 1000;
+                short flags = (short) (extraLength >= 4 ? channelBuffer.getUnsignedShort(extras + 2) : 0);
 
                 // the remainder of the message -- that is, totalLength - (keyLength + extraLength) should be the payload
                 int size = totalBodyLength - keyLength - extraLength;
 
-                cmdMessage.element = new LocalCacheElement(new Key(keyBuffer.slice()), flags, expire != 0 && expire < CacheElement.THIRTY_DAYS ? LocalCacheElement.Now() + expire : expire, 0L);
-                ChannelBuffer data = ChannelBuffers.buffer(size);
-                channelBuffer.readBytes(data);
-                cmdMessage.element.setData(data);
+                cmdMessage.element = new LocalCacheElement(key, flags, expire != 0 && expire < CacheElement.THIRTY_DAYS ? LocalCacheElement.Now() + expire : expire, 0L);
+                cmdMessage.element.setData(channelBuffer.slice(keyIndex + keyLength, size));
             } else if (cmdType == Op.INCR || cmdType == Op.DECR) {
-                long initialValue = extrasBuffer.readUnsignedInt();
-                long amount = extrasBuffer.readUnsignedInt();
-                long expiration = extrasBuffer.readUnsignedInt();
+                // extras are the amount and the initial value, 8 bytes each, then the expiration
+                long amount = extraLength >= 8 ? channelBuffer.getLong(extras) : 0;
+                long expiration = extraLength >= 20 ? channelBuffer.getUnsignedInt(extras + 16) : 0;
 
                 cmdMessage.incrAmount = (int) amount;
                 cmdMessage.incrExpiry = (int) expiration;
+            } else if (cmdType == Op.TOUCH || cmdType == Op.GAT) {
+                // the only extra is the new expiration
+                cmdMessage.expire = LocalCacheElement.expiry(extraLength >= 4 ? channelBuffer.getInt(extras) : 0);
             }
         }
 
@@ -2,6 +2,11 @@ package com.thimbleware.jmemcached.protocol.binary;
 
 import com.thimbleware.jmemcached.Cache;
 import com.thimbleware.jmemcached.protocol.MemcachedCommandHandler;
+import com.thimbleware.jmemcached.protocol.OutboundBudget;
+import com.thimbleware.jmemcached.protocol.OutboundThrottleHandler;
+import com.thimbleware.jmemcached.protocol.PipelineOptions;
+import com.thimbleware.jmemcached.protocol.WriteCoalescingHandler;
+import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
@@ -10,19 +15,32 @@ import org.jboss.netty.channel.group.DefaultChannelGroup;
 
 public class MemcachedBinaryPipelineFactory implements ChannelPipelineFactory {
 
-    private final MemcachedBinaryCommandDecoder decoder =  new MemcachedBinaryCommandDecoder();
     private final MemcachedCommandHandler memcachedCommandHandler;
-    private final MemcachedBinaryResponseEncoder memcachedBinaryResponseEncoder = new MemcachedBinaryResponseEncoder();
+    private final ChannelHandler commandExecution;
+    private final OutboundBudget outboundBudget;
 
     public MemcachedBinaryPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, DefaultChannelGroup channelGroup) {
-        memcachedCommandHandler = new MemcachedCommandHandler(cache, version, verbose, idleTime, channelGroup);
+        this(cache, version, verbose, idleTime, channelGroup, PipelineOptions.none());
+    }
+
+    /**
+     * @param options the command execution stage, output limits and command counts shared by the daemon's pipelines
+     */
+    public MemcachedBinaryPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, DefaultChannelGroup channelGroup,
+                                          PipelineOptions options) {
+        this.commandExecution = options.getCommandExecution();
+        this.outboundBudget = options.getOutboundBudget();
+        memcachedCommandHandler = new MemcachedCommandHandler(cache, version, verbose, idleTime, channelGroup, options);
     }
 
     public ChannelPipeline getPipeline() throws Exception {
-        return Channels.pipeline(
-                decoder,
-                memcachedCommandHandler,
-                memcachedBinaryResponseEncoder
-        );
+        ChannelPipeline pipeline = Channels.pipeline();
+        if (outboundBudget != null) pipeline.addLast("throttle", new OutboundThrottleHandler(outboundBudget));
+        pipeline.addLast("coalescer", new WriteCoalescingHandler());
+        pipeline.addLast("decoder", new MemcachedBinaryCommandDecoder());
+        if (commandExecution != null) pipeline.addLast("execution", commandExecution);
+        pipeline.addLast("handler", memcachedCommandHandler);
+        pipeline.addLast("encoder", new MemcachedBinaryResponseEncoder());
+        return pipeline;
     }
 }
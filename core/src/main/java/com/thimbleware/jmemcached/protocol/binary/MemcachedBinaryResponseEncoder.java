@@ -4,6 +4,7 @@ import com.thimbleware.jmemcached.protocol.Op;
 import com.thimbleware.jmemcached.protocol.ResponseMessage;
 import com.thimbleware.jmemcached.protocol.exceptions.UnknownCommandException;
 import com.thimbleware.jmemcached.CacheElement;
+import com.thimbleware.jmemcached.Key;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
@@ -11,18 +12,44 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
- *
+ * Encodes responses in the binary protocol. Holds an output buffer and the responses to quiet commands, so there is
+ * one per connection.
+ * <p/>
+ * Quiet commands answer only when there's something to say: a quiet get only when it hits, a quiet mutation only when
+ * it fails. Those answers are corked, and go out in one write with the next response to a command which isn't quiet
+ * (typically the noop or get closing a batch), or on their own once {@link #MAX_CORKED} of them or
+ * {@link #MAX_CORKED_BYTES} are waiting, so a client sending nothing but quiet gets can't make them pile up. A corked
+ * get holds on to the value it read, which the cache hands out as a copy that later commands can't overwrite.
  */
 // TODO refactor so this can be unit tested separate from netty? scalacheck?
-@ChannelHandler.Sharable
 public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement> extends SimpleChannelUpstreamHandler {
 
-    private ConcurrentHashMap<Integer, ChannelBuffer> corkedBuffers = new ConcurrentHashMap<Integer, ChannelBuffer>();
+    private static final int HEADER_LENGTH = MemcachedBinaryCommandDecoder.HEADER_LENGTH;
+
+    /**
+     * Response headers, and the small parts of bodies which go with them, are written one after another into an
+     * output buffer of this size, and sliced out of it; a new one is allocated once it fills up
+     */
+    static final int OUTPUT_CHUNK_BYTES = 4096;
+
+    /**
+     * Corked responses are written out without waiting for one which isn't quiet once there are this many of them,
+     * or once they come to this many bytes
+     */
+    static final int MAX_CORKED = 256;
+    static final int MAX_CORKED_BYTES = 64 * 1024;
+
+    // responses to quiet commands, held back until a response which isn't quiet is written along with them
+    private final List<ChannelBuffer> corked = new ArrayList<ChannelBuffer>();
+    private int corkedBytes;
+
+    private ChannelBuffer out = ChannelBuffers.EMPTY_BUFFER;
 
     final Logger logger = LoggerFactory.getLogger(MemcachedBinaryResponseEncoder.class);
 
@@ -45,8 +72,10 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
 
     public ResponseCode getStatusCode(ResponseMessage command) {
         Op cmd = command.cmd.op;
-        if (cmd == Op.GET || cmd == Op.GETS) {
-            return ResponseCode.OK;
+        if (cmd == null) {
+            return ResponseCode.OK; // noop
+        } else if (cmd == Op.GET || cmd == Op.GETS || cmd == Op.GAT) {
+            return command.elements != null && command.elements.length != 0 && command.elements[0] != null ? ResponseCode.OK : ResponseCode.KEYNF;
         } else if (cmd == Op.SET || cmd == Op.CAS || cmd == Op.ADD || cmd == Op.REPLACE || cmd == Op.APPEND  || cmd == Op.PREPEND) {
             switch (command.response) {
                 case EXISTS:
@@ -67,6 +96,8 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
                 case NOT_FOUND:
                     return ResponseCode.KEYNF;
             }
+        } else if (cmd == Op.TOUCH) {
+            return command.touched ? ResponseCode.OK : ResponseCode.KEYNF;
         } else if (cmd == Op.STATS) {
             return ResponseCode.OK;
         } else if (cmd == Op.VERSION) {
@@ -79,26 +110,36 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
 
 
 
-    public ChannelBuffer constructHeader(MemcachedBinaryCommandDecoder.BinaryOp bcmd, ChannelBuffer extrasBuffer, ChannelBuffer keyBuffer, ChannelBuffer valueBuffer, short responseCode, int opaqueValue, long casUnique) {
-        // take the ResponseMessage and turn it into a binary payload.
-        ChannelBuffer header = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 24);
+    /**
+     * Reserve room for a response's header and the parts of its body written along with it, in the output buffer.
+     *
+     * @return the buffer to write them to, starting at its writer index
+     */
+    private ChannelBuffer reserve(int length) {
+        if (out.writableBytes() < length) out = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, Math.max(OUTPUT_CHUNK_BYTES, length));
+        return out;
+    }
+
+    private static void writeHeader(ChannelBuffer header, MemcachedBinaryCommandDecoder.BinaryOp bcmd, int extrasLength, int keyLength, int dataLength, short responseCode, int opaqueValue, long casUnique) {
         header.writeByte((byte)0x81);  // magic
         header.writeByte(bcmd.code); // opcode
-        short keyLength = (short) (keyBuffer != null ? keyBuffer.capacity() :0);
-
         header.writeShort(keyLength);
-        int extrasLength = extrasBuffer != null ? extrasBuffer.capacity() : 0;
         header.writeByte((byte) extrasLength); // extra length = flags + expiry
         header.writeByte((byte)0); // data type unused
         header.writeShort(responseCode); // status code
-
-        int dataLength = valueBuffer != null ? valueBuffer.capacity() : 0;
         header.writeInt(dataLength + keyLength + extrasLength); // data length
         header.writeInt(opaqueValue); // opaque
-
         header.writeLong(casUnique);
+    }
 
-        return header;
+    /**
+     * A response with only a header
+     */
+    private ChannelBuffer headerOnly(MemcachedBinaryCommandDecoder.BinaryOp bcmd, short responseCode, int opaqueValue, long casUnique) {
+        ChannelBuffer buffer = reserve(HEADER_LENGTH);
+        int start = buffer.writerIndex();
+        writeHeader(buffer, bcmd, 0, 0, 0, responseCode, opaqueValue, casUnique);
+        return buffer.slice(start, HEADER_LENGTH);
     }
 
     /**
@@ -114,7 +155,7 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
             throw e.getCause();
         } catch (UnknownCommandException unknownCommand) {
             if (ctx.getChannel().isOpen())
-                ctx.getChannel().write(constructHeader(MemcachedBinaryCommandDecoder.BinaryOp.Noop, null, null, null, (short)0x0081, 0, 0));
+                write(ctx.getChannel(), headerOnly(MemcachedBinaryCommandDecoder.BinaryOp.Noop, ResponseCode.UNKNOWN.code, 0, 0));
         } catch (Throwable err) {
             logger.error("error", err);
             if (ctx.getChannel().isOpen())
@@ -126,134 +167,113 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
     @SuppressWarnings("unchecked")
     public void messageReceived(ChannelHandlerContext channelHandlerContext, MessageEvent messageEvent) throws Exception {
         ResponseMessage<CACHE_ELEMENT> command = (ResponseMessage<CACHE_ELEMENT>) messageEvent.getMessage();
-        Object additional = messageEvent.getMessage();
+        Channel channel = messageEvent.getChannel();
 
         MemcachedBinaryCommandDecoder.BinaryOp bcmd = MemcachedBinaryCommandDecoder.BinaryOp.forCommandMessage(command.cmd);
-
-        // write extras == flags & expiry
-        ChannelBuffer extrasBuffer = null;
-
-        // write key if there is one
-        ChannelBuffer keyBuffer = null;
-        if (bcmd.addKeyToResponse && command.cmd.keys != null && command.cmd.keys.size() != 0) {
-            keyBuffer = ChannelBuffers.wrappedBuffer(command.cmd.keys.get(0).bytes);
-        }
-
-        // write value if there is one
-        ChannelBuffer valueBuffer = null;
-        if (command.elements != null) {
-            extrasBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 4);
-            CacheElement element = command.elements[0];
-            extrasBuffer.writeShort((short) (element != null ? element.getExpire() : 0));
-            extrasBuffer.writeShort((short) (element != null ? element.getFlags() : 0));
-
-            if ((command.cmd.op == Op.GET || command.cmd.op == Op.GETS)) {
-                if (element != null) {
-                    valueBuffer = ChannelBuffers.wrappedBuffer(element.getData());
-                } else {
-                    valueBuffer = ChannelBuffers.buffer(0);
-                }
-            } else if (command.cmd.op == Op.INCR || command.cmd.op == Op.DECR) {
-                valueBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 8);
-                valueBuffer.writeLong(command.incrDecrResponse);
-            }
-        } else if (command.cmd.op == Op.INCR || command.cmd.op == Op.DECR) {
-            valueBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 8);
-            valueBuffer.writeLong(command.incrDecrResponse);
-        }
+        short responseCode = getStatusCode(command).code;
 
         long casUnique = 0;
         if (command.elements != null && command.elements.length != 0 && command.elements[0] != null) {
             casUnique = command.elements[0].getCasUnique();
         }
 
-        // stats is special -- with it, we write N times, one for each stat, then an empty payload
+        // stats is special -- with it, there's a response for each stat, then an empty one; they go out in one write
         if (command.cmd.op == Op.STATS) {
-            // first uncork any corked buffers
-            if (corkedBuffers.containsKey(command.cmd.opaque)) uncork(command.cmd.opaque, messageEvent.getChannel());
-
             for (Map.Entry<String, Set<String>> statsEntries : command.stats.entrySet()) {
+                byte[] key = statsEntries.getKey().getBytes(MemcachedBinaryCommandDecoder.USASCII);
                 for (String stat : statsEntries.getValue()) {
+                    byte[] value = stat.getBytes(MemcachedBinaryCommandDecoder.USASCII);
 
-                    keyBuffer = ChannelBuffers.wrappedBuffer(ByteOrder.BIG_ENDIAN, statsEntries.getKey().getBytes(MemcachedBinaryCommandDecoder.USASCII));
-                    valueBuffer = ChannelBuffers.wrappedBuffer(ByteOrder.BIG_ENDIAN, stat.getBytes(MemcachedBinaryCommandDecoder.USASCII));
-
-                    ChannelBuffer headerBuffer = constructHeader(bcmd, extrasBuffer, keyBuffer, valueBuffer, getStatusCode(command).code, command.cmd.opaque, casUnique);
+                    ChannelBuffer buffer = reserve(HEADER_LENGTH + key.length + value.length);
+                    int start = buffer.writerIndex();
+                    writeHeader(buffer, bcmd, 0, key.length, value.length, responseCode, command.cmd.opaque, casUnique);
+                    buffer.writeBytes(key);
+                    buffer.writeBytes(value);
 
-                    writePayload(messageEvent, extrasBuffer, keyBuffer, valueBuffer, headerBuffer);
+                    corked.add(buffer.slice(start, buffer.writerIndex() - start));
                 }
             }
 
-            keyBuffer = null;
-            valueBuffer = null;
-
-            ChannelBuffer headerBuffer = constructHeader(bcmd, extrasBuffer, keyBuffer, valueBuffer, getStatusCode(command).code, command.cmd.opaque, casUnique);
-
-            writePayload(messageEvent, extrasBuffer, keyBuffer, valueBuffer, headerBuffer);
+            write(channel, headerOnly(bcmd, responseCode, command.cmd.opaque, casUnique));
+            return;
+        }
 
-        } else {
-            ChannelBuffer headerBuffer = constructHeader(bcmd, extrasBuffer, keyBuffer, valueBuffer, getStatusCode(command).code, command.cmd.opaque, casUnique);
+        // quiet commands are silent unless they've something to report
+        if (bcmd.noreply && responseCode == (command.cmd.op == Op.GET || command.cmd.op == Op.GAT ? ResponseCode.KEYNF.code : ResponseCode.OK.code)) {
+            return;
+        }
 
-            // write everything
-            // is the command 'quiet?' if so, then we append to our 'corked' buffer until a non-corked command comes along
-            if (bcmd.noreply) {
-                int totalCapacity = headerBuffer.capacity() + (extrasBuffer != null ? extrasBuffer.capacity() : 0)
-                        + (keyBuffer != null ? keyBuffer.capacity() : 0) + (valueBuffer != null ? valueBuffer.capacity() : 0);
+        // extras == flags & expiry, when there's an element to describe
+        CacheElement element = command.elements != null ? command.elements[0] : null;
+        int extrasLength = element != null ? 4 : 0;
 
-                ChannelBuffer corkedResponse  = cork(command.cmd.opaque, totalCapacity);
+        // the key, if the op asks for it back
+        Key key = null;
+        if (bcmd.addKeyToResponse && command.cmd.keys != null && command.cmd.keys.size() != 0) {
+            key = command.cmd.keys.get(0);
+        }
+        int keyLength = key != null ? key.length() : 0;
+
+        // the value: the element's data for a get, which is written as it is; the counter for incr/decr, which is
+        // written along with the header
+        ChannelBuffer data = null;
+        int counterLength = 0;
+        if (command.cmd.op == Op.GET || command.cmd.op == Op.GETS || command.cmd.op == Op.GAT) {
+            if (element != null) data = element.getData();
+        } else if ((command.cmd.op == Op.INCR || command.cmd.op == Op.DECR) && command.incrDecrResponse != null) {
+            counterLength = 8;
+        }
+        int dataLength = data != null ? data.readableBytes() : counterLength;
+
+        ChannelBuffer buffer = reserve(HEADER_LENGTH + extrasLength + keyLength + counterLength);
+        int start = buffer.writerIndex();
+        writeHeader(buffer, bcmd, extrasLength, keyLength, dataLength, responseCode, command.cmd.opaque, casUnique);
+        if (extrasLength != 0) {
+            buffer.writeShort((short) (element != null ? element.getExpire() : 0));
+            buffer.writeShort((short) (element != null ? element.getFlags() : 0));
+        }
+        if (key != null) buffer.writeBytes(key.bytes, 0, keyLength);
+        if (counterLength != 0) buffer.writeLong(command.incrDecrResponse);
 
+        ChannelBuffer head = buffer.slice(start, buffer.writerIndex() - start);
 
-                corkedResponse.writeBytes(headerBuffer);
-                if (extrasBuffer != null)
-                    corkedResponse.writeBytes(extrasBuffer);
-                if (keyBuffer != null)
-                    corkedResponse.writeBytes(keyBuffer);
-                if (valueBuffer != null)
-                    corkedResponse.writeBytes(valueBuffer);
-            } else {
-                // first write out any corked responses
-                 if (corkedBuffers.containsKey(command.cmd.opaque)) uncork(command.cmd.opaque, messageEvent.getChannel());
-                
+        ChannelBuffer response = data != null && dataLength != 0 ? ChannelBuffers.wrappedBuffer(head, data) : head;
 
-                writePayload(messageEvent, extrasBuffer, keyBuffer, valueBuffer, headerBuffer);
-            }
-        }
+        // a quiet command's response waits for the next one which isn't
+        if (bcmd.noreply) cork(channel, response);
+        else write(channel, response);
     }
 
-    private ChannelBuffer cork(int opaque, int totalCapacity) {
-        if (corkedBuffers.containsKey(opaque)) {
-            ChannelBuffer corkedResponse = corkedBuffers.get(opaque);
-            ChannelBuffer oldBuffer = corkedResponse;
-            corkedResponse = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, totalCapacity + corkedResponse.capacity());
-            corkedResponse.writeBytes(oldBuffer);
-            oldBuffer.clear();
-
-            corkedBuffers.remove(opaque);
-            corkedBuffers.put(opaque, corkedResponse);
-            return corkedResponse;
-        } else {
-            ChannelBuffer buffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, totalCapacity);
-            corkedBuffers.put(opaque, buffer);
-            return buffer;
+    /**
+     * Hold back the response to a quiet command, unless enough are held back already that they should go now.
+     */
+    private void cork(Channel channel, ChannelBuffer response) {
+        corked.add(response);
+        corkedBytes += response.readableBytes();
+        if (corked.size() >= MAX_CORKED || corkedBytes >= MAX_CORKED_BYTES) {
+            ChannelBuffer responses = uncork();
+            if (channel.isOpen()) channel.write(responses);
         }
     }
 
-    private void uncork(int opaque, Channel channel) {
-        ChannelBuffer corkedBuffer = corkedBuffers.get(opaque);
-        assert corkedBuffer !=  null;
-        channel.write(corkedBuffer);
-        corkedBuffers.remove(opaque);
+    /**
+     * Write a response, along with any corked ones ahead of it, as one buffer.
+     */
+    private void write(Channel channel, ChannelBuffer response) {
+        if (!corked.isEmpty()) {
+            corked.add(response);
+            response = uncork();
+        }
+        if (channel.isOpen()) channel.write(response);
     }
 
-    private void writePayload(MessageEvent messageEvent, ChannelBuffer extrasBuffer, ChannelBuffer keyBuffer, ChannelBuffer valueBuffer, ChannelBuffer headerBuffer) {
-        if (messageEvent.getChannel().isOpen()) {
-            messageEvent.getChannel().write(headerBuffer);
-            if (extrasBuffer != null)
-                messageEvent.getChannel().write(extrasBuffer);
-            if (keyBuffer != null)
-                messageEvent.getChannel().write(keyBuffer);
-            if (valueBuffer != null)
-                messageEvent.getChannel().write(valueBuffer);
-        }
+    /**
+     * @return the corked responses, as one buffer, leaving none corked
+     */
+    private ChannelBuffer uncork() {
+        ChannelBuffer responses = ChannelBuffers.wrappedBuffer(corked.toArray(new ChannelBuffer[corked.size()]));
+        corked.clear();
+        corkedBytes = 0;
+        return responses;
     }
 }
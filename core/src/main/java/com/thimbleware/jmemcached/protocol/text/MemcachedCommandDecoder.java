@@ -1,9 +1,9 @@
 package com.thimbleware.jmemcached.protocol.text;
 
-import com.thimbleware.jmemcached.CacheElement;
 import com.thimbleware.jmemcached.Key;
 import com.thimbleware.jmemcached.LocalCacheElement;
 import com.thimbleware.jmemcached.protocol.CommandMessage;
+import com.thimbleware.jmemcached.protocol.MetaFlags;
 import com.thimbleware.jmemcached.protocol.Op;
 import com.thimbleware.jmemcached.protocol.SessionStatus;
 import com.thimbleware.jmemcached.protocol.exceptions.IncorrectlyTerminatedPayloadException;
@@ -12,7 +12,6 @@ import com.thimbleware.jmemcached.protocol.exceptions.MalformedCommandException;
 import com.thimbleware.jmemcached.protocol.exceptions.UnknownCommandException;
 import com.thimbleware.jmemcached.util.BufferUtils;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferIndexFinder;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
@@ -25,62 +24,91 @@ import java.util.List;
  * into CommandMessage instances for handling by the MemcachedCommandHandler
  * <p/>
  * Protocol status is held in the SessionStatus instance which is shared between each of the decoders in the pipeline.
+ * <p/>
+ * A command line is scanned once, byte by byte, recording the bounds of its tokens in arrays reused from line to line;
+ * the op and numeric fields are read straight out of the frame buffer, and only keys are sliced from it.
  */
 public final class MemcachedCommandDecoder extends FrameDecoder {
 
     private static final int MIN_BYTES_LINE = 2;
+
+    /**
+     * Payloads at least this large are collected in chunks of this size as they arrive, rather than being left to
+     * accumulate in one contiguous frame buffer
+     */
+    static final int PAYLOAD_CHUNK_BYTES = 64 * 1024;
+
     private SessionStatus status;
 
+    // chunks collected so far for a large payload, and the chunk currently being filled
+    private List<ChannelBuffer> payloadChunks;
+    private ChannelBuffer payloadChunk;
+    private int payloadBytes;
+
     private static final ChannelBuffer NOREPLY = ChannelBuffers.wrappedBuffer("noreply".getBytes());
 
+    // where the tokens of the line being processed start, and how long they are; reused from line to line
+    private int[] tokenStarts = new int[8];
+    private int[] tokenLengths = new int[8];
+
 
     public MemcachedCommandDecoder(SessionStatus status) {
         this.status = status;
     }
 
-    /**
-     * Index finder which locates a byte which is neither a {@code CR ('\r')}
-     * nor a {@code LF ('\n')}.
-     */
-    static ChannelBufferIndexFinder CRLF_OR_WS = new ChannelBufferIndexFinder() {
-        public final boolean find(ChannelBuffer buffer, int guessedIndex) {
-            byte b = buffer.getByte(guessedIndex);
-            return b == ' ' || b == '\r' || b == '\n';
+    private void addToken(int token, int start, int end) {
+        if (token == tokenStarts.length) {
+            int[] starts = new int[token * 2];
+            int[] lengths = new int[token * 2];
+            System.arraycopy(tokenStarts, 0, starts, 0, token);
+            System.arraycopy(tokenLengths, 0, lengths, 0, token);
+            tokenStarts = starts;
+            tokenLengths = lengths;
         }
-    };
+        tokenStarts[token] = start;
+        tokenLengths[token] = end - start;
+    }
 
-    static boolean eol(int pos, ChannelBuffer buffer) {
-        return buffer.readableBytes() >= MIN_BYTES_LINE && buffer.getByte(buffer.readerIndex() + pos) == '\r' && buffer.getByte(buffer.readerIndex() + pos+1) == '\n';
+    private int intToken(ChannelBuffer buffer, int token) {
+        return BufferUtils.atoi(buffer, tokenStarts[token], tokenLengths[token]);
+    }
+
+    private long longToken(ChannelBuffer buffer, int token) {
+        return BufferUtils.atol(buffer, tokenStarts[token], tokenLengths[token]);
+    }
+
+    private ChannelBuffer token(ChannelBuffer buffer, int token) {
+        return buffer.slice(tokenStarts[token], tokenLengths[token]);
+    }
+
+    private boolean isNoreply(ChannelBuffer buffer, int token) {
+        return tokenLengths[token] == NOREPLY.capacity() && BufferUtils.equals(buffer, tokenStarts[token], NOREPLY, 0, NOREPLY.capacity());
     }
 
     @Override
     protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
         if (status.state == SessionStatus.State.READY) {
-            ChannelBuffer in = buffer.slice();
-
-            // split into pieces
-            List<ChannelBuffer> pieces = new ArrayList<ChannelBuffer>(6);
-            if (in.readableBytes() < MIN_BYTES_LINE) return null;
-            int pos = in.bytesBefore(CRLF_OR_WS);
-            boolean eol = false;
-            do {
-                if (pos != -1) {
-                    eol = eol(pos, in);
-                    int skip = eol ? MIN_BYTES_LINE : 1;
-                    ChannelBuffer slice = in.readSlice(pos);
-                    slice.readerIndex(0);
-                    pieces.add(slice);
-                    in.skipBytes(skip);
-                    if (eol) break;
+            // one pass over the line, noting where each space separated token starts and ends, up to the LF
+            int tokens = 0;
+            int tokenStart = -1;
+            for (int index = buffer.readerIndex(), end = buffer.writerIndex(); index < end; index++) {
+                byte b = buffer.getByte(index);
+                if (b == ' ' || b == '\r' || b == '\n') {
+                    if (tokenStart != -1) {
+                        addToken(tokens++, tokenStart, index);
+                        tokenStart = -1;
+                    }
+                    if (b == '\n') {
+                        buffer.readerIndex(index + 1);
+                        return processLine(buffer, tokens);
+                    }
+                } else if (tokenStart == -1) {
+                    tokenStart = index;
                 }
-            } while ((pos = in.bytesBefore(CRLF_OR_WS)) != -1);
-            if (eol) {
-                buffer.skipBytes(in.readerIndex());
-
-                return processLine(pieces, channel, ctx);
             }
-            if (status.state != SessionStatus.State.WAITING_FOR_DATA) status.ready();
         } else if (status.state == SessionStatus.State.WAITING_FOR_DATA) {
+            if (status.bytesNeeded >= PAYLOAD_CHUNK_BYTES) return collectPayload(channel, ctx, buffer);
+
             if (buffer.readableBytes() >= status.bytesNeeded + MemcachedResponseEncoder.CRLF.capacity()) {
 
                 // verify delimiter matches at the right location
@@ -113,29 +141,62 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
         return null;
     }
 
+    /**
+     * Collect a large payload chunk by chunk as it arrives. Bytes are moved out of the frame buffer as soon as they
+     * are read, so the frame buffer never has to hold (or grow to) the whole payload.
+     */
+    private Object collectPayload(Channel channel, ChannelHandlerContext ctx, ChannelBuffer buffer) throws IncorrectlyTerminatedPayloadException {
+        if (payloadChunks == null) {
+            payloadChunks = new ArrayList<ChannelBuffer>(status.bytesNeeded / PAYLOAD_CHUNK_BYTES + 1);
+            payloadBytes = 0;
+        }
+
+        while (payloadBytes < status.bytesNeeded && buffer.readable()) {
+            if (payloadChunk == null)
+                payloadChunk = ChannelBuffers.buffer(Math.min(PAYLOAD_CHUNK_BYTES, status.bytesNeeded - payloadBytes));
+
+            int n = Math.min(payloadChunk.writableBytes(), buffer.readableBytes());
+            payloadChunk.writeBytes(buffer, n);
+            payloadBytes += n;
+
+            if (!payloadChunk.writable()) {
+                payloadChunks.add(payloadChunk);
+                payloadChunk = null;
+            }
+        }
+
+        if (payloadBytes < status.bytesNeeded || buffer.readableBytes() < MIN_BYTES_LINE) return null;
+
+        ChannelBuffer result = ChannelBuffers.wrappedBuffer(payloadChunks.toArray(new ChannelBuffer[payloadChunks.size()]));
+        payloadChunks = null;
+
+        if (!buffer.readSlice(MIN_BYTES_LINE).equals(MemcachedResponseEncoder.CRLF)) {
+            status.ready();
+            throw new IncorrectlyTerminatedPayloadException("payload not terminated correctly");
+        }
+
+        status.processingMultiline();
+        CommandMessage commandMessage = continueSet(channel, status, result, ctx);
+        if (status.state != SessionStatus.State.WAITING_FOR_DATA) status.ready();
+
+        return commandMessage;
+    }
+
     /**
      * Process an individual complete protocol line and either passes the command for processing by the
      * session handler, or (in the case of SET-type commands) partially parses the command and sets the session into
      * a state to wait for additional data.
      *
-     * @param parts                 the (originally space separated) parts of the command
-     * @param channel               the netty channel to operate on
-     * @param channelHandlerContext the netty channel handler context
+     * @param buffer    the buffer holding the line
+     * @param numParts  the number of (originally space separated) parts of the command, as found by decode
      * @throws com.thimbleware.jmemcached.protocol.exceptions.MalformedCommandException
      * @throws com.thimbleware.jmemcached.protocol.exceptions.UnknownCommandException
      */
-    private Object processLine(List<ChannelBuffer> parts, Channel channel, ChannelHandlerContext channelHandlerContext) throws UnknownCommandException, MalformedCommandException {
-        final int numParts = parts.size();
-
+    private Object processLine(ChannelBuffer buffer, int numParts) throws UnknownCommandException, MalformedCommandException {
         // Turn the command into an enum for matching on
-        Op op;
-        try {
-            op = Op.FindOp(parts.get(0));
-            if (op == null)
-                throw new IllegalArgumentException("unknown operation: " + parts.get(0).toString());
-        } catch (IllegalArgumentException e) {
-            throw new UnknownCommandException("unknown operation: " + parts.get(0).toString());
-        }
+        Op op = numParts == 0 ? null : Op.findOp(buffer, tokenStarts[0], tokenLengths[0]);
+        if (op == null)
+            throw new UnknownCommandException("unknown operation: " + (numParts == 0 ? "" : token(buffer, 0).toString(MemcachedPipelineFactory.USASCII)));
 
         // Produce the initial command message, for filling in later
         CommandMessage cmd = CommandMessage.command(op);
@@ -143,50 +204,55 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
 
         switch (op) {
             case DELETE:
-                cmd.setKey(parts.get(1));
+                if (numParts < 2)
+                    throw new MalformedCommandException("invalid delete command");
 
-                if (numParts >= MIN_BYTES_LINE) {
-                    if (parts.get(numParts - 1).equals(NOREPLY)) {
-                        cmd.noreply = true;
-                        if (numParts == 4)
-                            cmd.time = BufferUtils.atoi(parts.get(MIN_BYTES_LINE));
-                    } else if (numParts == 3)
-                        cmd.time = BufferUtils.atoi(parts.get(MIN_BYTES_LINE));
-                }
+                cmd.setKey(token(buffer, 1));
+
+                if (isNoreply(buffer, numParts - 1)) {
+                    cmd.noreply = true;
+                    if (numParts == 4)
+                        cmd.time = intToken(buffer, 2);
+                } else if (numParts == 3)
+                    cmd.time = intToken(buffer, 2);
 
                 return cmd;
             case DECR:
             case INCR:
                 // Malformed
-                if (numParts < MIN_BYTES_LINE || numParts > 3)
+                if (numParts < 3 || numParts > 4)
                     throw new MalformedCommandException("invalid increment command");
 
-                cmd.setKey(parts.get(1));
-                cmd.incrAmount = BufferUtils.atoi(parts.get(MIN_BYTES_LINE));
+                cmd.setKey(token(buffer, 1));
+                cmd.incrAmount = intToken(buffer, 2);
 
-                if (numParts == 3 && parts.get(MIN_BYTES_LINE).equals(NOREPLY)) {
+                if (numParts == 4 && isNoreply(buffer, 3)) {
                     cmd.noreply = true;
                 }
 
                 return cmd;
             case FLUSH_ALL:
-                if (numParts >= 1) {
-                    if (parts.get(numParts - 1).equals(NOREPLY)) {
-                        cmd.noreply = true;
-                        if (numParts == 3)
-                            cmd.time = BufferUtils.atoi((parts.get(1)));
-                    } else if (numParts == MIN_BYTES_LINE)
-                        cmd.time = BufferUtils.atoi((parts.get(1)));
-                }
+                if (numParts > 1 && isNoreply(buffer, numParts - 1)) {
+                    cmd.noreply = true;
+                    if (numParts == 3)
+                        cmd.time = intToken(buffer, 1);
+                } else if (numParts == 2)
+                    cmd.time = intToken(buffer, 1);
+
                 return cmd;
             case VERBOSITY: // verbosity <time> [noreply]\r\n
                 // Malformed
-                if (numParts < MIN_BYTES_LINE || numParts > 3)
+                if (numParts < 2 || numParts > 3)
                     throw new MalformedCommandException("invalid verbosity command");
 
-                cmd.time = BufferUtils.atoi((parts.get(1))); // verbose level
+                cmd.time = intToken(buffer, 1); // verbose level
 
-                if (numParts > 1 && parts.get(MIN_BYTES_LINE).equals(NOREPLY))
+                if (numParts == 3 && isNoreply(buffer, 2))
+                    cmd.noreply = true;
+
+                return cmd;
+            case SNAPSHOT: // snapshot [noreply]\r\n
+                if (numParts > 1 && isNoreply(buffer, 1))
                     cmd.noreply = true;
 
                 return cmd;
@@ -202,19 +268,19 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
                 }
 
                 // Fill in all the elements of the command
-                int size = BufferUtils.atoi(parts.get(4));
-                long expire = BufferUtils.atoi(parts.get(3)) * 1000;
-                int flags = BufferUtils.atoi(parts.get(MIN_BYTES_LINE));
-                cmd.element = new LocalCacheElement(new Key(parts.get(1).slice()), flags, expire != 0 && expire < CacheElement.THIRTY_DAYS ? LocalCacheElement.Now() + expire : expire, 0L);
+                int size = intToken(buffer, 4);
+                int flags = intToken(buffer, 2);
+                // the key is copied: it has to outlive this read, and the frame buffer is compacted between reads
+                cmd.element = new LocalCacheElement(new Key(buffer.copy(tokenStarts[1], tokenLengths[1])), flags, LocalCacheElement.expiry(intToken(buffer, 3)), 0L);
 
                 // look for cas and "noreply" elements
                 if (numParts > 5) {
                     int noreply = op == Op.CAS ? 6 : 5;
                     if (op == Op.CAS) {
-                        cmd.cas_key = BufferUtils.atol(parts.get(5));
+                        cmd.cas_key = longToken(buffer, 5);
                     }
 
-                    if (numParts == noreply + 1 && parts.get(noreply).equals(NOREPLY))
+                    if (numParts == noreply + 1 && isNoreply(buffer, noreply))
                         cmd.noreply = true;
                 }
 
@@ -223,6 +289,51 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
                 status.needMore(size, cmd);
                 break;
 
+            case MS: // ms <key> <datalen> <flag>*\r\n
+                if (numParts < 3)
+                    throw new MalformedCommandException("invalid meta set command");
+
+                cmd.meta = metaFlags(buffer, op, 3, numParts);
+                cmd.element = new LocalCacheElement(new Key(buffer.copy(tokenStarts[1], tokenLengths[1])), cmd.meta.clientFlags,
+                        cmd.meta.expire == MetaFlags.NO_EXPIRE ? 0 : cmd.meta.expire, 0L);
+
+                status.needMore(intToken(buffer, 2), cmd);
+                break;
+            case MG: // mg <key> <flag>*\r\n, and likewise md and ma
+            case MD:
+            case MA:
+                if (numParts < 2)
+                    throw new MalformedCommandException("invalid meta command");
+
+                cmd.setKey(token(buffer, 1));
+                cmd.meta = metaFlags(buffer, op, 2, numParts);
+
+                return cmd;
+            case MN:
+                return cmd;
+            case TOUCH: // touch <key> <exptime> [noreply]\r\n
+                if (numParts < 3 || numParts > 4)
+                    throw new MalformedCommandException("invalid touch command");
+
+                cmd.setKey(token(buffer, 1));
+                cmd.expire = LocalCacheElement.expiry(intToken(buffer, 2));
+                if (numParts == 4 && isNoreply(buffer, 3))
+                    cmd.noreply = true;
+
+                return cmd;
+            case GAT: // gat <exptime> <key>*\r\n, and likewise gats
+            case GATS:
+                if (numParts < 3)
+                    throw new MalformedCommandException("invalid get and touch command");
+
+                cmd.expire = LocalCacheElement.expiry(intToken(buffer, 1));
+                cmd.keys = new ArrayList<Key>(numParts - 2);
+                for (int i = 2; i < numParts; i++) {
+                    cmd.keys.add(new Key(token(buffer, i)));
+                }
+
+                return cmd;
+
             //
             case GET:
             case GETS:
@@ -230,7 +341,10 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
             case VERSION:
             case QUIT:
                 // Get all the keys
-                cmd.setKeys(parts.subList(1, numParts));
+                cmd.keys = new ArrayList<Key>(numParts - 1);
+                for (int i = 1; i < numParts; i++) {
+                    cmd.keys.add(new Key(token(buffer, i)));
+                }
 
                 // Pass it on.
                 return cmd;
@@ -241,6 +355,74 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
         return null;
     }
 
+    /**
+     * Parse the flags of a meta command: a letter each, some followed by an argument.
+     *
+     * @param buffer   the buffer holding the line
+     * @param op       the meta command
+     * @param first    the token of the first flag
+     * @param numParts the number of tokens on the line
+     */
+    private MetaFlags metaFlags(ChannelBuffer buffer, Op op, int first, int numParts) throws MalformedCommandException {
+        MetaFlags meta = new MetaFlags();
+        StringBuilder returned = new StringBuilder();
+        for (int i = first; i < numParts; i++) {
+            int start = tokenStarts[i];
+            int length = tokenLengths[i];
+            byte flag = buffer.getByte(start);
+            switch (flag) {
+                case 'v':
+                    meta.value = true;
+                    break;
+                case 'q':
+                    meta.quiet = true;
+                    break;
+                case 'c':
+                case 'f':
+                case 'k':
+                case 's':
+                case 't':
+                    returned.append((char) flag);
+                    break;
+                case 'O':
+                    // copied, as the response may well be written after the frame buffer has moved on
+                    meta.opaque = buffer.copy(start + 1, length - 1);
+                    returned.append('O');
+                    break;
+                case 'T':
+                    meta.expire = LocalCacheElement.expiry(BufferUtils.atoi(buffer, start + 1, length - 1));
+                    break;
+                case 'C':
+                    meta.compareCas = BufferUtils.atol(buffer, start + 1, length - 1);
+                    break;
+                case 'F':
+                    meta.clientFlags = BufferUtils.atoi(buffer, start + 1, length - 1);
+                    break;
+                case 'D':
+                    meta.delta = BufferUtils.atol(buffer, start + 1, length - 1);
+                    break;
+                case 'N':
+                    meta.leaseMillis = BufferUtils.atoi(buffer, start + 1, length - 1) * 1000L;
+                    break;
+                case 'I':
+                    meta.invalidate = true;
+                    break;
+                case 'M':
+                    if (length != 2) throw new MalformedCommandException("invalid meta mode");
+                    meta.mode = buffer.getByte(start + 1);
+                    break;
+                default:
+                    throw new MalformedCommandException("invalid meta flag");
+            }
+        }
+        meta.returned = returned.toString();
+
+        if (meta.mode != 0 && (op == Op.MS ? "SEAPR" : op == Op.MA ? "I+D-" : "").indexOf(meta.mode) == -1)
+            throw new MalformedCommandException("invalid meta mode");
+
+        return meta;
+    }
+
     /**
      * Handles the continuation of a SET/ADD/REPLACE command with the data it was waiting for.
      *
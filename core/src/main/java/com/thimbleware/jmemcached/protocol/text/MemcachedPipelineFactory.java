@@ -2,7 +2,12 @@ package com.thimbleware.jmemcached.protocol.text;
 
 import com.thimbleware.jmemcached.Cache;
 import com.thimbleware.jmemcached.protocol.MemcachedCommandHandler;
+import com.thimbleware.jmemcached.protocol.OutboundBudget;
+import com.thimbleware.jmemcached.protocol.OutboundThrottleHandler;
+import com.thimbleware.jmemcached.protocol.PipelineOptions;
 import com.thimbleware.jmemcached.protocol.SessionStatus;
+import com.thimbleware.jmemcached.protocol.WriteCoalescingHandler;
+import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
@@ -25,25 +30,41 @@ public final class MemcachedPipelineFactory implements ChannelPipelineFactory {
     private final MemcachedResponseEncoder memcachedResponseEncoder = new MemcachedResponseEncoder();
 
     private final MemcachedCommandHandler memcachedCommandHandler;
+    private final ChannelHandler commandExecution;
+    private final OutboundBudget outboundBudget;
 
 
     public MemcachedPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, int frameSize, DefaultChannelGroup channelGroup) {
+        this(cache, version, verbose, idleTime, frameSize, channelGroup, PipelineOptions.none());
+    }
+
+    /**
+     * @param options the command execution stage, output limits and command counts shared by the daemon's pipelines
+     */
+    public MemcachedPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, int frameSize, DefaultChannelGroup channelGroup,
+                                    PipelineOptions options) {
+        this.commandExecution = options.getCommandExecution();
+        this.outboundBudget = options.getOutboundBudget();
         this.cache = cache;
         this.version = version;
         this.verbose = verbose;
         this.idleTime = idleTime;
         this.frameSize = frameSize;
         this.channelGroup = channelGroup;
-        memcachedCommandHandler = new MemcachedCommandHandler(this.cache, this.version, this.verbose, this.idleTime, this.channelGroup);
+        memcachedCommandHandler = new MemcachedCommandHandler(this.cache, this.version, this.verbose, this.idleTime, this.channelGroup, options);
     }
 
     public final ChannelPipeline getPipeline() throws Exception {
         SessionStatus status = new SessionStatus().ready();
 
-        return Channels.pipeline(
-                new MemcachedCommandDecoder(status),
-                memcachedCommandHandler,
-                memcachedResponseEncoder);
+        ChannelPipeline pipeline = Channels.pipeline();
+        if (outboundBudget != null) pipeline.addLast("throttle", new OutboundThrottleHandler(outboundBudget));
+        pipeline.addLast("coalescer", new WriteCoalescingHandler());
+        pipeline.addLast("decoder", new MemcachedCommandDecoder(status));
+        if (commandExecution != null) pipeline.addLast("execution", commandExecution);
+        pipeline.addLast("handler", memcachedCommandHandler);
+        pipeline.addLast("encoder", memcachedResponseEncoder);
+        return pipeline;
     }
 
 
@@ -2,6 +2,10 @@ package com.thimbleware.jmemcached.protocol.text;
 
 import com.thimbleware.jmemcached.Cache;
 import com.thimbleware.jmemcached.CacheElement;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.protocol.CommandMessage;
+import com.thimbleware.jmemcached.protocol.MetaFlags;
 import com.thimbleware.jmemcached.protocol.Op;
 import com.thimbleware.jmemcached.protocol.ResponseMessage;
 import com.thimbleware.jmemcached.protocol.exceptions.ClientException;
@@ -36,10 +40,24 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
     private static final ChannelBuffer NOT_STORED = ChannelBuffers.copiedBuffer("NOT_STORED\r\n", USASCII);
     private static final ChannelBuffer STORED = ChannelBuffers.copiedBuffer("STORED\r\n", USASCII);
     private static final ChannelBuffer DELETED = ChannelBuffers.copiedBuffer("DELETED\r\n", USASCII);
+    private static final ChannelBuffer TOUCHED = ChannelBuffers.copiedBuffer("TOUCHED\r\n", USASCII);
     private static final ChannelBuffer END = ChannelBuffers.copiedBuffer("END\r\n", USASCII);
     private static final ChannelBuffer OK = ChannelBuffers.copiedBuffer("OK\r\n", USASCII);
     private static final ChannelBuffer ERROR = ChannelBuffers.copiedBuffer("ERROR\r\n", USASCII);
     private static final ChannelBuffer CLIENT_ERROR = ChannelBuffers.copiedBuffer("CLIENT_ERROR\r\n", USASCII);
+    private static final ChannelBuffer SNAPSHOT_FAILED = ChannelBuffers.copiedBuffer("SERVER_ERROR snapshot failed\r\n", USASCII);
+
+    // meta response codes
+    private static final byte[] HD = "HD".getBytes();
+    private static final byte[] VA = "VA ".getBytes();
+    private static final byte[] NS = "NS".getBytes();
+    private static final byte[] EX = "EX".getBytes();
+    private static final byte[] NF = "NF".getBytes();
+    private static final ChannelBuffer EN = ChannelBuffers.copiedBuffer("EN\r\n", USASCII);
+    private static final ChannelBuffer MN = ChannelBuffers.copiedBuffer("MN\r\n", USASCII);
+    private static final byte[] WON = " W".getBytes();
+    private static final byte[] LEASE_PENDING = " Z".getBytes();
+    private static final byte[] STALE = " X".getBytes();
 
     /**
      * Handle exceptions in protocol processing. Exceptions are either client or internal errors.  Report accordingly.
@@ -75,9 +93,12 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
         switch (cmd) {
             case GET:
             case GETS:
+            case GAT:
+            case GATS:
                 CacheElement[] results = command.elements;
+                boolean withCas = cmd == Op.GETS || cmd == Op.GATS;
 
-                ChannelBuffer[] buffers = new ChannelBuffer[results.length * (9 + (cmd == Op.GETS ? 2 : 0)) + 1];
+                ChannelBuffer[] buffers = new ChannelBuffer[results.length * (9 + (withCas ? 2 : 0)) + 1];
                 int i = 0;
                 for (CacheElement result : results) {
                     if (result != null) {
@@ -87,7 +108,7 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
                         buffers[i++] = BufferUtils.itoa(result.getFlags());
                         buffers[i++] = SPACE;
                         buffers[i++] = BufferUtils.itoa(result.size());
-                        if (cmd == Op.GETS) {
+                        if (withCas) {
                             buffers[i++] = SPACE;
                             buffers[i++] = BufferUtils.ltoa(result.getCasUnique());
                         }
@@ -114,6 +135,10 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
                     Channels.write(channel, deleteResponseString(command.deleteResponse));
 
                 break;
+            case TOUCH:
+                if (!command.cmd.noreply)
+                    Channels.write(channel, command.touched ? TOUCHED.duplicate() : NOT_FOUND.duplicate());
+                break;
             case DECR:
             case INCR:
                 if (!command.cmd.noreply)
@@ -150,6 +175,20 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
                 break;
             case VERBOSITY:
                 break;
+            case SNAPSHOT:
+                if (!command.cmd.noreply)
+                    Channels.write(channel, command.snapshotItems >= 0 ? OK.duplicate() : SNAPSHOT_FAILED.duplicate());
+                break;
+            case MG:
+            case MS:
+            case MD:
+            case MA:
+                ChannelBuffer meta = metaResponse(command);
+                if (meta != null) Channels.write(channel, meta);
+                break;
+            case MN:
+                Channels.write(channel, MN.duplicate());
+                break;
             default:
                 Channels.write(channel, ERROR.duplicate());
                 logger.error("error; unrecognized command: " + cmd);
@@ -158,6 +197,118 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
 
     }
 
+    /**
+     * Produce the response to a meta command: a two letter code and the fields its flags asked for, then for VA the
+     * value. Quiet commands leave out the usual response. A get which took part in a lease is flagged W if the client
+     * won it and Z if someone else holds it, and X if the item served is stale.
+     *
+     * @return the response, or null if there is none
+     */
+    private ChannelBuffer metaResponse(ResponseMessage<CACHE_ELEMENT> response) {
+        CommandMessage<CACHE_ELEMENT> cmd = response.cmd;
+        MetaFlags meta = cmd.meta;
+
+        ChannelBuffer head = ChannelBuffers.dynamicBuffer(64);
+        ChannelBuffer value = null;
+        CacheElement element = null;
+        switch (cmd.op) {
+            case MG:
+                element = response.elements[0];
+                Cache.LeaseStatus lease = response.leaseStatus;
+                boolean leased = lease == Cache.LeaseStatus.WON || lease == Cache.LeaseStatus.PENDING;
+                // with a lease in play, a missing item is answered as an empty one, to carry the lease flags
+                if (element == null && !leased) return meta.quiet ? null : EN.duplicate();
+
+                if (meta.value) {
+                    head.writeBytes(VA);
+                    head.writeBytes(BufferUtils.itoa(element == null ? 0 : element.size()));
+                    value = element == null ? ChannelBuffers.EMPTY_BUFFER : element.getData();
+                } else {
+                    head.writeBytes(HD);
+                }
+                break;
+            case MS:
+                if (response.response == Cache.StoreResponse.STORED) {
+                    if (meta.quiet) return null;
+                    head.writeBytes(HD);
+                    // the stored cas unique, for c
+                    element = cmd.element;
+                } else {
+                    head.writeBytes(response.response == Cache.StoreResponse.NOT_STORED ? NS
+                            : response.response == Cache.StoreResponse.EXISTS ? EX : NF);
+                }
+                break;
+            case MD:
+                if (response.deleteResponse == Cache.DeleteResponse.DELETED) {
+                    if (meta.quiet) return null;
+                    head.writeBytes(HD);
+                } else {
+                    head.writeBytes(NF);
+                }
+                break;
+            case MA:
+                if (response.incrDecrResponse == null) {
+                    head.writeBytes(NF);
+                } else if (meta.value) {
+                    value = BufferUtils.itoa(response.incrDecrResponse);
+                    head.writeBytes(VA);
+                    head.writeBytes(BufferUtils.itoa(value.capacity()));
+                } else {
+                    if (meta.quiet) return null;
+                    head.writeBytes(HD);
+                }
+                break;
+        }
+
+        writeReturned(head, meta, cmd.element != null ? cmd.element.getKey() : cmd.keys.get(0), element);
+        if (response.leaseStatus == Cache.LeaseStatus.WON) head.writeBytes(WON);
+        else if (response.leaseStatus == Cache.LeaseStatus.PENDING) head.writeBytes(LEASE_PENDING);
+        if (element != null && response.leaseStatus != null && response.leaseStatus != Cache.LeaseStatus.FRESH)
+            head.writeBytes(STALE);
+        head.writeBytes(CRLF, 0, CRLF.capacity());
+
+        return value == null ? head : ChannelBuffers.wrappedBuffer(head, value, CRLF.duplicate());
+    }
+
+    /**
+     * Write the fields a meta command's flags asked for, in the order they were asked. Fields of the item are left
+     * out when there is no item to take them from.
+     */
+    private static void writeReturned(ChannelBuffer out, MetaFlags meta, Key key, CacheElement element) {
+        for (int i = 0; i < meta.returned.length(); i++) {
+            char flag = meta.returned.charAt(i);
+            ChannelBuffer field;
+            switch (flag) {
+                case 'O':
+                    field = meta.opaque;
+                    break;
+                case 'k':
+                    field = key.bytes;
+                    break;
+                case 'c':
+                    field = element == null ? null : BufferUtils.ltoa(element.getCasUnique());
+                    break;
+                case 'f':
+                    field = element == null ? null : BufferUtils.itoa(element.getFlags());
+                    break;
+                case 's':
+                    field = element == null ? null : BufferUtils.itoa(element.size());
+                    break;
+                case 't':
+                    field = element == null ? null : BufferUtils.ltoa(element.getExpire() == 0 ? -1
+                            : Math.max(0, (element.getExpire() - LocalCacheElement.Now()) / 1000));
+                    break;
+                default:
+                    field = null;
+            }
+            if (field == null) continue;
+
+            out.writeByte(' ');
+            out.writeByte(flag);
+            out.writeBytes(field, 0, field.capacity());
+        }
+    }
+
     private ChannelBuffer deleteResponseString(Cache.DeleteResponse deleteResponse) {
         if (deleteResponse == Cache.DeleteResponse.DELETED) return DELETED.duplicate();
         else return NOT_FOUND.duplicate();
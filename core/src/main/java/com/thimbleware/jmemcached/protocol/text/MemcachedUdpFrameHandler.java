@@ -0,0 +1,172 @@
+package com.thimbleware.jmemcached.protocol.text;
+
+import com.thimbleware.jmemcached.protocol.CommandMessage;
+import com.thimbleware.jmemcached.protocol.SessionStatus;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelDownstreamHandler;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.embedder.CodecEmbedderException;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.thimbleware.jmemcached.protocol.text.MemcachedPipelineFactory.USASCII;
+
+/**
+ * Carries the text protocol over UDP. Each datagram starts with memcached's 8 byte frame header: the request id, the
+ * sequence number of the datagram, the number of datagrams in the message, and two reserved bytes.
+ * <p/>
+ * A request has to fit in one datagram, which is decoded on its own by a text decoder of its own, as there is no
+ * stream to carry anything over to the next one. Its commands are executed there and then, and everything written
+ * back is gathered up and sent to the client in as many datagrams as it takes, each headed with the request id.
+ * <p/>
+ * Sits at the head of the pipeline, with the command handler and response encoder behind it and nothing which hands
+ * commands over to other threads. One per channel.
+ */
+public final class MemcachedUdpFrameHandler implements ChannelUpstreamHandler, ChannelDownstreamHandler {
+
+    static final int HEADER_LENGTH = 8;
+
+    /**
+     * Room to read a request datagram into: the largest a UDP datagram can carry, as anything which doesn't fit is
+     * cut off
+     */
+    public static final int MAX_REQUEST_BYTES = 65536;
+
+    /**
+     * Most bytes in a response datagram, header included, so that it isn't fragmented on the way
+     */
+    static final int MAX_DATAGRAM_BYTES = 1400;
+
+    private static final int MAX_DATAGRAMS = 0xffff;
+
+    private static final ChannelBuffer MULTI_PACKET = ChannelBuffers.copiedBuffer("SERVER_ERROR multi-packet request not supported\r\n", USASCII);
+    private static final ChannelBuffer TOO_LARGE = ChannelBuffers.copiedBuffer("SERVER_ERROR response too large for UDP\r\n", USASCII);
+
+    // the thread executing a request, and the response it has written so far; writes from other threads pass by
+    private volatile Thread responder;
+    private ChannelBuffer response;
+    private List<ChannelFuture> responseFutures;
+
+    public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+        if (!(e instanceof MessageEvent) || !(((MessageEvent) e).getMessage() instanceof ChannelBuffer)) {
+            ctx.sendUpstream(e);
+            return;
+        }
+
+        MessageEvent datagram = (MessageEvent) e;
+        ChannelBuffer request = (ChannelBuffer) datagram.getMessage();
+
+        // without a header there's no request id to answer with
+        if (request.readableBytes() < HEADER_LENGTH) return;
+
+        int requestId = request.readUnsignedShort();
+        request.skipBytes(2); // sequence number
+        int datagrams = request.readUnsignedShort();
+        request.skipBytes(2); // reserved
+
+        response = ChannelBuffers.dynamicBuffer(256);
+        responseFutures = new ArrayList<ChannelFuture>(2);
+        responder = Thread.currentThread();
+        try {
+            if (datagrams != 1) response.writeBytes(MULTI_PACKET, 0, MULTI_PACKET.capacity());
+            else execute(ctx, request, datagram.getRemoteAddress());
+        } finally {
+            responder = null;
+            respond(ctx, requestId, response, responseFutures, datagram.getRemoteAddress());
+            response = null;
+            responseFutures = null;
+        }
+    }
+
+    /**
+     * Decode the commands in a request and pass them on to be executed, followed by the error which stopped the
+     * decoding, if any.
+     */
+    private void execute(ChannelHandlerContext ctx, ChannelBuffer request, SocketAddress client) {
+        DecoderEmbedder<CommandMessage> decoder = new DecoderEmbedder<CommandMessage>(new MemcachedCommandDecoder(new SessionStatus().ready()));
+        Throwable failure = null;
+        try {
+            decoder.offer(request);
+        } catch (CodecEmbedderException ce) {
+            failure = ce.getCause() != null ? ce.getCause() : ce;
+        }
+
+        for (CommandMessage command = decoder.poll(); command != null; command = decoder.poll()) {
+            Channels.fireMessageReceived(ctx, command, client);
+        }
+        if (failure != null) Channels.fireExceptionCaught(ctx, failure);
+    }
+
+    public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+        if (responder != Thread.currentThread()) {
+            ctx.sendDownstream(e);
+            return;
+        }
+
+        if (e instanceof MessageEvent && ((MessageEvent) e).getMessage() instanceof ChannelBuffer) {
+            ChannelBuffer part = (ChannelBuffer) ((MessageEvent) e).getMessage();
+            response.writeBytes(part, part.readerIndex(), part.readableBytes());
+            responseFutures.add(e.getFuture());
+        } else if (e instanceof ChannelStateEvent && ((ChannelStateEvent) e).getState() != ChannelState.INTEREST_OPS) {
+            // a quit has no connection to end, and mustn't close the channel everyone shares
+            e.getFuture().setSuccess();
+        } else {
+            ctx.sendDownstream(e);
+        }
+    }
+
+    /**
+     * Send a response in as many datagrams as it takes, completing the futures of the writes which made it up with
+     * the outcome of the last.
+     */
+    private static void respond(ChannelHandlerContext ctx, int requestId, ChannelBuffer body, final List<ChannelFuture> futures, SocketAddress client) {
+        // noreply commands leave nothing to send
+        if (!body.readable()) {
+            for (ChannelFuture future : futures) {
+                future.setSuccess();
+            }
+            return;
+        }
+
+        int payload = MAX_DATAGRAM_BYTES - HEADER_LENGTH;
+        int datagrams = (body.readableBytes() + payload - 1) / payload;
+        if (datagrams > MAX_DATAGRAMS) {
+            body = TOO_LARGE.duplicate();
+            datagrams = 1;
+        }
+
+        ChannelFuture last = null;
+        for (int sequence = 0; sequence < datagrams; sequence++) {
+            ChannelBuffer header = ChannelBuffers.buffer(HEADER_LENGTH);
+            header.writeShort(requestId);
+            header.writeShort(sequence);
+            header.writeShort(datagrams);
+            header.writeShort(0);
+
+            last = Channels.future(ctx.getChannel());
+            Channels.write(ctx, last, ChannelBuffers.wrappedBuffer(header, body.readSlice(Math.min(payload, body.readableBytes()))), client);
+        }
+
+        last.addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                for (ChannelFuture f : futures) {
+                    if (future.isSuccess()) f.setSuccess();
+                    else if (future.isCancelled()) f.cancel();
+                    else f.setFailure(future.getCause());
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,37 @@
+package com.thimbleware.jmemcached.protocol.text;
+
+import com.thimbleware.jmemcached.Cache;
+import com.thimbleware.jmemcached.protocol.MemcachedCommandHandler;
+import com.thimbleware.jmemcached.protocol.PipelineOptions;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+
+/**
+ * Pipeline for the text protocol over UDP. Commands are executed on the I/O thread which read their datagram, so
+ * that the response is complete by the time {@link MemcachedUdpFrameHandler} sends it. Output isn't throttled, as the
+ * channel is shared by every client and a datagram is sent as soon as it is written.
+ */
+public final class MemcachedUdpPipelineFactory implements ChannelPipelineFactory {
+
+    private final MemcachedResponseEncoder memcachedResponseEncoder = new MemcachedResponseEncoder();
+
+    private final MemcachedCommandHandler memcachedCommandHandler;
+
+    /**
+     * @param options the options shared by the daemon's pipelines; only the command counts are kept, and the output
+     * limits of the other listeners reported in stats, as there is no command execution stage or throttle here
+     */
+    public MemcachedUdpPipelineFactory(Cache cache, String version, boolean verbose, DefaultChannelGroup channelGroup, PipelineOptions options) {
+        memcachedCommandHandler = new MemcachedCommandHandler(cache, version, verbose, -1, channelGroup, options);
+    }
+
+    public final ChannelPipeline getPipeline() throws Exception {
+        ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("frame", new MemcachedUdpFrameHandler());
+        pipeline.addLast("handler", memcachedCommandHandler);
+        pipeline.addLast("encoder", memcachedResponseEncoder);
+        return pipeline;
+    }
+}
@@ -3,11 +3,17 @@ package com.thimbleware.jmemcached.storage;
 import com.thimbleware.jmemcached.storage.hash.SizedItem;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 
 /**
  * The interface for cache storage. Essentially a concurrent map but with methods for investigating the heap
  * state of the storage unit and with additional support for explicit resource-cleanup (close()).
+ *
+ * Values handed out by get, getAll and the methods returning a previous value share no memory which the storage will
+ * later reuse for another item, so a caller may hold on to them, e.g. in a queued response, after the entry has been
+ * overwritten or removed.
  */
 public interface CacheStorage<K, V extends SizedItem> extends ConcurrentMap<K, V> {
     /**
@@ -25,6 +31,118 @@ public interface CacheStorage<K, V extends SizedItem> extends ConcurrentMap<K, V
      */
     int capacity();
 
+    /**
+     * Whether the storage holds on to the values put into it as they are, or copies their bytes into memory of its
+     * own. Values decoded from the network are views onto receive buffers; a storage which retains them must be given
+     * copies, or one small item can keep a whole receive buffer alive.
+     *
+     * @return true if the storage keeps references to the keys and values put into it
+     */
+    boolean retainsValues();
+
+    /**
+     * Store an entry, replacing whatever the key was mapped to, like {@link #put} but without handing back the value it
+     * replaced. Storage which would have to copy the old value out of its own memory to return it skips that work.
+     *
+     * @param key the key
+     * @param value the value
+     */
+    void set(K key, V value);
+
+    /**
+     * Look up several keys at once. Partitioned storage visits each partition once, under one acquisition of its lock,
+     * for all of the keys which fall in it, rather than once per key.
+     *
+     * @param keys the keys
+     * @param values filled in with the value of each key, at the same index, or null where there is none
+     */
+    void getAll(K[] keys, V[] values);
+
+    /**
+     * Store several entries at once, replacing whatever the keys were mapped to. Where a key appears more than once,
+     * the last of its values wins. Like {@link #getAll}, partitioned storage locks each partition once for all of its
+     * keys.
+     *
+     * @param keys the keys
+     * @param values the value for each key, at the same index
+     */
+    void putAll(K[] keys, V[] values);
+
+    /**
+     * Remove several entries at once.
+     *
+     * @param keys the keys
+     * @param removed filled in with whether each key was mapped to anything, at the same index
+     */
+    void removeAll(K[] keys, boolean[] removed);
+
+    /**
+     * Replace several entries at once, each only if it is still mapped to the given original.
+     *
+     * @param keys the keys
+     * @param originals the value each key is expected to be mapped to, or null to leave the key alone
+     * @param replacements the new value for each key
+     * @param replaced filled in with whether each key was replaced, at the same index
+     */
+    void replaceAll(K[] keys, V[] originals, V[] replacements, boolean[] replaced);
+
+    /**
+     * Like {@link #replaceAll}, for replacements which differ from their originals only in their expiry. Storage
+     * which keeps its own copy of the items changes the expiry where it lies, rather than writing the value again.
+     *
+     * @param keys the keys
+     * @param originals the value each key is expected to be mapped to, or null to leave the key alone
+     * @param touched the original with its new expiry, for each key
+     * @param replaced filled in with whether each key was touched, at the same index
+     */
+    void touchAll(K[] keys, V[] originals, V[] touched, boolean[] replaced);
+
+    /**
+     * Replace the entry for a key with a longer version of it, only if currently mapped to the given value.
+     *
+     * {@code replace} must hold the data of {@code original} followed by {@code appendedBytes} more bytes. Storage
+     * which can link the new bytes onto the existing value is then free to write only those, rather than rewriting
+     * the whole value; otherwise this behaves as {@link #replace(Object, Object, Object)}.
+     *
+     * @param key the key
+     * @param original the value expected to be currently mapped to the key
+     * @param replace the value with the appended data
+     * @param appendedBytes the number of bytes at the end of replace's data which are new
+     * @return true if the value was replaced
+     */
+    boolean replaceAppended(K key, V original, V replace, int appendedBytes);
+
+    /**
+     * As {@link #replaceAppended(Object, SizedItem, SizedItem, int)}, but with the new bytes at the start of
+     * {@code replace}'s data.
+     *
+     * @param key the key
+     * @param original the value expected to be currently mapped to the key
+     * @param replace the value with the prepended data
+     * @param prependedBytes the number of bytes at the start of replace's data which are new
+     * @return true if the value was replaced
+     */
+    boolean replacePrepended(K key, V original, V replace, int prependedBytes);
+
+    /**
+     * @return statistics particular to the storage, for the stats command
+     */
+    Map<String, String> getStats();
+
+    /**
+     * @return the number of partitions the storage can be copied out in, for snapshots
+     */
+    int getPartitionCount();
+
+    /**
+     * Copy out the values held in one partition, for snapshots. At most that one partition is locked while this runs,
+     * and the values returned do not share any state with the storage.
+     *
+     * @param partition the partition, from 0 to getPartitionCount() - 1
+     * @return the values
+     */
+    Collection<V> copyPartition(int partition);
+
     /**
      * Close the storage unit, deallocating any resources it might be currently holding.
      * @throws java.io.IOException thrown if IO faults occur anywhere during close.
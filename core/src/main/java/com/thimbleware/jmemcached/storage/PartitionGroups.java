@@ -0,0 +1,54 @@
+package com.thimbleware.jmemcached.storage;
+
+/**
+ * Groups the keys of a bulk operation by the partition they fall in, so that each partition can be visited (and
+ * locked) once for all of its keys.
+ */
+public final class PartitionGroups {
+
+    private final int[] starts;
+    private final int[] order;
+
+    /**
+     * @param partitionOf the partition of each key
+     * @param partitionCount the number of partitions
+     */
+    public PartitionGroups(int[] partitionOf, int partitionCount) {
+        // a counting sort of the key indices by partition; keys keep their relative order within a partition
+        starts = new int[partitionCount + 1];
+        for (int partition : partitionOf) {
+            starts[partition + 1]++;
+        }
+        for (int i = 0; i < partitionCount; i++) {
+            starts[i + 1] += starts[i];
+        }
+
+        order = new int[partitionOf.length];
+        int[] next = new int[partitionCount];
+        System.arraycopy(starts, 0, next, 0, partitionCount);
+        for (int i = 0; i < partitionOf.length; i++) {
+            order[next[partitionOf[i]]++] = i;
+        }
+    }
+
+    /**
+     * @return the indices of the keys, grouped by partition
+     */
+    public int[] order() {
+        return order;
+    }
+
+    /**
+     * @return where a partition's keys start in {@link #order()}
+     */
+    public int start(int partition) {
+        return starts[partition];
+    }
+
+    /**
+     * @return where a partition's keys end in {@link #order()}, exclusive
+     */
+    public int end(int partition) {
+        return starts[partition + 1];
+    }
+}
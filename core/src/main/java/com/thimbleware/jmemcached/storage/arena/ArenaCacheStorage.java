@@ -0,0 +1,477 @@
+package com.thimbleware.jmemcached.storage.arena;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.PartitionGroups;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Implementation of the cache which keeps items on the heap, but packed into large byte array pages rather than as
+ * objects of their own. Each segment holds a handful of arrays however many items it stores, so there is next to
+ * nothing for the garbage collector to trace, and an item costs its bytes plus a 41 byte header and 12 bytes of index.
+ *
+ * Values handed out are copies; nothing refers into the pages outside a segment's lock.
+ */
+public final class ArenaCacheStorage implements CacheStorage<Key, LocalCacheElement> {
+
+    private static final int MIN_PAGE_SIZE = 4 * 1024;
+    private static final int MAX_PAGE_SIZE = 1024 * 1024;
+
+    private final Segment[] segments;
+    private final long maximumSizeBytes;
+    private final int maximumItems;
+
+    /**
+     * @param segmentCount number of independently locked segments; rounded up to a power of two
+     * @param maximumSizeBytes bytes of pages the storage may allocate, split evenly between the segments
+     * @param maximumItems number of items the storage may hold, split evenly between the segments
+     */
+    public ArenaCacheStorage(int segmentCount, long maximumSizeBytes, int maximumItems) {
+        int count = 1;
+        while (count < segmentCount) count <<= 1;
+        this.segments = new Segment[count];
+        this.maximumSizeBytes = maximumSizeBytes;
+        this.maximumItems = maximumItems;
+
+        long segmentBytes = maximumSizeBytes / count;
+        int pageSize = (int) Math.max(MIN_PAGE_SIZE, Math.min(MAX_PAGE_SIZE, segmentBytes / 8));
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(pageSize, segmentBytes, Math.max(1, maximumItems / count));
+        }
+    }
+
+    private Segment pickSegment(Key key) {
+        return segments[segmentIndex(key)];
+    }
+
+    private int segmentIndex(Key key) {
+        // the high bits of the hash; the segment's index uses the low ones
+        return (key.hashCode() >>> 16) & (segments.length - 1);
+    }
+
+    public long getMemoryCapacity() {
+        return maximumSizeBytes;
+    }
+
+    public long getMemoryUsed() {
+        long used = 0;
+        for (Segment segment : segments) {
+            segment.storageLock.readLock().lock();
+            try {
+                used += segment.dataBytes;
+            } finally {
+                segment.storageLock.readLock().unlock();
+            }
+        }
+        return used;
+    }
+
+    public int capacity() {
+        return maximumItems;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Keys and data are copied into the pages.
+     */
+    public boolean retainsValues() {
+        return false;
+    }
+
+    public LocalCacheElement get(Object okey) {
+        if (!(okey instanceof Key)) return null;
+
+        Key key = (Key) okey;
+        Segment segment = pickSegment(key);
+
+        segment.storageLock.readLock().lock();
+        try {
+            int slot = segment.find(key);
+            return slot == -1 ? null : segment.get(slot);
+        } finally {
+            segment.storageLock.readLock().unlock();
+        }
+    }
+
+    public void getAll(Key[] keys, LocalCacheElement[] values) {
+        if (keys.length == 1) {
+            values[0] = get(keys[0]);
+            return;
+        }
+
+        PartitionGroups groups = group(keys);
+        for (int s = 0; s < segments.length; s++) {
+            if (groups.start(s) == groups.end(s)) continue;
+
+            Segment segment = segments[s];
+            segment.storageLock.readLock().lock();
+            try {
+                segment.getAll(keys, groups.order(), groups.start(s), groups.end(s), values);
+            } finally {
+                segment.storageLock.readLock().unlock();
+            }
+        }
+    }
+
+    public void putAll(Key[] keys, LocalCacheElement[] values) {
+        PartitionGroups groups = group(keys);
+        int[] order = groups.order();
+        for (int s = 0; s < segments.length; s++) {
+            if (groups.start(s) == groups.end(s)) continue;
+
+            Segment segment = segments[s];
+            segment.storageLock.writeLock().lock();
+            try {
+                for (int i = groups.start(s); i < groups.end(s); i++) {
+                    segment.put(keys[order[i]], values[order[i]]);
+                }
+            } finally {
+                segment.storageLock.writeLock().unlock();
+            }
+        }
+    }
+
+    public void removeAll(Key[] keys, boolean[] removed) {
+        PartitionGroups groups = group(keys);
+        int[] order = groups.order();
+        for (int s = 0; s < segments.length; s++) {
+            if (groups.start(s) == groups.end(s)) continue;
+
+            Segment segment = segments[s];
+            segment.storageLock.writeLock().lock();
+            try {
+                for (int i = groups.start(s); i < groups.end(s); i++) {
+                    int slot = segment.find(keys[order[i]]);
+                    removed[order[i]] = slot != -1;
+                    if (slot != -1) segment.remove(slot);
+                }
+            } finally {
+                segment.storageLock.writeLock().unlock();
+            }
+        }
+    }
+
+    public void replaceAll(Key[] keys, LocalCacheElement[] originals, LocalCacheElement[] replacements, boolean[] replaced) {
+        PartitionGroups groups = group(keys);
+        int[] order = groups.order();
+        for (int s = 0; s < segments.length; s++) {
+            if (groups.start(s) == groups.end(s)) continue;
+
+            Segment segment = segments[s];
+            segment.storageLock.writeLock().lock();
+            try {
+                for (int i = groups.start(s); i < groups.end(s); i++) {
+                    int k = order[i];
+                    replaced[k] = false;
+                    if (originals[k] == null) continue;
+
+                    int slot = segment.find(keys[k]);
+                    if (slot == -1 || !segment.matches(slot, originals[k])) continue;
+
+                    segment.put(keys[k], replacements[k]);
+                    replaced[k] = true;
+                }
+            } finally {
+                segment.storageLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The new expiry is written over the old in the record's header; the record is not moved.
+     */
+    public void touchAll(Key[] keys, LocalCacheElement[] originals, LocalCacheElement[] touched, boolean[] replaced) {
+        PartitionGroups groups = group(keys);
+        int[] order = groups.order();
+        for (int s = 0; s < segments.length; s++) {
+            if (groups.start(s) == groups.end(s)) continue;
+
+            Segment segment = segments[s];
+            segment.storageLock.writeLock().lock();
+            try {
+                for (int i = groups.start(s); i < groups.end(s); i++) {
+                    int k = order[i];
+                    replaced[k] = false;
+                    if (originals[k] == null) continue;
+
+                    int slot = segment.find(keys[k]);
+                    if (slot == -1 || !segment.matches(slot, originals[k])) continue;
+
+                    segment.setExpire(slot, touched[k].getExpire());
+                    replaced[k] = true;
+                }
+            } finally {
+                segment.storageLock.writeLock().unlock();
+            }
+        }
+    }
+
+    private PartitionGroups group(Key[] keys) {
+        int[] segmentOf = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            segmentOf[i] = segmentIndex(keys[i]);
+        }
+        return new PartitionGroups(segmentOf, segments.length);
+    }
+
+    public boolean containsKey(Object okey) {
+        if (!(okey instanceof Key)) return false;
+
+        Key key = (Key) okey;
+        Segment segment = pickSegment(key);
+
+        segment.storageLock.readLock().lock();
+        try {
+            return segment.find(key) != -1;
+        } finally {
+            segment.storageLock.readLock().unlock();
+        }
+    }
+
+    public LocalCacheElement put(Key key, LocalCacheElement item) {
+        Segment segment = pickSegment(key);
+
+        segment.storageLock.writeLock().lock();
+        try {
+            int slot = segment.find(key);
+            LocalCacheElement old = slot == -1 ? null : segment.get(slot);
+            segment.put(key, item);
+            return old;
+        } finally {
+            segment.storageLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The old item is overwritten without its value being copied out of its page.
+     */
+    public void set(Key key, LocalCacheElement item) {
+        Segment segment = pickSegment(key);
+
+        segment.storageLock.writeLock().lock();
+        try {
+            segment.put(key, item);
+        } finally {
+            segment.storageLock.writeLock().unlock();
+        }
+    }
+
+    public LocalCacheElement putIfAbsent(Key key, LocalCacheElement item) {
+        Segment segment = pickSegment(key);
+
+        segment.storageLock.writeLock().lock();
+        try {
+            int slot = segment.find(key);
+            if (slot != -1) return segment.get(slot);
+
+            segment.put(key, item);
+            return null;
+        } finally {
+            segment.storageLock.writeLock().unlock();
+        }
+    }
+
+    public LocalCacheElement replace(Key key, LocalCacheElement item) {
+        Segment segment = pickSegment(key);
+
+        segment.storageLock.writeLock().lock();
+        try {
+            int slot = segment.find(key);
+            if (slot == -1) return null;
+
+            LocalCacheElement old = segment.get(slot);
+            segment.put(key, item);
+            return old;
+        } finally {
+            segment.storageLock.writeLock().unlock();
+        }
+    }
+
+    public boolean replace(Key key, LocalCacheElement original, LocalCacheElement replace) {
+        Segment segment = pickSegment(key);
+
+        segment.storageLock.writeLock().lock();
+        try {
+            int slot = segment.find(key);
+
+            // not there, or changed since it was read? that's a fail
+            if (slot == -1 || !segment.matches(slot, original)) return false;
+
+            segment.put(key, replace);
+            return true;
+        } finally {
+            segment.storageLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Records are never extended in place, so the whole of the new value is written.
+     */
+    public boolean replaceAppended(Key key, LocalCacheElement original, LocalCacheElement replace, int appendedBytes) {
+        return replace(key, original, replace);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Records are never extended in place, so the whole of the new value is written.
+     */
+    public boolean replacePrepended(Key key, LocalCacheElement original, LocalCacheElement replace, int prependedBytes) {
+        return replace(key, original, replace);
+    }
+
+    public LocalCacheElement remove(Object okey) {
+        if (!(okey instanceof Key)) return null;
+
+        Key key = (Key) okey;
+        Segment segment = pickSegment(key);
+
+        segment.storageLock.writeLock().lock();
+        try {
+            int slot = segment.find(key);
+            if (slot == -1) return null;
+
+            LocalCacheElement old = segment.get(slot);
+            segment.remove(slot);
+            return old;
+        } finally {
+            segment.storageLock.writeLock().unlock();
+        }
+    }
+
+    public boolean remove(Object okey, Object value) {
+        if (!(okey instanceof Key) || (!(value instanceof LocalCacheElement))) return false;
+
+        Key key = (Key) okey;
+        Segment segment = pickSegment(key);
+
+        segment.storageLock.writeLock().lock();
+        try {
+            int slot = segment.find(key);
+            if (slot == -1 || !segment.matches(slot, (LocalCacheElement) value)) return false;
+
+            segment.remove(slot);
+            return true;
+        } finally {
+            segment.storageLock.writeLock().unlock();
+        }
+    }
+
+    public void putAll(Map<? extends Key, ? extends LocalCacheElement> map) {
+        for (Entry<? extends Key, ? extends LocalCacheElement> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            segment.storageLock.readLock().lock();
+            try {
+                size += segment.numberItems;
+            } finally {
+                segment.storageLock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsValue(Object o) {
+        throw new UnsupportedOperationException("operation not supported");
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.storageLock.writeLock().lock();
+            try {
+                segment.clear();
+            } finally {
+                segment.storageLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Reports the bytes of pages allocated, which include record headers and garbage left by overwritten items, and
+     * the number of items evicted to make room.
+     */
+    public Map<String, String> getStats() {
+        long allocated = 0;
+        long evictions = 0;
+        for (Segment segment : segments) {
+            segment.storageLock.readLock().lock();
+            try {
+                allocated += segment.allocatedBytes;
+                evictions += segment.evictions;
+            } finally {
+                segment.storageLock.readLock().unlock();
+            }
+        }
+
+        Map<String, String> stats = new HashMap<String, String>();
+        stats.put("arena_allocated_bytes", String.valueOf(allocated));
+        stats.put("arena_evictions", String.valueOf(evictions));
+        return stats;
+    }
+
+    public int getPartitionCount() {
+        return segments.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Holds the segment's read lock while its items are copied out.
+     */
+    public Collection<LocalCacheElement> copyPartition(int partition) {
+        Segment segment = segments[partition];
+
+        segment.storageLock.readLock().lock();
+        try {
+            return segment.copyValues();
+        } finally {
+            segment.storageLock.readLock().unlock();
+        }
+    }
+
+    public Set<Key> keySet() {
+        Set<Key> keys = new HashSet<Key>();
+        for (Segment segment : segments) {
+            segment.storageLock.readLock().lock();
+            try {
+                keys.addAll(segment.keys());
+            } finally {
+                segment.storageLock.readLock().unlock();
+            }
+        }
+        return keys;
+    }
+
+    public Collection<LocalCacheElement> values() {
+        throw new UnsupportedOperationException("operation not supported");
+    }
+
+    public Set<Entry<Key, LocalCacheElement>> entrySet() {
+        throw new UnsupportedOperationException("operation not supported");
+    }
+
+    public void close() throws IOException {
+        clear();
+    }
+}
@@ -0,0 +1,500 @@
+package com.thimbleware.jmemcached.storage.arena;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A segment of the arena storage: items packed into byte array pages, found through an open addressing index of
+ * primitive arrays.
+ *
+ * Items are written one after another into the current page, each as a record:
+ * <pre>
+ *   int    hash of the key
+ *   int    key length
+ *   int    data length
+ *   int    flags
+ *   long   expiry
+ *   long   cas unique
+ *   byte   blocked
+ *   long   blocked until
+ *   byte[] key
+ *   byte[] data
+ * </pre>
+ * A record is never rewritten in place; a new version of an item is a new record, and the old one becomes garbage. A
+ * page is released as soon as none of its records is live, and otherwise when it is the oldest page and room is
+ * needed, evicting whatever is still live in it. When it is the number of items that is over the limit, records are
+ * evicted one at a time from the front of the oldest page. Either way eviction is first in, first out. Records too
+ * large for a page get a page of their own, of exactly their size.
+ *
+ * The index is a linear probing hash table of record addresses (page slot + 1 in the high word, offset in the low
+ * word; 0 is an empty slot) with the key hashes alongside, so that probing and resizing never touch the pages.
+ *
+ * Not thread safe; the storage guards each segment with its lock. Index slots are only stable while it is held.
+ */
+final class Segment {
+    private static final int HASH = 0;
+    private static final int KEY_LENGTH = 4;
+    private static final int DATA_LENGTH = 8;
+    private static final int FLAGS = 12;
+    private static final int EXPIRE = 16;
+    private static final int CAS_UNIQUE = 24;
+    private static final int BLOCKED = 32;
+    private static final int BLOCKED_UNTIL = 33;
+    private static final int HEADER = 41;
+
+    private static final int MIN_INDEX_SIZE = 64;
+    private static final int MIN_PAGES = 8;
+
+    final ReentrantReadWriteLock storageLock = new ReentrantReadWriteLock();
+
+    private final int pageSize;
+    private final long maximumBytes;
+    private final int maximumItems;
+
+    private byte[][] pages = new byte[MIN_PAGES][];
+    private int[] pageFill = new int[MIN_PAGES];
+    private int[] pageLive = new int[MIN_PAGES];
+    private boolean[] queued = new boolean[MIN_PAGES];
+
+    /**
+     * Page slots in the order their pages were allocated, as a ring; a slot stays queued until it reaches the head,
+     * even if its page was released early
+     */
+    private int[] fifo = new int[MIN_PAGES];
+    private int fifoHead;
+    private int fifoCount;
+
+    /**
+     * Offset in the oldest page up to which its records have been evicted or found dead
+     */
+    private int headCursor;
+
+    private int current = -1;
+
+    private long[] addresses = new long[MIN_INDEX_SIZE];
+    private int[] hashes = new int[MIN_INDEX_SIZE];
+
+    long allocatedBytes;
+    long dataBytes;
+    int numberItems;
+    long evictions;
+
+    Segment(int pageSize, long maximumBytes, int maximumItems) {
+        this.pageSize = pageSize;
+        this.maximumBytes = maximumBytes;
+        this.maximumItems = maximumItems;
+    }
+
+    /**
+     * Locate the index slot for a key
+     * @param key the key
+     * @return the slot, or -1 if the key is not present
+     */
+    int find(Key key) {
+        int hash = key.hashCode();
+        int mask = addresses.length - 1;
+        int i = hash & mask;
+        long address;
+        while ((address = addresses[i]) != 0) {
+            if (hashes[i] == hash && keyEquals(address, key)) return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Look up several keys of this segment at once: every key's slot is found before any item is copied out, so the
+     * probes of the index don't queue up behind the copies.
+     *
+     * @param keys the keys of the bulk lookup
+     * @param order indices into keys
+     * @param from the first index in order which falls in this segment
+     * @param to the index in order after the last which falls in this segment
+     * @param values filled in with the element of each key, or null
+     */
+    void getAll(Key[] keys, int[] order, int from, int to, LocalCacheElement[] values) {
+        int[] slots = new int[to - from];
+        for (int i = from; i < to; i++) {
+            slots[i - from] = find(keys[order[i]]);
+        }
+        for (int i = from; i < to; i++) {
+            int slot = slots[i - from];
+            values[order[i]] = slot == -1 ? null : get(slot);
+        }
+    }
+
+    private boolean keyEquals(long address, Key key) {
+        byte[] page = pages[pageOf(address)];
+        int at = offsetOf(address);
+        int keyLength = key.length();
+        if (readInt(page, at + KEY_LENGTH) != keyLength) return false;
+        at += HEADER;
+        for (int i = 0; i < keyLength; i++) {
+            if (page[at + i] != key.bytes.getByte(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copy the item in an index slot out of its page
+     * @param slot the index slot, as returned by find
+     * @return the element, which shares nothing with the segment
+     */
+    LocalCacheElement get(int slot) {
+        long address = addresses[slot];
+        byte[] page = pages[pageOf(address)];
+        int at = offsetOf(address);
+        int keyLength = readInt(page, at + KEY_LENGTH);
+        int dataLength = readInt(page, at + DATA_LENGTH);
+
+        byte[] bytes = new byte[keyLength + dataLength];
+        System.arraycopy(page, at + HEADER, bytes, 0, bytes.length);
+
+        LocalCacheElement element = new LocalCacheElement(new Key(ChannelBuffers.wrappedBuffer(bytes, 0, keyLength)),
+                readInt(page, at + FLAGS), readLong(page, at + EXPIRE), readLong(page, at + CAS_UNIQUE));
+        element.setData(ChannelBuffers.wrappedBuffer(bytes, keyLength, dataLength));
+        if (page[at + BLOCKED] == 1) element.block(readLong(page, at + BLOCKED_UNTIL));
+        return element;
+    }
+
+    /**
+     * Check whether the item in an index slot is the one the given element was read from. As every modification
+     * assigns a fresh cas unique, comparing the item's metadata does the job without comparing data.
+     */
+    boolean matches(int slot, LocalCacheElement element) {
+        long address = addresses[slot];
+        byte[] page = pages[pageOf(address)];
+        int at = offsetOf(address);
+        return readLong(page, at + CAS_UNIQUE) == element.getCasUnique()
+                && readInt(page, at + DATA_LENGTH) == element.size()
+                && readInt(page, at + FLAGS) == element.getFlags()
+                && readLong(page, at + EXPIRE) == element.getExpire()
+                && (page[at + BLOCKED] == 1) == element.isBlocked();
+    }
+
+    /**
+     * Change the expiry of the item in an index slot where it lies in its page, leaving its data alone
+     */
+    void setExpire(int slot, long expire) {
+        long address = addresses[slot];
+        writeLong(pages[pageOf(address)], offsetOf(address) + EXPIRE, expire);
+    }
+
+    /**
+     * Write an item, replacing any previous version of it. May evict other items to make room.
+     */
+    void put(Key key, LocalCacheElement element) {
+        int keyLength = key.length();
+        int dataLength = element.size();
+        long address = allocate(HEADER + keyLength + dataLength);
+
+        int pageNum = pageOf(address);
+        byte[] page = pages[pageNum];
+        int at = offsetOf(address);
+        writeInt(page, at + HASH, key.hashCode());
+        writeInt(page, at + KEY_LENGTH, keyLength);
+        writeInt(page, at + DATA_LENGTH, dataLength);
+        writeInt(page, at + FLAGS, element.getFlags());
+        writeLong(page, at + EXPIRE, element.getExpire());
+        writeLong(page, at + CAS_UNIQUE, element.getCasUnique());
+        page[at + BLOCKED] = (byte) (element.isBlocked() ? 1 : 0);
+        writeLong(page, at + BLOCKED_UNTIL, element.getBlockedUntil());
+        key.bytes.getBytes(0, page, at + HEADER, keyLength);
+        element.getData().getBytes(0, page, at + HEADER + keyLength, dataLength);
+
+        // allocation may have evicted the previous version, so look for it only now
+        int slot = find(key);
+        if (slot != -1) {
+            unlink(addresses[slot]);
+            addresses[slot] = address;
+        } else {
+            insert(key.hashCode(), address);
+            numberItems++;
+        }
+        pageLive[pageNum]++;
+        dataBytes += dataLength;
+
+        while (numberItems > maximumItems) {
+            evictOldestItem();
+        }
+    }
+
+    /**
+     * Remove the item in an index slot
+     */
+    void remove(int slot) {
+        unlink(addresses[slot]);
+        delete(slot);
+        numberItems--;
+    }
+
+    /**
+     * Account for a record which is no longer live, releasing its page if it was the last live record there
+     */
+    private void unlink(long address) {
+        int pageNum = pageOf(address);
+        dataBytes -= readInt(pages[pageNum], offsetOf(address) + DATA_LENGTH);
+        if (--pageLive[pageNum] == 0 && pageNum != current) release(pageNum);
+    }
+
+    private long allocate(int length) {
+        if (length > pageSize) {
+            makeRoom(length);
+            int pageNum = newPage(length);
+            pageFill[pageNum] = length;
+            return addressOf(pageNum, 0);
+        }
+
+        if (current == -1 || pageFill[current] + length > pageSize) {
+            int full = current;
+            current = -1;
+            if (full != -1 && pageLive[full] == 0) release(full);
+
+            makeRoom(pageSize);
+            current = newPage(pageSize);
+        }
+
+        int at = pageFill[current];
+        pageFill[current] += length;
+        return addressOf(current, at);
+    }
+
+    private void makeRoom(int length) {
+        while (allocatedBytes + length > maximumBytes && fifoCount > 0) {
+            evictOldestPage();
+        }
+    }
+
+    /**
+     * Evict everything still live in the oldest page, and release it
+     */
+    private void evictOldestPage() {
+        int pageNum = fifo[fifoHead];
+        while (headCursor < pageFill[pageNum] && pageLive[pageNum] > 0) {
+            evictNextRecord(pageNum);
+        }
+        popOldestPage();
+        release(pageNum);
+    }
+
+    /**
+     * Evict the oldest live item
+     */
+    private void evictOldestItem() {
+        while (fifoCount > 0) {
+            int pageNum = fifo[fifoHead];
+            while (headCursor < pageFill[pageNum]) {
+                if (evictNextRecord(pageNum)) return;
+            }
+            popOldestPage();
+            release(pageNum);
+        }
+    }
+
+    /**
+     * Step the head cursor over the next record of the oldest page, evicting it if it is live
+     * @return true if a live record was evicted
+     */
+    private boolean evictNextRecord(int pageNum) {
+        byte[] page = pages[pageNum];
+        int at = headCursor;
+        headCursor += HEADER + readInt(page, at + KEY_LENGTH) + readInt(page, at + DATA_LENGTH);
+
+        // the index tells live records from garbage
+        long address = addressOf(pageNum, at);
+        int mask = addresses.length - 1;
+        int i = readInt(page, at + HASH) & mask;
+        while (addresses[i] != 0 && addresses[i] != address) {
+            i = (i + 1) & mask;
+        }
+        if (addresses[i] == 0) return false;
+
+        unlink(address);
+        delete(i);
+        numberItems--;
+        evictions++;
+        return true;
+    }
+
+    private void popOldestPage() {
+        int pageNum = fifo[fifoHead];
+        fifoHead = (fifoHead + 1) % fifo.length;
+        fifoCount--;
+        queued[pageNum] = false;
+        headCursor = 0;
+        if (pageNum == current) current = -1;
+    }
+
+    private void release(int pageNum) {
+        if (pages[pageNum] == null) return;
+        allocatedBytes -= pages[pageNum].length;
+        pages[pageNum] = null;
+        pageFill[pageNum] = 0;
+        pageLive[pageNum] = 0;
+    }
+
+    private int newPage(int length) {
+        int pageNum = 0;
+        while (pageNum < pages.length && (pages[pageNum] != null || queued[pageNum])) pageNum++;
+        if (pageNum == pages.length) growPages();
+
+        pages[pageNum] = new byte[length];
+        pageFill[pageNum] = 0;
+        pageLive[pageNum] = 0;
+        allocatedBytes += length;
+
+        queued[pageNum] = true;
+        fifo[(fifoHead + fifoCount) % fifo.length] = pageNum;
+        fifoCount++;
+        return pageNum;
+    }
+
+    private void growPages() {
+        int size = pages.length * 2;
+
+        byte[][] newPages = new byte[size][];
+        System.arraycopy(pages, 0, newPages, 0, pages.length);
+        int[] newFill = new int[size];
+        System.arraycopy(pageFill, 0, newFill, 0, pageFill.length);
+        int[] newLive = new int[size];
+        System.arraycopy(pageLive, 0, newLive, 0, pageLive.length);
+        boolean[] newQueued = new boolean[size];
+        System.arraycopy(queued, 0, newQueued, 0, queued.length);
+
+        // every slot is queued when the slots run out, so the ring is full; unroll it from its head
+        int[] newFifo = new int[size];
+        for (int i = 0; i < fifoCount; i++) {
+            newFifo[i] = fifo[(fifoHead + i) % fifo.length];
+        }
+
+        pages = newPages;
+        pageFill = newFill;
+        pageLive = newLive;
+        queued = newQueued;
+        fifo = newFifo;
+        fifoHead = 0;
+    }
+
+    private void insert(int hash, long address) {
+        if ((numberItems + 1) * 2 > addresses.length) resize(addresses.length * 2);
+
+        int mask = addresses.length - 1;
+        int i = hash & mask;
+        while (addresses[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        addresses[i] = address;
+        hashes[i] = hash;
+    }
+
+    /**
+     * Empty an index slot, shifting later entries of the probe sequence back so that no tombstone is needed
+     */
+    private void delete(int slot) {
+        int mask = addresses.length - 1;
+        int hole = slot;
+        int i = slot;
+        while (true) {
+            i = (i + 1) & mask;
+            if (addresses[i] == 0) break;
+
+            // an entry may fill the hole only if its home slot is not cyclically within (hole, i]
+            int home = hashes[i] & mask;
+            if (hole <= i ? (home <= hole || home > i) : (home <= hole && home > i)) {
+                addresses[hole] = addresses[i];
+                hashes[hole] = hashes[i];
+                hole = i;
+            }
+        }
+        addresses[hole] = 0;
+    }
+
+    private void resize(int size) {
+        long[] oldAddresses = addresses;
+        int[] oldHashes = hashes;
+        addresses = new long[size];
+        hashes = new int[size];
+
+        int mask = size - 1;
+        for (int j = 0; j < oldAddresses.length; j++) {
+            if (oldAddresses[j] == 0) continue;
+            int i = oldHashes[j] & mask;
+            while (addresses[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            addresses[i] = oldAddresses[j];
+            hashes[i] = oldHashes[j];
+        }
+    }
+
+    void clear() {
+        pages = new byte[MIN_PAGES][];
+        pageFill = new int[MIN_PAGES];
+        pageLive = new int[MIN_PAGES];
+        queued = new boolean[MIN_PAGES];
+        fifo = new int[MIN_PAGES];
+        fifoHead = 0;
+        fifoCount = 0;
+        headCursor = 0;
+        current = -1;
+        addresses = new long[MIN_INDEX_SIZE];
+        hashes = new int[MIN_INDEX_SIZE];
+        allocatedBytes = 0;
+        dataBytes = 0;
+        numberItems = 0;
+    }
+
+    Collection<Key> keys() {
+        List<Key> keys = new ArrayList<Key>(numberItems);
+        for (int i = 0; i < addresses.length; i++) {
+            if (addresses[i] != 0) keys.add(get(i).getKey());
+        }
+        return keys;
+    }
+
+    Collection<LocalCacheElement> copyValues() {
+        List<LocalCacheElement> values = new ArrayList<LocalCacheElement>(numberItems);
+        for (int i = 0; i < addresses.length; i++) {
+            if (addresses[i] != 0) values.add(get(i));
+        }
+        return values;
+    }
+
+    private static long addressOf(int pageNum, int offset) {
+        return ((long) (pageNum + 1) << 32) | (offset & 0xffffffffL);
+    }
+
+    private static int pageOf(long address) {
+        return (int) (address >>> 32) - 1;
+    }
+
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+
+    private static int readInt(byte[] page, int at) {
+        return (page[at] << 24) | ((page[at + 1] & 0xff) << 16) | ((page[at + 2] & 0xff) << 8) | (page[at + 3] & 0xff);
+    }
+
+    private static long readLong(byte[] page, int at) {
+        return ((long) readInt(page, at) << 32) | (readInt(page, at + 4) & 0xffffffffL);
+    }
+
+    private static void writeInt(byte[] page, int at, int value) {
+        page[at] = (byte) (value >>> 24);
+        page[at + 1] = (byte) (value >>> 16);
+        page[at + 2] = (byte) (value >>> 8);
+        page[at + 3] = (byte) value;
+    }
+
+    private static void writeLong(byte[] page, int at, long value) {
+        writeInt(page, at, (int) (value >>> 32));
+        writeInt(page, at + 4, (int) value);
+    }
+}
@@ -3,39 +3,48 @@ package com.thimbleware.jmemcached.storage.bytebuffer;
 import com.thimbleware.jmemcached.Key;
 import com.thimbleware.jmemcached.LocalCacheElement;
 import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.PartitionGroups;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implementation of the cache using the block buffer storage back end.
  */
 public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCacheElement> {
 
+    private static final int MIN_FILTER_ITEMS = 1024;
+
     Partition[] partitions;
 
     volatile int ceilingBytes;
     volatile int maximumItems;
-    volatile int numberItems;
     final long maximumSizeBytes;
 
     public BlockStorageCacheStorage(int blockStoreBuckets, int ceilingBytesParam, int blockSizeBytes, long maximumSizeBytes, int maximumItemsVal, BlockStoreFactory factory) {
         this.partitions = new Partition[blockStoreBuckets];
 
         long bucketSizeBytes = maximumSizeBytes / blockStoreBuckets;
+        ByteBufferBlockStore[] stores = new ByteBufferBlockStore[blockStoreBuckets];
+        for (int i = 0; i < blockStoreBuckets; i++) {
+            stores[i] = factory.manufacture(bucketSizeBytes, blockSizeBytes);
+        }
         for (int i = 0; i < blockStoreBuckets; i++) {
-            this.partitions[i] = new Partition(factory.manufacture(bucketSizeBytes, blockSizeBytes));
+            this.partitions[i] = new Partition(stores, i, Math.max(MIN_FILTER_ITEMS, maximumItemsVal / blockStoreBuckets));
         }
 
-        this.numberItems = 0;
         this.ceilingBytes = 0;
         this.maximumItems = 0;
         this.maximumSizeBytes = maximumSizeBytes;
     }
 
     private Partition pickPartition(Key key) {
-        return partitions[hash(key.hashCode()) & (partitions.length - 1)];
+        return partitions[partitionIndex(key)];
+    }
+
+    private int partitionIndex(Key key) {
+        // the high bits of the hash, so that the choice of partition doesn't correlate with the choice of bucket
+        return (key.hashCode() >>> 16) & (partitions.length - 1);
     }
 
     public final long getMemoryCapacity() {
@@ -72,29 +81,18 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
     public final LocalCacheElement putIfAbsent(Key key, LocalCacheElement item) {
         Partition partition = pickPartition(key);
 
-        partition.storageLock.readLock().lock();
+        partition.storageLock.writeLock().lock();
         try {
-            Region region = partition.find(key);
+            int entry = partition.find(key);
 
-            // not there? add it
-            if (region == null) {
-                partition.storageLock.readLock().unlock();
-                partition.storageLock.writeLock().lock();
-                try {
-                    numberItems++;
-                    partition.add(key, item);
-                } finally {
-                    partition.storageLock.readLock().lock();
-                    partition.storageLock.writeLock().unlock();
-                }
+            // there? return its value
+            if (entry != -1) return partition.get(key, entry);
 
-                return null;
-            } else {
-                // there? return its value
-                return region.toValue();
-            }
+            // not there? add it
+            partition.add(key, item);
+            return null;
         } finally {
-            partition.storageLock.readLock().unlock();
+            partition.storageLock.writeLock().unlock();
         }
     }
 
@@ -107,100 +105,133 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         Key key = (Key) okey;
         Partition partition = pickPartition(key);
 
-
+        partition.storageLock.writeLock().lock();
         try {
-            partition.storageLock.readLock().lock();
-            Region region = partition.find(key);
-            if (region == null) return false;
-            else {
-                partition.storageLock.readLock().unlock();
-                partition.storageLock.writeLock().lock();
-                try {
-                    partition.blockStore.free(region);
-                    partition.remove(key, region);
-                    numberItems++;
-                    return true;
-                } finally {
-                    partition.storageLock.readLock().lock();
-                    partition.storageLock.writeLock().unlock();
-                }
+            int entry = partition.find(key);
+            if (entry == -1 || !partition.matches(key, entry, (LocalCacheElement) value)) return false;
 
-            }
+            partition.remove(key, entry);
+            return true;
         } finally {
-            partition.storageLock.readLock().unlock();
+            partition.storageLock.writeLock().unlock();
         }
     }
 
     public final boolean replace(Key key, LocalCacheElement original, LocalCacheElement replace) {
         Partition partition = pickPartition(key);
 
-        partition.storageLock.readLock().lock();
+        partition.storageLock.writeLock().lock();
         try {
-            Region region = partition.find(key);
+            int entry = partition.find(key);
 
-            // not there? that's a fail
-            if (region == null) return false;
-
-            // there, check for equivalence of value
-            LocalCacheElement el = null;
-            el = region.toValue();
-            if (!el.equals(original)) {
-                return false;
-            } else {
-                partition.storageLock.readLock().unlock();
-                partition.storageLock.writeLock().lock();
-                try {
-                    partition.remove(key, region);
-                    partition.add(key, replace);
-                    return true;
-                } finally {
-                    partition.storageLock.readLock().lock();
-                    partition.storageLock.writeLock().unlock();
-                }
+            // not there, or changed since it was read? that's a fail
+            if (entry == -1 || !partition.matches(key, entry, original)) return false;
 
-            }
+            partition.remove(key, entry);
+            partition.add(key, replace);
+            return true;
+        } finally {
+            partition.storageLock.writeLock().unlock();
+        }
+    }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Keys and data are copied into the partitions' index and block stores.
+     */
+    public final boolean retainsValues() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Only the appended bytes are written to the block store; they are linked onto the end of the stored item.
+     */
+    public final boolean replaceAppended(Key key, LocalCacheElement original, LocalCacheElement replace, int appendedBytes) {
+        Partition partition = pickPartition(key);
+
+        partition.storageLock.writeLock().lock();
+        try {
+            int entry = partition.find(key);
+            if (entry == -1 || !partition.matches(key, entry, original)) return false;
+
+            int size = replace.size();
+            partition.append(key, entry, replace.getData().slice(size - appendedBytes, appendedBytes), replace.getCasUnique());
+            return true;
         } finally {
-            partition.storageLock.readLock().unlock();
+            partition.storageLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Only the prepended bytes are written to the block store; they are linked onto the front of the stored item.
+     */
+    public final boolean replacePrepended(Key key, LocalCacheElement original, LocalCacheElement replace, int prependedBytes) {
+        Partition partition = pickPartition(key);
+
+        partition.storageLock.writeLock().lock();
+        try {
+            int entry = partition.find(key);
+            if (entry == -1 || !partition.matches(key, entry, original)) return false;
+
+            partition.prepend(key, entry, replace.getData().slice(0, prependedBytes), replace.getCasUnique());
+            return true;
+        } finally {
+            partition.storageLock.writeLock().unlock();
         }
     }
 
     public final LocalCacheElement replace(Key key, LocalCacheElement replace) {
         Partition partition = pickPartition(key);
 
-        partition.storageLock.readLock().lock();
+        partition.storageLock.writeLock().lock();
         try {
-            Region region = partition.find(key);
+            int entry = partition.find(key);
 
             // not there? that's a fail
-            if (region == null) return null;
+            if (entry == -1) return null;
 
-            // there,
-            LocalCacheElement el = null;
-            el = region.toValue();
-            partition.storageLock.readLock().unlock();
-            partition.storageLock.writeLock().lock();
-            try {
-                partition.remove(key, region);
-                partition.add(key, replace);
-                return el;
-            } finally {
-                partition.storageLock.readLock().lock();
-                partition.storageLock.writeLock().unlock();
-            }
+            LocalCacheElement old = partition.get(key, entry);
+            partition.remove(key, entry);
+            partition.add(key, replace);
+            return old;
+        } finally {
+            partition.storageLock.writeLock().unlock();
+        }
+    }
 
+    /**
+     * {@inheritDoc}
+     *
+     * The old item's blocks are freed without its value being copied out.
+     */
+    public final void set(Key key, LocalCacheElement item) {
+        Partition partition = pickPartition(key);
 
+        partition.storageLock.writeLock().lock();
+        try {
+            int entry = partition.find(key);
+            if (entry != -1) partition.remove(key, entry);
+            partition.add(key, item);
         } finally {
-            partition.storageLock.readLock().unlock();
+            partition.storageLock.writeLock().unlock();
         }
     }
 
     public final int size() {
-        return numberItems;
+        int size = 0;
+        for (Partition partition : partitions) {
+            size += partition.getNumberItems();
+        }
+        return size;
     }
 
     public final boolean isEmpty() {
-        return numberItems == 0;
+        return size() == 0;
     }
 
     public final boolean containsKey(Object okey) {
@@ -209,8 +240,8 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         Key key = (Key) okey;
         Partition partition = pickPartition(key);
 
+        partition.storageLock.readLock().lock();
         try {
-            partition.storageLock.readLock().lock();
             return partition.has(key);
         } finally {
             partition.storageLock.readLock().unlock();
@@ -227,42 +258,160 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         Key key = (Key) okey;
         Partition partition = pickPartition(key);
 
+        partition.storageLock.readLock().lock();
         try {
-            partition.storageLock.readLock().lock();
-            Region region = partition.find(key);
-            if (region == null) return null;
-            return region.toValue();
+            int entry = partition.find(key);
+            if (entry == -1) return null;
+            return partition.get(key, entry);
         } finally {
             partition.storageLock.readLock().unlock();
         }
     }
 
-    public final LocalCacheElement put(final Key key, final LocalCacheElement item) {
-        Partition partition = pickPartition(key);
+    public final void getAll(Key[] keys, LocalCacheElement[] values) {
+        if (keys.length == 1) {
+            values[0] = get(keys[0]);
+            return;
+        }
 
-        partition.storageLock.readLock().lock();
-        try {
-            Region region = partition.find(key);
+        PartitionGroups groups = group(keys);
+        for (int p = 0; p < partitions.length; p++) {
+            if (groups.start(p) == groups.end(p)) continue;
 
-            partition.storageLock.readLock().unlock();
+            Partition partition = partitions[p];
+            partition.storageLock.readLock().lock();
+            try {
+                partition.getAll(keys, groups.order(), groups.start(p), groups.end(p), values);
+            } finally {
+                partition.storageLock.readLock().unlock();
+            }
+        }
+    }
+
+    public final void putAll(Key[] keys, LocalCacheElement[] values) {
+        PartitionGroups groups = group(keys);
+        int[] order = groups.order();
+        for (int p = 0; p < partitions.length; p++) {
+            if (groups.start(p) == groups.end(p)) continue;
+
+            Partition partition = partitions[p];
+            partition.storageLock.writeLock().lock();
+            try {
+                for (int i = groups.start(p); i < groups.end(p); i++) {
+                    Key key = keys[order[i]];
+                    int entry = partition.find(key);
+                    if (entry != -1) partition.remove(key, entry);
+                    partition.add(key, values[order[i]]);
+                }
+            } finally {
+                partition.storageLock.writeLock().unlock();
+            }
+        }
+    }
+
+    public final void removeAll(Key[] keys, boolean[] removed) {
+        PartitionGroups groups = group(keys);
+        int[] order = groups.order();
+        for (int p = 0; p < partitions.length; p++) {
+            if (groups.start(p) == groups.end(p)) continue;
+
+            Partition partition = partitions[p];
+            partition.storageLock.writeLock().lock();
+            try {
+                for (int i = groups.start(p); i < groups.end(p); i++) {
+                    Key key = keys[order[i]];
+                    int entry = partition.find(key);
+                    removed[order[i]] = entry != -1;
+                    if (entry != -1) partition.remove(key, entry);
+                }
+            } finally {
+                partition.storageLock.writeLock().unlock();
+            }
+        }
+    }
+
+    public final void replaceAll(Key[] keys, LocalCacheElement[] originals, LocalCacheElement[] replacements, boolean[] replaced) {
+        PartitionGroups groups = group(keys);
+        int[] order = groups.order();
+        for (int p = 0; p < partitions.length; p++) {
+            if (groups.start(p) == groups.end(p)) continue;
+
+            Partition partition = partitions[p];
             partition.storageLock.writeLock().lock();
             try {
-                LocalCacheElement old = null;
-                if (region != null) {
-                    old = region.toValue();
+                for (int i = groups.start(p); i < groups.end(p); i++) {
+                    int k = order[i];
+                    replaced[k] = false;
+                    if (originals[k] == null) continue;
+
+                    int entry = partition.find(keys[k]);
+                    if (entry == -1 || !partition.matches(keys[k], entry, originals[k])) continue;
+
+                    partition.remove(keys[k], entry);
+                    partition.add(keys[k], replacements[k]);
+                    replaced[k] = true;
                 }
-                if (region != null) partition.remove(key, region);
-                partition.add(key, item);
-                numberItems++;
-                return old;
             } finally {
-                partition.storageLock.readLock().lock();
                 partition.storageLock.writeLock().unlock();
             }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The new expiry is written into the index entry; the item's blocks are left as they are.
+     */
+    public final void touchAll(Key[] keys, LocalCacheElement[] originals, LocalCacheElement[] touched, boolean[] replaced) {
+        PartitionGroups groups = group(keys);
+        int[] order = groups.order();
+        for (int p = 0; p < partitions.length; p++) {
+            if (groups.start(p) == groups.end(p)) continue;
+
+            Partition partition = partitions[p];
+            partition.storageLock.writeLock().lock();
+            try {
+                for (int i = groups.start(p); i < groups.end(p); i++) {
+                    int k = order[i];
+                    replaced[k] = false;
+                    if (originals[k] == null) continue;
+
+                    int entry = partition.find(keys[k]);
+                    if (entry == -1 || !partition.matches(keys[k], entry, originals[k])) continue;
+
+                    partition.setExpire(keys[k], entry, touched[k].getExpire());
+                    replaced[k] = true;
+                }
+            } finally {
+                partition.storageLock.writeLock().unlock();
+            }
+        }
+    }
 
+    private PartitionGroups group(Key[] keys) {
+        int[] partitionOf = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            partitionOf[i] = partitionIndex(keys[i]);
+        }
+        return new PartitionGroups(partitionOf, partitions.length);
+    }
+
+    public final LocalCacheElement put(final Key key, final LocalCacheElement item) {
+        Partition partition = pickPartition(key);
 
+        partition.storageLock.writeLock().lock();
+        try {
+            int entry = partition.find(key);
+
+            LocalCacheElement old = null;
+            if (entry != -1) {
+                old = partition.get(key, entry);
+                partition.remove(key, entry);
+            }
+            partition.add(key, item);
+            return old;
         } finally {
-            partition.storageLock.readLock().unlock();
+            partition.storageLock.writeLock().unlock();
         }
     }
 
@@ -272,28 +421,16 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         Key key = (Key) okey;
         Partition partition = pickPartition(key);
 
+        partition.storageLock.writeLock().lock();
         try {
-            partition.storageLock.readLock().lock();
-            Region region = partition.find(key);
-            if (region == null) return null;
-            else {
-                partition.storageLock.readLock().unlock();
-                partition.storageLock.writeLock().lock();
-                try {
-                    LocalCacheElement old = null;
-                    old = region.toValue();
-                    partition.blockStore.free(region);
-                    partition.remove(key, region);
-                    numberItems--;
-                    return old;
-                } finally {
-                    partition.storageLock.readLock().lock();
-                    partition.storageLock.writeLock().unlock();
-                }
+            int entry = partition.find(key);
+            if (entry == -1) return null;
 
-            }
+            LocalCacheElement old = partition.get(key, entry);
+            partition.remove(key, entry);
+            return old;
         } finally {
-            partition.storageLock.readLock().unlock();
+            partition.storageLock.writeLock().unlock();
         }
     }
 
@@ -308,16 +445,64 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
     }
 
     public final void clear() {
+        // items may have chunks in any partition's store, so the stores can only be wiped with every partition locked
         for (Partition partition : partitions) {
             partition.storageLock.writeLock().lock();
-            numberItems += partition.keys().size() * - 1;
-            try {
+        }
+        try {
+            for (Partition partition : partitions) {
                 partition.clear();
-            } finally {
+            }
+            for (Partition partition : partitions) {
+                partition.blockStore.clear();
+            }
+        } finally {
+            for (Partition partition : partitions) {
                 partition.storageLock.writeLock().unlock();
             }
         }
+    }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Reports how well the partitions' Bloom filters are doing: the fraction of lookups for absent keys which got past
+     * them to the buckets.
+     */
+    public Map<String, String> getStats() {
+        long falsePositives = 0;
+        long trueNegatives = 0;
+        for (Partition partition : partitions) {
+            falsePositives += partition.falsePositives.get();
+            trueNegatives += partition.trueNegatives.get();
+        }
+
+        Map<String, String> stats = new HashMap<String, String>();
+        stats.put("bloom_false_positives", String.valueOf(falsePositives));
+        stats.put("bloom_true_negatives", String.valueOf(trueNegatives));
+        long misses = falsePositives + trueNegatives;
+        stats.put("bloom_false_positive_rate", misses == 0 ? "0" : String.format("%.4f", (double) falsePositives / misses));
+        return stats;
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Holds the partition's read lock while its items are copied onto the heap.
+     */
+    public Collection<LocalCacheElement> copyPartition(int partitionNum) {
+        Partition partition = partitions[partitionNum];
+
+        partition.storageLock.readLock().lock();
+        try {
+            return partition.copyValues();
+        } finally {
+            partition.storageLock.readLock().unlock();
+        }
     }
 
     public Set<Key> keySet() {
@@ -337,16 +522,6 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         throw new UnsupportedOperationException("operation not supported");
     }
 
-    protected static int hash(int h) {
-        // Spread bits to regularize both segment and index locations,
-        // using variant of single-word Wang/Jenkins hash.
-        h += (h <<  15) ^ 0xffffcd7d;
-        h ^= (h >>> 10);
-        h += (h <<   3);
-        h ^= (h >>>  6);
-        h += (h <<   2) + (h << 14);
-        return h ^ (h >>> 16);
-    }
 
 
 }
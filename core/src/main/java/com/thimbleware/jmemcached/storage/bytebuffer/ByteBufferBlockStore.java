@@ -13,12 +13,15 @@ import java.io.IOException;
  * of the GC.
  *
  * Should offer O(Log(N)) search and free of blocks.
+ *
+ * Allocation and free are synchronized, as a store may be shared by the partitions of the block storage when large
+ * items spill over from a full partition.
  */
 public class ByteBufferBlockStore {
 
     protected ChannelBuffer storageBuffer;
 
-    private long freeBytes;
+    private volatile long freeBytes;
 
     private long storeSizeBytes;
     private final int blockSizeBytes;
@@ -136,7 +139,7 @@ public class ByteBufferBlockStore {
      *@param timestamp allocation timestamp of the entry
      * @return the region descriptor
      */
-    public Region alloc(int desiredSize, long expiry, long timestamp) {
+    public synchronized Region alloc(int desiredSize, long expiry, long timestamp) {
         final long desiredBlockSize = roundUp(desiredSize, blockSizeBytes);
         int numBlocks = (int) (desiredBlockSize / blockSizeBytes);
 
@@ -157,15 +160,39 @@ public class ByteBufferBlockStore {
         return storageBuffer.slice(startBlock * blockSizeBytes, size);
     }
 
+    /**
+     * @param startBlock the first block of an allocated region
+     * @param offset offset (in bytes) into the region
+     * @param size number of bytes
+     * @return a slice of the store covering the requested bytes of the region
+     */
+    public ChannelBuffer get(int startBlock, int offset, int size) {
+        return storageBuffer.slice(startBlock * blockSizeBytes + offset, size);
+    }
+
+    /**
+     * Copy bytes into an allocated region
+     *
+     * @param startBlock the first block of the region
+     * @param offset offset (in bytes) into the region to write at
+     * @param src the buffer to copy the readable bytes of
+     */
+    public void put(int startBlock, int offset, ChannelBuffer src) {
+        storageBuffer.setBytes(startBlock * blockSizeBytes + offset, src, src.readerIndex(), src.readableBytes());
+    }
+
     public void free(Region region) {
-        freeBytes += (region.usedBlocks * blockSizeBytes);
         region.valid = false;
         region.slice = null;
-        int pos = region.startBlock;
-        clear(pos, region.size / blockSizeBytes);
+        free(region.startBlock, region.usedBlocks);
+    }
+
+    public synchronized void free(int startBlock, int usedBlocks) {
+        freeBytes += (usedBlocks * blockSizeBytes);
+        clear(startBlock, usedBlocks);
     }
 
-    public void clear()
+    public synchronized void clear()
     {
         // say goodbye to the region list
         allocated = new OpenBitSet(allocated.size());
@@ -2,174 +2,553 @@ package com.thimbleware.jmemcached.storage.bytebuffer;
 
 import com.thimbleware.jmemcached.Key;
 import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.util.BufferUtils;
+import com.thimbleware.jmemcached.util.CountingBloomFilter;
+import com.thimbleware.jmemcached.util.Murmur3;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
+ * A partition of the block storage: an index of the items it holds, and the block store their data lives in.
+ *
+ * The index is a hash table of buckets, each of which is a buffer of variable length entries:
+ * <pre>
+ *   int    length of the remainder of the entry
+ *   int    hash of the key
+ *   long   expiry
+ *   int    flags
+ *   long   cas unique
+ *   byte   blocked
+ *   long   blocked until
+ *   int    data length
+ *   int    key length
+ *   byte[] key
+ *   int    number of segments
+ *   int    store, int start block, int used blocks, int offset, int length     (once per segment)
+ * </pre>
+ * An item's data is the concatenation of its segments, each of which is a run of bytes inside a region allocated from
+ * one of the block stores. No region is larger than {@link #CHUNK_SIZE_BYTES}, so large items never need a big
+ * contiguous run of blocks. Chunks come from this partition's own store where possible, and spill over into the
+ * stores of the other partitions when it is full.
+ *
+ * Appended (or prepended) data is linked in as further segments instead of rewriting the whole value. The edge chunk
+ * is allocated with slack proportional to the size of the value, so that successive appends mostly write in place.
+ *
+ * A counting Bloom filter over the keys lets most lookups for absent keys return without touching the buckets.
+ *
+ * Entries are addressed by their offset into their bucket. These offsets are only stable while the caller holds the
+ * storage lock.
  */
 public final class Partition {
     private static final int NUM_BUCKETS = 32768;
 
+    /**
+     * Maximum size of a single region allocated for item data
+     */
+    static final int CHUNK_SIZE_BYTES = 64 * 1024;
+
+    private static final int HASH = 4;
+    private static final int EXPIRE = 8;
+    private static final int FLAGS = 16;
+    private static final int CAS_UNIQUE = 20;
+    private static final int BLOCKED = 28;
+    private static final int BLOCKED_UNTIL = 29;
+    private static final int DATA_LENGTH = 37;
+    private static final int KEY_LENGTH = 41;
+    private static final int KEY = 45;
+
+    private static final int SEGMENT_FIELDS = 5;
+    private static final int SEGMENT_SIZE = SEGMENT_FIELDS * 4;
+    private static final int SEGMENT_STORE = 0;
+    private static final int SEGMENT_START_BLOCK = 4;
+    private static final int SEGMENT_USED_BLOCKS = 8;
+    private static final int SEGMENT_OFFSET = 12;
+    private static final int SEGMENT_LENGTH = 16;
+
     ReentrantReadWriteLock storageLock = new ReentrantReadWriteLock();
 
     ChannelBuffer[] buckets = new ChannelBuffer[NUM_BUCKETS];
 
+    /**
+     * The block stores of all partitions; chunks may be allocated from any of them
+     */
+    final ByteBufferBlockStore[] stores;
+
+    /**
+     * Index of this partition's own store in stores
+     */
+    final int home;
+
     ByteBufferBlockStore blockStore;
 
     int numberItems;
 
-    Partition(ByteBufferBlockStore blockStore) {
-        this.blockStore = blockStore;
+    final CountingBloomFilter filter;
+
+    /**
+     * Lookups of absent keys which the filter let through, and which it turned away
+     */
+    final AtomicLong falsePositives = new AtomicLong();
+    final AtomicLong trueNegatives = new AtomicLong();
+
+    Partition(ByteBufferBlockStore[] stores, int home, int expectedItems) {
+        this.stores = stores;
+        this.home = home;
+        this.blockStore = stores[home];
+        this.filter = new CountingBloomFilter(expectedItems);
+    }
+
+    /**
+     * Locate the index entry for a key
+     * @param key the key
+     * @return the offset of the entry in the key's bucket, or -1 if the key is not present
+     */
+    public int find(Key key) {
+        if (!filter.mightContain(filterHash(key))) {
+            trueNegatives.incrementAndGet();
+            return -1;
+        }
+
+        return scan(buckets[findBucketNum(key)], key);
     }
 
-    public Region find(Key key) {
-        int bucket = findBucketNum(key);
+    /**
+     * Look for a key's entry in its bucket, once the filter has let it through
+     */
+    private int scan(ChannelBuffer bucket, Key key) {
+        if (bucket == null) {
+            falsePositives.incrementAndGet();
+            return -1;
+        }
 
-        if (buckets[bucket] == null) return null;
-        ChannelBuffer regions = buckets[bucket].slice();
+        // the stored hash settles nearly every mismatch before the key bytes are looked at
+        int hash = key.hashCode();
+        int keyLength = key.bytes.capacity();
+        int end = bucket.writerIndex();
+        int entry = 0;
+        while (entry < end) {
+            if (bucket.getInt(entry + HASH) == hash && bucket.getInt(entry + KEY_LENGTH) == keyLength
+                    && BufferUtils.equals(bucket, entry + KEY, key.bytes, 0, keyLength))
+                return entry;
+            entry += 4 + bucket.getInt(entry);
+        }
 
-        regions.readerIndex(0);
-        while (regions.readableBytes() > 0) {
-            int totsize = regions.readInt();
-            int rsize = regions.readInt();
-            int rusedBlocks = regions.readInt();
-            int rstartBlock = regions.readInt();
-            long expiry = regions.readLong();
-            long timestamp = regions.readLong();
-            int rkeySize = regions.readInt();
+        falsePositives.incrementAndGet();
+        return -1;
+    }
 
-            if (rkeySize == key.bytes.capacity()) {
-                ChannelBuffer rkey = regions.readSlice(rkeySize);
+    /**
+     * Look up several keys of this partition at once. The filter and bucket table are probed for all of the keys
+     * before any bucket is scanned, so that those independent loads can be in flight together rather than each
+     * waiting for the last.
+     *
+     * @param keys the keys of the bulk lookup
+     * @param order indices into keys
+     * @param from the first index in order which falls in this partition
+     * @param to the index in order after the last which falls in this partition
+     * @param values filled in with a copy of the element of each key, or null
+     */
+    public void getAll(Key[] keys, int[] order, int from, int to, LocalCacheElement[] values) {
+        ChannelBuffer[] candidates = new ChannelBuffer[to - from];
+        boolean[] filtered = new boolean[to - from];
+        for (int i = from; i < to; i++) {
+            Key key = keys[order[i]];
+            if (filter.mightContain(filterHash(key))) candidates[i - from] = buckets[findBucketNum(key)];
+            else filtered[i - from] = true;
+        }
 
-                key.bytes.readerIndex(0);
-                if (rkey.equals(key.bytes)) return new Region(rsize, rusedBlocks, rstartBlock, blockStore.get(rstartBlock, rsize), expiry, timestamp);
-            } else {
-                regions.skipBytes(rkeySize);
+        for (int i = from; i < to; i++) {
+            Key key = keys[order[i]];
+            if (filtered[i - from]) {
+                trueNegatives.incrementAndGet();
+                values[order[i]] = null;
+                continue;
             }
-        }
 
-        return null;
+            int entry = scan(candidates[i - from], key);
+            values[order[i]] = entry == -1 ? null : get(key, entry);
+        }
     }
 
     public boolean has(Key key) {
-        int bucket = findBucketNum(key);
+        return find(key) != -1;
+    }
 
-        if (buckets[bucket] == null) return false;
-        ChannelBuffer regions = buckets[bucket].slice();
+    private static long filterHash(Key key) {
+        int h = key.hashCode();
+        return ((long) Murmur3.fmix(h ^ 0x9e3779b9) << 32) | (h & 0xffffffffL);
+    }
+
+    private int findBucketNum(Key key) {
+        // the low bits of the hash; the partition was picked with the high ones
+        return key.hashCode() & (buckets.length - 1);
+    }
 
+    /**
+     * Materialize the item held in an index entry. The element's data is copied out of the block store, so the caller
+     * must hold the storage lock, but may keep the element after releasing it: once the lock is gone the item's
+     * blocks can be freed and handed to another item at any time.
+     *
+     * @param key the key of the item
+     * @param entry the entry offset, as returned by find
+     * @return the element
+     */
+    public LocalCacheElement get(Key key, int entry) {
+        ChannelBuffer bucket = buckets[findBucketNum(key)];
+
+        LocalCacheElement element = new LocalCacheElement(key, bucket.getInt(entry + FLAGS), bucket.getLong(entry + EXPIRE), bucket.getLong(entry + CAS_UNIQUE));
+        if (bucket.getByte(entry + BLOCKED) == 1)
+            element.block(bucket.getLong(entry + BLOCKED_UNTIL));
+
+        int segments = segmentsIndex(bucket, entry);
+        int numSegments = bucket.getInt(segments);
+        ChannelBuffer data = ChannelBuffers.buffer(bucket.getInt(entry + DATA_LENGTH));
+        for (int i = 0; i < numSegments; i++) {
+            int segment = segments + 4 + i * SEGMENT_SIZE;
+            data.writeBytes(stores[bucket.getInt(segment + SEGMENT_STORE)].get(bucket.getInt(segment + SEGMENT_START_BLOCK), bucket.getInt(segment + SEGMENT_OFFSET), bucket.getInt(segment + SEGMENT_LENGTH)));
+        }
+        element.setData(data);
 
-        regions.readerIndex(0);
-        while (regions.readableBytes() > 0) {
-            int totsize = regions.readInt();
-            regions.skipBytes(28);
-            int rkeySize = regions.readInt();
+        return element;
+    }
 
-            if (rkeySize == key.bytes.capacity()) {
-                ChannelBuffer rkey = regions.readSlice(rkeySize);
+    /**
+     * Check whether an index entry still holds the given version of an item. Every modification of an item gets
+     * a new cas unique, so this does not need to compare data.
+     *
+     * @param key the key of the item
+     * @param entry the entry offset, as returned by find
+     * @param element the element, as previously returned by get
+     * @return true if the entry matches
+     */
+    public boolean matches(Key key, int entry, LocalCacheElement element) {
+        ChannelBuffer bucket = buckets[findBucketNum(key)];
+
+        return bucket.getLong(entry + CAS_UNIQUE) == element.getCasUnique()
+                && bucket.getInt(entry + DATA_LENGTH) == element.size()
+                && bucket.getInt(entry + FLAGS) == element.getFlags()
+                && bucket.getLong(entry + EXPIRE) == element.getExpire()
+                && (bucket.getByte(entry + BLOCKED) == 1) == element.isBlocked();
+    }
 
-                key.bytes.readerIndex(0);
-                if (rkey.equals(key.bytes)) return true;
-            } else {
-                regions.skipBytes(rkeySize);
-            }
+    /**
+     * Change an item's expiry where it lies in its index entry, leaving its blocks alone.
+     *
+     * @param key the key of the item
+     * @param entry the entry offset, as returned by find
+     * @param expire the new expiry
+     */
+    public void setExpire(Key key, int entry, long expire) {
+        buckets[findBucketNum(key)].setLong(entry + EXPIRE, expire);
+    }
+
+    /**
+     * Remove an item, freeing the blocks holding its data.
+     *
+     * @param key the key of the item
+     * @param entry the entry offset, as returned by find
+     */
+    public void remove(Key key, int entry) {
+        int bucketNum = findBucketNum(key);
+        ChannelBuffer bucket = buckets[bucketNum];
+
+        int segments = segmentsIndex(bucket, entry);
+        int numSegments = bucket.getInt(segments);
+        for (int i = 0; i < numSegments; i++) {
+            int segment = segments + 4 + i * SEGMENT_SIZE;
+            stores[bucket.getInt(segment + SEGMENT_STORE)].free(bucket.getInt(segment + SEGMENT_START_BLOCK), bucket.getInt(segment + SEGMENT_USED_BLOCKS));
         }
 
-        return false;
+        cut(bucket, entry);
+
+        filter.remove(filterHash(key));
+        numberItems--;
     }
 
-    private int findBucketNum(Key key) {
-        int hash = BlockStorageCacheStorage.hash(key.hashCode());
-        return hash & (buckets.length - 1);
+    /**
+     * Add an item. The key must not already be present.
+     *
+     * @param key the key of the item
+     * @param e the item
+     */
+    public void add(Key key, LocalCacheElement e) {
+        int size = e.size();
+        int[] segments = writeChunks(e.getData().slice(0, size), 0, 0, e.getExpire());
+
+        writeEntry(bucketFor(key), key.bytes, key.hashCode(), e.getExpire(), e.getFlags(), e.getCasUnique(), e.isBlocked(), e.getBlockedUntil(), size, segments);
+
+        filter.add(filterHash(key));
+        numberItems++;
     }
 
-    public void remove(Key key, Region region) {
-        int bucket = findBucketNum(key);
+    /**
+     * Append data to an item. The data is written into the slack of the item's last segment if it fits, otherwise into
+     * a newly linked segment.
+     *
+     * @param key the key of the item
+     * @param entry the entry offset, as returned by find
+     * @param data the data to append
+     * @param casUnique the new cas unique of the item
+     */
+    public void append(Key key, int entry, ChannelBuffer data, long casUnique) {
+        int bucketNum = findBucketNum(key);
+        ChannelBuffer bucket = buckets[bucketNum];
+        int length = data.readableBytes();
+        int dataLength = bucket.getInt(entry + DATA_LENGTH);
+
+        int segments = segmentsIndex(bucket, entry);
+        int numSegments = bucket.getInt(segments);
+        if (numSegments > 0) {
+            int last = segments + 4 + (numSegments - 1) * SEGMENT_SIZE;
+            ByteBufferBlockStore store = stores[bucket.getInt(last + SEGMENT_STORE)];
+            int end = bucket.getInt(last + SEGMENT_OFFSET) + bucket.getInt(last + SEGMENT_LENGTH);
+            if (end + length <= bucket.getInt(last + SEGMENT_USED_BLOCKS) * store.getBlockSizeBytes()) {
+                // fits in the slack; readers of the old value never look past its end so this is safe to do in place
+                store.put(bucket.getInt(last + SEGMENT_START_BLOCK), end, data);
+                bucket.setInt(last + SEGMENT_LENGTH, bucket.getInt(last + SEGMENT_LENGTH) + length);
+                bucket.setInt(entry + DATA_LENGTH, dataLength + length);
+                bucket.setLong(entry + CAS_UNIQUE, casUnique);
+                return;
+            }
+        }
 
-        ChannelBuffer newRegion = ChannelBuffers.dynamicBuffer(128);
-        ChannelBuffer regions = buckets[bucket].slice();
-        if (regions == null) return;
+        int[] added = writeChunks(data, dataLength, 0, bucket.getLong(entry + EXPIRE));
 
-        regions.readerIndex(0);
-        while (regions.readableBytes() > 0) {
-            // read key portion then region portion
-            int pos = regions.readerIndex();
-            int totsize = regions.readInt();
-            regions.skipBytes(28);
-            int rkeySize = regions.readInt();
-            ChannelBuffer rkey = regions.readBytes(rkeySize);
+        int[] segmentList = new int[numSegments * SEGMENT_FIELDS + added.length];
+        readSegments(bucket, segments, segmentList, 0);
+        System.arraycopy(added, 0, segmentList, numSegments * SEGMENT_FIELDS, added.length);
+
+        relink(bucketNum, entry, dataLength + length, casUnique, segmentList);
+    }
 
-            if (rkeySize != key.bytes.capacity() || !rkey.equals(key.bytes)) {
-                newRegion.writeBytes(regions.slice(pos, regions.readerIndex()));
+    /**
+     * Prepend data to an item. The mirror image of append; prepended chunks keep their slack in front of the data.
+     *
+     * @param key the key of the item
+     * @param entry the entry offset, as returned by find
+     * @param data the data to prepend
+     * @param casUnique the new cas unique of the item
+     */
+    public void prepend(Key key, int entry, ChannelBuffer data, long casUnique) {
+        int bucketNum = findBucketNum(key);
+        ChannelBuffer bucket = buckets[bucketNum];
+        int length = data.readableBytes();
+        int dataLength = bucket.getInt(entry + DATA_LENGTH);
+
+        int segments = segmentsIndex(bucket, entry);
+        int numSegments = bucket.getInt(segments);
+        if (numSegments > 0) {
+            int first = segments + 4;
+            int offset = bucket.getInt(first + SEGMENT_OFFSET);
+            if (offset >= length) {
+                stores[bucket.getInt(first + SEGMENT_STORE)].put(bucket.getInt(first + SEGMENT_START_BLOCK), offset - length, data);
+                bucket.setInt(first + SEGMENT_OFFSET, offset - length);
+                bucket.setInt(first + SEGMENT_LENGTH, bucket.getInt(first + SEGMENT_LENGTH) + length);
+                bucket.setInt(entry + DATA_LENGTH, dataLength + length);
+                bucket.setLong(entry + CAS_UNIQUE, casUnique);
+                return;
             }
         }
 
-        buckets[bucket] = newRegion;
+        int[] added = writeChunks(data, 0, dataLength, bucket.getLong(entry + EXPIRE));
 
-        numberItems--;
+        int[] segmentList = new int[added.length + numSegments * SEGMENT_FIELDS];
+        System.arraycopy(added, 0, segmentList, 0, added.length);
+        readSegments(bucket, segments, segmentList, added.length);
+
+        relink(bucketNum, entry, dataLength + length, casUnique, segmentList);
     }
 
-    public Region add(Key key, LocalCacheElement e) {
-        Region region = blockStore.alloc(e.bufferSize(), e.getExpire(), System.currentTimeMillis());
-        e.writeToBuffer(region.slice);
-        int bucket = findBucketNum(key);
+    /**
+     * Copy data into newly allocated chunks.
+     *
+     * Chunks are filled to {@link #CHUNK_SIZE_BYTES}, except for one partial chunk at the end (or, when there is
+     * front slack, at the start). The partial chunk is given room for up to the requested slack, bounded by the chunk
+     * size.
+     *
+     * @param data the data to write
+     * @param backSlack room wanted after the data, for later appends
+     * @param frontSlack room wanted before the data, for later prepends
+     * @param expiry expiry of the item
+     * @return the segment list describing the chunks, in order
+     */
+    private int[] writeChunks(ChannelBuffer data, int backSlack, int frontSlack, long expiry) {
+        int length = data.readableBytes();
+        int numChunks = (length + CHUNK_SIZE_BYTES - 1) / CHUNK_SIZE_BYTES;
+        int partial = length % CHUNK_SIZE_BYTES;
+        int[] segments = new int[numChunks * SEGMENT_FIELDS];
+
+        int index = data.readerIndex();
+        int n = 0;
+        try {
+            for (; n < numChunks; n++) {
+                int chunkLength = CHUNK_SIZE_BYTES;
+                int capacity = CHUNK_SIZE_BYTES;
+                boolean front = frontSlack > 0 && n == 0;
+                if (partial != 0 && (front || (frontSlack == 0 && n == numChunks - 1))) {
+                    chunkLength = partial;
+                    capacity = Math.min(Math.max(chunkLength, front ? frontSlack : backSlack), CHUNK_SIZE_BYTES);
+                }
+
+                // our own store first, then the first other store with a run of blocks large enough
+                int store = home;
+                Region region = null;
+                for (int i = 0; region == null; i++) {
+                    store = (home + i) % stores.length;
+                    boolean last = i == stores.length - 1;
+                    if (!last && stores[store].getFreeBytes() < capacity) continue;
+                    try {
+                        region = stores[store].alloc(capacity, expiry, System.currentTimeMillis());
+                    } catch (ByteBufferBlockStore.BadAllocationException e) {
+                        if (last) throw e;
+                    }
+                }
+                int offset = front ? region.usedBlocks * stores[store].getBlockSizeBytes() - chunkLength : 0;
+                stores[store].put(region.startBlock, offset, data.slice(index, chunkLength));
+                index += chunkLength;
+
+                int at = n * SEGMENT_FIELDS;
+                segments[at] = store;
+                segments[at + 1] = region.startBlock;
+                segments[at + 2] = region.usedBlocks;
+                segments[at + 3] = offset;
+                segments[at + 4] = chunkLength;
+            }
+        } catch (ByteBufferBlockStore.BadAllocationException e) {
+            // give back what we managed to get before running out
+            for (int i = 0; i < n; i++) {
+                int at = i * SEGMENT_FIELDS;
+                stores[segments[at]].free(segments[at + 1], segments[at + 2]);
+            }
+            throw e;
+        }
 
-        ChannelBuffer outbuf = ChannelBuffers.directBuffer(32 + key.bytes.capacity());
-        outbuf.writeInt(region.size);
-        outbuf.writeInt(region.usedBlocks);
-        outbuf.writeInt(region.startBlock);
-        outbuf.writeLong(region.expiry);
-        outbuf.writeLong(region.timestamp);
-        outbuf.writeInt(key.bytes.capacity());
-        key.bytes.readerIndex(0);
-        outbuf.writeBytes(key.bytes);
+        return segments;
+    }
+
+    private static int segmentsIndex(ChannelBuffer bucket, int entry) {
+        return entry + KEY + bucket.getInt(entry + KEY_LENGTH);
+    }
 
-        ChannelBuffer regions = buckets[bucket];
-        if (regions == null) {
-            regions = ChannelBuffers.dynamicBuffer(128);
-            buckets[bucket] = regions;
+    private static void readSegments(ChannelBuffer bucket, int segments, int[] into, int at) {
+        int numSegments = bucket.getInt(segments);
+        for (int i = 0; i < numSegments * SEGMENT_FIELDS; i++) {
+            into[at + i] = bucket.getInt(segments + 4 + i * 4);
         }
+    }
 
-        regions.writeInt(outbuf.capacity());
-        regions.writeBytes(outbuf);
+    /**
+     * Rewrite an entry with a new segment list. The rewritten entry moves to the end of its bucket.
+     */
+    private void relink(int bucketNum, int entry, int dataLength, long casUnique, int[] segments) {
+        ChannelBuffer bucket = buckets[bucketNum];
+
+        ChannelBuffer key = ChannelBuffers.copiedBuffer(bucket.slice(entry + KEY, bucket.getInt(entry + KEY_LENGTH)));
+        int hash = bucket.getInt(entry + HASH);
+        long expire = bucket.getLong(entry + EXPIRE);
+        int flags = bucket.getInt(entry + FLAGS);
+        boolean blocked = bucket.getByte(entry + BLOCKED) == 1;
+        long blockedUntil = bucket.getLong(entry + BLOCKED_UNTIL);
+
+        cut(bucket, entry);
+        writeEntry(bucket, key, hash, expire, flags, casUnique, blocked, blockedUntil, dataLength, segments);
+    }
 
-        numberItems++;
+    private ChannelBuffer bucketFor(Key key) {
+        int bucketNum = findBucketNum(key);
+        ChannelBuffer bucket = buckets[bucketNum];
+        if (bucket == null) {
+            bucket = ChannelBuffers.dynamicBuffer(128);
+            buckets[bucketNum] = bucket;
+        }
+        return bucket;
+    }
 
-        return region;
+    private static void writeEntry(ChannelBuffer bucket, ChannelBuffer key, int hash, long expire, int flags, long casUnique,
+                                   boolean blocked, long blockedUntil, int dataLength, int[] segments) {
+        int keyLength = key.capacity();
+        int numSegments = segments.length / SEGMENT_FIELDS;
+
+        bucket.writeInt(KEY - 4 + keyLength + 4 + numSegments * SEGMENT_SIZE);
+        bucket.writeInt(hash);
+        bucket.writeLong(expire);
+        bucket.writeInt(flags);
+        bucket.writeLong(casUnique);
+        bucket.writeByte(blocked ? 1 : 0);
+        bucket.writeLong(blockedUntil);
+        bucket.writeInt(dataLength);
+        bucket.writeInt(keyLength);
+        bucket.writeBytes(key, 0, keyLength);
+        bucket.writeInt(numSegments);
+        for (int segment : segments) {
+            bucket.writeInt(segment);
+        }
+    }
+
+    /**
+     * Remove an entry from a bucket by shifting the entries after it down over it.
+     */
+    private static void cut(ChannelBuffer bucket, int entry) {
+        int next = entry + 4 + bucket.getInt(entry);
+        int end = bucket.writerIndex();
+        bucket.setBytes(entry, bucket, next, end - next);
+        bucket.writerIndex(end - (next - entry));
     }
 
+    /**
+     * Forget all items. This does not free their blocks, which may live in other partitions' stores; the caller is
+     * responsible for clearing the stores once every partition has been cleared.
+     */
     public void clear() {
         for (ChannelBuffer bucket : buckets) {
             if (bucket != null)
                 bucket.clear();
         }
-        blockStore.clear();
+        filter.clear();
         numberItems = 0;
     }
 
     public Collection<Key> keys() {
         Set<Key> keys = new HashSet<Key>();
 
-        for (ChannelBuffer regionsa : buckets) {
-            if (regionsa != null) {
-                ChannelBuffer regions = regionsa.slice();
-                regions.readerIndex(0);
-                while (regions.readableBytes() > 0) {
-                    // read key portion then region portion
-                    int totsize = regions.readInt();
-                    regions.skipBytes(28);
-                    int rkeySize = regions.readInt();
-                    ChannelBuffer rkey = regions.readBytes(rkeySize);
-
-                    keys.add(new Key(rkey));
+        for (ChannelBuffer bucket : buckets) {
+            if (bucket != null) {
+                int end = bucket.writerIndex();
+                int entry = 0;
+                while (entry < end) {
+                    ChannelBuffer key = bucket.slice(entry + KEY, bucket.getInt(entry + KEY_LENGTH));
+                    keys.add(new Key(ChannelBuffers.copiedBuffer(key)));
+                    entry += 4 + bucket.getInt(entry);
                 }
             }
         }
         return keys;
     }
 
+    /**
+     * @return copies of all the items in the partition, sharing no buffers with the index or the block stores
+     */
+    public List<LocalCacheElement> copyValues() {
+        List<LocalCacheElement> values = new ArrayList<LocalCacheElement>(numberItems);
+
+        for (ChannelBuffer bucket : buckets) {
+            if (bucket != null) {
+                int end = bucket.writerIndex();
+                int entry = 0;
+                while (entry < end) {
+                    Key key = new Key(ChannelBuffers.copiedBuffer(bucket.slice(entry + KEY, bucket.getInt(entry + KEY_LENGTH))));
+                    values.add(get(key, entry));
+                    entry += 4 + bucket.getInt(entry);
+                }
+            }
+        }
+        return values;
+    }
+
     public int getNumberItems() {
         return numberItems;
     }
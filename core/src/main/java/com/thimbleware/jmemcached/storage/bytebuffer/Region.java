@@ -1,12 +1,7 @@
 package com.thimbleware.jmemcached.storage.bytebuffer;
 
-import com.thimbleware.jmemcached.Key;
-import com.thimbleware.jmemcached.LocalCacheElement;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferInputStream;
 
-import java.io.IOException;
-import java.io.ObjectInputStream;
 
 /**
      * Represents a number of allocated blocks in the store
@@ -50,16 +45,4 @@ public final class Region {
         this.valid = true;
     }
 
-    public Key keyFromRegion() {
-        slice.readerIndex(0);
-
-        int length = slice.readInt();
-        return new Key(slice.slice(slice.readerIndex(), length));
-    }
-
-    public LocalCacheElement toValue() {
-        slice.readerIndex(0);
-        return LocalCacheElement.readFromBuffer(slice);
-    }
-
 }
@@ -24,7 +24,10 @@ import java.util.AbstractMap;
 import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -274,6 +277,64 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         return false;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Reads take no lock here, so the keys are simply looked up one after another.
+     */
+    public void getAll(K[] keys, V[] values) {
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = get(keys[i]);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The old value is held by reference, so handing it back costs nothing; this is just put.
+     */
+    public void set(K key, V value) {
+        put(key, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * There are no partition locks to share between the keys, so they are simply stored one after another.
+     */
+    public void putAll(K[] keys, V[] values) {
+        for (int i = 0; i < keys.length; i++) {
+            put(keys[i], values[i]);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void removeAll(K[] keys, boolean[] removed) {
+        for (int i = 0; i < keys.length; i++) {
+            removed[i] = remove(keys[i]) != null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void replaceAll(K[] keys, V[] originals, V[] replacements, boolean[] replaced) {
+        for (int i = 0; i < keys.length; i++) {
+            replaced[i] = originals[i] != null && replace(keys[i], originals[i], replacements[i]);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Values are held by reference, so swapping in the touched ones copies nothing.
+     */
+    public void touchAll(K[] keys, V[] originals, V[] touched, boolean[] replaced) {
+        replaceAll(keys, originals, touched, replaced);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -407,6 +468,61 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Keys and values are held by reference.
+     */
+    public boolean retainsValues() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Values are held by reference, so there is nothing to be gained from knowing how replace was derived.
+     */
+    public boolean replaceAppended(K key, V original, V replace, int appendedBytes) {
+        return replace(key, original, replace);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean replacePrepended(K key, V original, V replace, int prependedBytes) {
+        return replace(key, original, replace);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Map<String, String> getStats() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The map is not partitioned, so it is copied out whole, in one weakly consistent pass which takes no locks.
+     */
+    public int getPartitionCount() {
+        return 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Values are never modified in place, so the references themselves are a consistent copy.
+     */
+    public Collection<V> copyPartition(int partition) {
+        List<V> values = new ArrayList<V>();
+        for (Node<K, V> node : data.values()) {
+            V value = node.getValue();
+            if (value != null) values.add(value);
+        }
+        return values;
+    }
+
     /**
      * {@inheritDoc}
      */
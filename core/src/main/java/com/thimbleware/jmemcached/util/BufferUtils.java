@@ -2,8 +2,11 @@ package com.thimbleware.jmemcached.util;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.CompositeChannelBuffer;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  */
@@ -13,6 +16,11 @@ public class BufferUtils {
             99999999, 999999999, Integer.MAX_VALUE };
     private static final ChannelBuffer LONG_MIN_VALUE_BYTES = ChannelBuffers.wrappedBuffer("-9223372036854775808".getBytes());
 
+    /**
+     * Number of components a concatenated buffer may be made of before its smaller pieces get coalesced
+     */
+    static final int MAX_UNMERGED_COMPONENTS = 8;
+
     // Requires positive x
     static int stringSize(int x) {
         for (int i=0; ; i++)
@@ -58,16 +66,29 @@ public class BufferUtils {
 
     public static int atoi(ChannelBuffer s)
             throws NumberFormatException
+    {
+        return atoi(s, 0, s.capacity());
+    }
+
+    /**
+     * Parse the decimal integer in a range of a buffer, without slicing it.
+     *
+     * @param s the buffer
+     * @param index index of the first byte of the number
+     * @param len number of bytes in the number
+     */
+    public static int atoi(ChannelBuffer s, int index, int len)
+            throws NumberFormatException
     {
         int result = 0;
         boolean negative = false;
-        int i = 0, len = s.capacity();
+        int i = index, end = index + len;
         int limit = -Integer.MAX_VALUE;
         int multmin;
         int digit;
 
         if (len > 0) {
-            byte firstChar = s.getByte(0);
+            byte firstChar = s.getByte(i);
             if (firstChar < '0') { // Possible leading "-"
                 if (firstChar == '-') {
                     negative = true;
@@ -80,10 +101,10 @@ public class BufferUtils {
                 i++;
             }
             multmin = limit / 10;
-            while (i < len) {
+            while (i < end) {
                 // Accumulating negatively avoids surprises near MAX_VALUE
-                digit = Character.digit(s.getByte(i++),10);
-                if (digit < 0) {
+                digit = s.getByte(i++) - '0';
+                if (digit < 0 || digit > 9) {
                     throw new NumberFormatException();
                 }
                 if (result < multmin) {
@@ -103,16 +124,29 @@ public class BufferUtils {
 
     public static long atol(ChannelBuffer s)
             throws NumberFormatException
+    {
+        return atol(s, 0, s.capacity());
+    }
+
+    /**
+     * Parse the decimal long in a range of a buffer, without slicing it.
+     *
+     * @param s the buffer
+     * @param index index of the first byte of the number
+     * @param len number of bytes in the number
+     */
+    public static long atol(ChannelBuffer s, int index, int len)
+            throws NumberFormatException
     {
         long result = 0;
         boolean negative = false;
-        int i = 0, len = s.capacity();
+        int i = index, end = index + len;
         long limit = -Long.MAX_VALUE;
         long multmin;
         int digit;
 
         if (len > 0) {
-            byte firstChar = s.getByte(0);
+            byte firstChar = s.getByte(i);
             if (firstChar < '0') { // Possible leading "-"
                 if (firstChar == '-') {
                     negative = true;
@@ -125,10 +159,10 @@ public class BufferUtils {
                 i++;
             }
             multmin = limit / 10;
-            while (i < len) {
+            while (i < end) {
                 // Accumulating negatively avoids surprises near MAX_VALUE
-                digit = Character.digit(s.getByte(i++),10);
-                if (digit < 0) {
+                digit = s.getByte(i++) - '0';
+                if (digit < 0 || digit > 9) {
                     throw new NumberFormatException();
                 }
                 if (result < multmin) {
@@ -271,4 +305,75 @@ public class BufferUtils {
         return 19;
     }
 
+    /**
+     * Concatenate a suffix onto a buffer without copying the existing bytes.
+     *
+     * The result is a composite of the two. A value which keeps getting appended to would otherwise grow by one
+     * component per append, so once there are more than a handful of components the trailing ones are coalesced
+     * binary counter style (whenever the last is at least as large as the one before it, the two are merged). Every
+     * byte is thus copied at most a logarithmic number of times, and the component count stays logarithmic too.
+     *
+     * @param existing the buffer to append to
+     * @param suffix the bytes to append
+     * @return a buffer holding the readable bytes of existing followed by those of suffix
+     */
+    public static ChannelBuffer append(ChannelBuffer existing, ChannelBuffer suffix) {
+        ChannelBuffer joined = ChannelBuffers.wrappedBuffer(existing, suffix);
+        List<ChannelBuffer> components = components(joined);
+        if (components == null || components.size() <= MAX_UNMERGED_COMPONENTS) return joined;
+
+        int last;
+        while ((last = components.size() - 1) > 0 && components.get(last).capacity() >= components.get(last - 1).capacity()) {
+            ChannelBuffer merged = ChannelBuffers.copiedBuffer(components.get(last - 1), components.get(last));
+            components.remove(last);
+            components.set(last - 1, merged);
+        }
+
+        return ChannelBuffers.wrappedBuffer(components.toArray(new ChannelBuffer[components.size()]));
+    }
+
+    /**
+     * Concatenate a prefix onto a buffer without copying the existing bytes. The mirror image of
+     * {@link #append(ChannelBuffer, ChannelBuffer)}; leading components are coalesced instead of trailing ones.
+     *
+     * @param existing the buffer to prepend to
+     * @param prefix the bytes to prepend
+     * @return a buffer holding the readable bytes of prefix followed by those of existing
+     */
+    public static ChannelBuffer prepend(ChannelBuffer existing, ChannelBuffer prefix) {
+        ChannelBuffer joined = ChannelBuffers.wrappedBuffer(prefix, existing);
+        List<ChannelBuffer> components = components(joined);
+        if (components == null || components.size() <= MAX_UNMERGED_COMPONENTS) return joined;
+
+        while (components.size() > 1 && components.get(0).capacity() >= components.get(1).capacity()) {
+            ChannelBuffer merged = ChannelBuffers.copiedBuffer(components.get(0), components.get(1));
+            components.remove(1);
+            components.set(0, merged);
+        }
+
+        return ChannelBuffers.wrappedBuffer(components.toArray(new ChannelBuffer[components.size()]));
+    }
+
+    /**
+     * Compare two ranges of bytes by absolute index, leaving the indices of both buffers alone. Compares eight bytes at
+     * a time while it can.
+     *
+     * @return true if the length bytes at aIndex in a equal those at bIndex in b
+     */
+    public static boolean equals(ChannelBuffer a, int aIndex, ChannelBuffer b, int bIndex, int length) {
+        int longs = length >>> 3;
+        for (int i = 0; i < longs; i++, aIndex += 8, bIndex += 8) {
+            if (a.getLong(aIndex) != b.getLong(bIndex)) return false;
+        }
+        for (int i = length & 7; i > 0; i--) {
+            if (a.getByte(aIndex++) != b.getByte(bIndex++)) return false;
+        }
+        return true;
+    }
+
+    private static List<ChannelBuffer> components(ChannelBuffer buffer) {
+        if (!(buffer instanceof CompositeChannelBuffer)) return null;
+        return new ArrayList<ChannelBuffer>(((CompositeChannelBuffer) buffer).decompose(0, buffer.capacity()));
+    }
+
 }
@@ -0,0 +1,73 @@
+package com.thimbleware.jmemcached.util;
+
+import java.util.Arrays;
+
+/**
+ * Counting Bloom filter over 64-bit hashes, with 4-bit counters packed sixteen to a long.
+ *
+ * Each hash is mapped to {@link #HASHES} counters by double hashing on its two 32-bit halves (the second forced odd,
+ * so that the probes never fall into a short cycle). A counter which reaches its maximum sticks there, so removals can
+ * never produce a false negative; at worst they stop clearing that counter.
+ *
+ * Not thread-safe; callers are expected to hold a lock around mutations.
+ */
+public final class CountingBloomFilter {
+
+    private static final int HASHES = 4;
+    private static final int COUNTERS_PER_ITEM = 10;
+    private static final long MAX_COUNT = 0xf;
+
+    private final long[] counters;
+    private final int mask;
+
+    /**
+     * @param expectedItems number of items the filter is sized for; at that load about 1% of lookups for absent items
+     * pass the filter
+     */
+    public CountingBloomFilter(int expectedItems) {
+        int size = Integer.highestOneBit(Math.max(64, expectedItems * COUNTERS_PER_ITEM - 1)) << 1;
+        this.counters = new long[size / 16];
+        this.mask = size - 1;
+    }
+
+    public void add(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int counter = (h1 + i * h2) & mask;
+            int shift = (counter & 0xf) << 2;
+            if (((counters[counter >>> 4] >>> shift) & MAX_COUNT) != MAX_COUNT)
+                counters[counter >>> 4] += 1L << shift;
+        }
+    }
+
+    public void remove(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int counter = (h1 + i * h2) & mask;
+            int shift = (counter & 0xf) << 2;
+            long count = (counters[counter >>> 4] >>> shift) & MAX_COUNT;
+            if (count != 0 && count != MAX_COUNT)
+                counters[counter >>> 4] -= 1L << shift;
+        }
+    }
+
+    /**
+     * @return false if the hash has definitely not been added; true if it may have been
+     */
+    public boolean mightContain(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int counter = (h1 + i * h2) & mask;
+            if (((counters[counter >>> 4] >>> ((counter & 0xf) << 2)) & MAX_COUNT) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(counters, 0L);
+    }
+}
@@ -0,0 +1,65 @@
+package com.thimbleware.jmemcached.util;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * The 32-bit variant of Austin Appleby's MurmurHash3 (x86_32), over the bytes of a buffer.
+ */
+public final class Murmur3 {
+
+    private static final int C1 = 0xcc9e2d51;
+    private static final int C2 = 0x1b873593;
+
+    private Murmur3() {
+    }
+
+    /**
+     * @param buffer the buffer
+     * @param index index of the first byte to hash
+     * @param length number of bytes to hash
+     * @param seed the seed
+     * @return the hash
+     */
+    public static int hash32(ChannelBuffer buffer, int index, int length, int seed) {
+        int h = seed;
+        int end = index + (length & ~3);
+
+        for (int i = index; i < end; i += 4) {
+            // blocks are read little-endian, as in the reference implementation
+            h ^= mixK(Integer.reverseBytes(buffer.getInt(i)));
+            h = Integer.rotateLeft(h, 13);
+            h = h * 5 + 0xe6546b64;
+        }
+
+        int k = 0;
+        switch (length & 3) {
+            case 3:
+                k ^= (buffer.getByte(end + 2) & 0xff) << 16;
+            case 2:
+                k ^= (buffer.getByte(end + 1) & 0xff) << 8;
+            case 1:
+                k ^= buffer.getByte(end) & 0xff;
+                h ^= mixK(k);
+        }
+
+        return fmix(h ^ length);
+    }
+
+    private static int mixK(int k) {
+        k *= C1;
+        k = Integer.rotateLeft(k, 15);
+        return k * C2;
+    }
+
+    /**
+     * The finalization mix, which forces all bits of a hash to avalanche
+     */
+    public static int fmix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
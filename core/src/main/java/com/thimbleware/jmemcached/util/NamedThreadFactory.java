@@ -0,0 +1,32 @@
+package com.thimbleware.jmemcached.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factory which numbers its threads after a common name prefix, and gives them a fixed priority.
+ */
+public final class NamedThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final int priority;
+    private final boolean daemon;
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    /**
+     * @param prefix threads are named prefix-1, prefix-2, ...
+     * @param priority the priority of the threads
+     * @param daemon whether the threads are daemon threads
+     */
+    public NamedThreadFactory(String prefix, int priority, boolean daemon) {
+        this.prefix = prefix;
+        this.priority = priority;
+        this.daemon = daemon;
+    }
+
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, prefix + "-" + threadNumber.getAndIncrement());
+        thread.setPriority(priority);
+        thread.setDaemon(daemon);
+        return thread;
+    }
+}
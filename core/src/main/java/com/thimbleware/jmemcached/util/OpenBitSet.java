@@ -669,26 +669,27 @@ public class OpenBitSet implements Cloneable, Serializable {
             starting_block = b;
 
             for (count = 0; count < blocks_needed; count++) {
-                if ((bits[b >>> OFFSET] & (1 << (b & 0x3f))) != 0)
+                if (b >= wdth || (bits[b >>> OFFSET] & (1L << (b & 0x3f))) != 0)
                     break;
                 b++;
-                if (b >= wdth) {
-                    /* time to wrap around if we still haven't */
-                    if (!over_the_top) {
-                        b=0;
-                        over_the_top=true;
-                        break;
-                    } else {
-                        return -1;
-                    }
-                }
             }
 
             if (count == blocks_needed) {
-                set(starting_block, b+blocks_needed);
+                set(starting_block, starting_block + blocks_needed);
                 return starting_block;
             }
 
+            if (b >= wdth) {
+                /* ran off the end; time to wrap around if we still haven't */
+                if (!over_the_top) {
+                    b = 0;
+                    over_the_top = true;
+                    continue;
+                } else {
+                    return -1;
+                }
+            }
+
             b++;
         }
     }
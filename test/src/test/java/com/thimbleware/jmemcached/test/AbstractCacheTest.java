@@ -1,6 +1,7 @@
 package com.thimbleware.jmemcached.test;
 
 import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.arena.ArenaCacheStorage;
 import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
 import com.thimbleware.jmemcached.storage.CacheStorage;
 import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
@@ -37,7 +38,7 @@ public abstract class AbstractCacheTest {
 
 
     public static enum CacheType {
-        LOCAL_HASH, BLOCK, MAPPED
+        LOCAL_HASH, BLOCK, MAPPED, ARENA
     }
 
     public static enum ProtocolMode {
@@ -52,7 +53,9 @@ public abstract class AbstractCacheTest {
                 {CacheType.BLOCK, 4, ProtocolMode.TEXT},
                 {CacheType.BLOCK, 4, ProtocolMode.BINARY},
                 {CacheType.MAPPED, 4, ProtocolMode.TEXT},
-                {CacheType.MAPPED, 4, ProtocolMode.BINARY }
+                {CacheType.MAPPED, 4, ProtocolMode.BINARY },
+                {CacheType.ARENA, 1, ProtocolMode.TEXT },
+                {CacheType.ARENA, 1, ProtocolMode.BINARY }
         });
     }
 
@@ -92,6 +95,9 @@ public abstract class AbstractCacheTest {
             case MAPPED:
                 cacheStorage = new BlockStorageCacheStorage(16, CEILING_SIZE, blockSize, MAX_BYTES, MAX_SIZE, MemoryMappedBlockStore.getFactory());
 
+                break;
+            case ARENA:
+                cacheStorage = new ArenaCacheStorage(16, MAX_BYTES, MAX_SIZE);
                 break;
         }
         return cacheStorage;
@@ -0,0 +1,73 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.arena.ArenaCacheStorage;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Eviction by item count in the arena storage. Each segment holds its share of the item limit and evicts its own
+ * oldest items, so eviction is first in, first out across the cache only when there is one segment.
+ */
+public class ArenaEvictionTest {
+
+    private static final int MAX_ITEMS = 1000;
+
+    private static Key key(int i) {
+        return new Key(ChannelBuffers.wrappedBuffer(("" + i).getBytes()));
+    }
+
+    private static void fill(CacheImpl cache, int items, int limit) {
+        for (int i = 0; i < items; i++) {
+            LocalCacheElement element = new LocalCacheElement(key(i), 0, 0, 0L);
+            element.setData(ChannelBuffers.wrappedBuffer((i + "x").getBytes()));
+            assertEquals(Cache.StoreResponse.STORED, cache.add(element));
+            assertTrue("at most " + limit + " items after " + (i + 1), cache.getCurrentItems() <= limit);
+        }
+    }
+
+    @Test
+    public void testOneSegmentEvictsOldestFirst() throws IOException {
+        CacheImpl cache = new CacheImpl(new ArenaCacheStorage(1, AbstractCacheTest.MAX_BYTES, MAX_ITEMS));
+        try {
+            fill(cache, MAX_ITEMS * 2, MAX_ITEMS);
+            assertEquals(MAX_ITEMS, cache.getCurrentItems());
+
+            for (int i = 0; i < MAX_ITEMS * 2; i++) {
+                LocalCacheElement element = cache.get(key(i))[0];
+                if (i < MAX_ITEMS) {
+                    assertNull(i + " evicted", element);
+                } else {
+                    assertNotNull(i + " kept", element);
+                    assertEquals(ChannelBuffers.wrappedBuffer((i + "x").getBytes()), element.getData());
+                }
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testSegmentsKeepTheLimitBetweenThem() throws IOException {
+        int segments = 16;
+        CacheImpl cache = new CacheImpl(new ArenaCacheStorage(segments, AbstractCacheTest.MAX_BYTES, MAX_ITEMS));
+        try {
+            fill(cache, MAX_ITEMS * 2, MAX_ITEMS);
+
+            // every segment is full, and keeps its newest items; the most recent of all fit in any segment's share
+            assertEquals(MAX_ITEMS / segments * segments, cache.getCurrentItems());
+            for (int i = MAX_ITEMS * 2 - MAX_ITEMS / segments; i < MAX_ITEMS * 2; i++) {
+                assertNotNull(i + " kept", cache.get(key(i))[0]);
+            }
+        } finally {
+            cache.close();
+        }
+    }
+}
@@ -13,6 +13,8 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
 import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
 
 /**
  */
@@ -60,6 +62,106 @@ public class BasicCacheTest extends AbstractCacheTest {
         assertEquals("cache has 1 element", 1, cache.getCurrentItems());
     }
 
+    @Test
+    public void testMultiGet() {
+        // enough keys to land several in each partition, with every third one missing
+        Key[] keys = new Key[64];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new Key(ChannelBuffers.wrappedBuffer(("multikey" + i).getBytes()));
+            if (i % 3 == 0) continue;
+
+            LocalCacheElement element = new LocalCacheElement(keys[i], 0, NO_EXPIRE, 0L);
+            element.setData(ChannelBuffers.wrappedBuffer(("value" + i).getBytes()));
+            assertEquals(Cache.StoreResponse.STORED, cache.add(element));
+        }
+
+        CacheElement[] results = cache.get(keys);
+
+        assertEquals("one result per key", keys.length, results.length);
+        for (int i = 0; i < keys.length; i++) {
+            if (i % 3 == 0) {
+                assertEquals("miss for " + i, null, results[i]);
+            } else {
+                assertNotNull("hit for " + i, results[i]);
+                assertEquals("key matches", keys[i], results[i].getKey());
+                assertEquals("data matches", ChannelBuffers.wrappedBuffer(("value" + i).getBytes()), results[i].getData());
+            }
+        }
+        assertEquals("misses", 22, cache.getGetMisses());
+        assertEquals("hits", 42, cache.getGetHits());
+    }
+
+    @Test
+    public void testLeaseLapses() throws InterruptedException {
+        Key key = new Key(ChannelBuffers.wrappedBuffer("leased".getBytes()));
+        Cache.LeaseStatus[] status = new Cache.LeaseStatus[1];
+
+        assertEquals(null, cache.getWithLease(key, 50, status));
+        assertEquals(Cache.LeaseStatus.WON, status[0]);
+        cache.getWithLease(key, 50, status);
+        assertEquals(Cache.LeaseStatus.PENDING, status[0]);
+
+        // the winner never comes back; once its lease lapses, the next client takes over
+        Thread.sleep(100);
+        cache.getWithLease(key, 50, status);
+        assertEquals(Cache.LeaseStatus.WON, status[0]);
+
+        LocalCacheElement element = new LocalCacheElement(key, 0, NO_EXPIRE, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer("value".getBytes()));
+        cache.set(element);
+        assertNotNull(cache.getWithLease(key, 50, status));
+        assertEquals(Cache.LeaseStatus.FRESH, status[0]);
+    }
+
+    @Test
+    public void testMultiMutations() {
+        LocalCacheElement[] elements = new LocalCacheElement[64];
+        Key[] keys = new Key[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            keys[i] = new Key(ChannelBuffers.wrappedBuffer(("multikey" + i).getBytes()));
+            elements[i] = new LocalCacheElement(keys[i], 0, NO_EXPIRE, 0L);
+            elements[i].setData(ChannelBuffers.wrappedBuffer(("value" + i).getBytes()));
+        }
+
+        Cache.StoreResponse[] stored = cache.setMulti(elements);
+        for (Cache.StoreResponse response : stored) {
+            assertEquals(Cache.StoreResponse.STORED, response);
+        }
+        assertEquals("cache has all the elements", 64, cache.getCurrentItems());
+
+        // touch the even keys, and a key which isn't there
+        Key[] evens = new Key[33];
+        for (int i = 0; i < 32; i++) {
+            evens[i] = keys[i * 2];
+        }
+        evens[32] = new Key(ChannelBuffers.wrappedBuffer("missing".getBytes()));
+        long expire = Now() + 60000;
+        boolean[] touched = cache.touchMulti(expire, evens);
+        for (int i = 0; i < 32; i++) {
+            assertTrue("touched " + i, touched[i]);
+        }
+        assertTrue("missing key not touched", !touched[32]);
+
+        CacheElement[] results = cache.get(keys);
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals("expiry of " + i, i % 2 == 0 ? expire : NO_EXPIRE, results[i].getExpire());
+            assertEquals("data of " + i, ChannelBuffers.wrappedBuffer(("value" + i).getBytes()), results[i].getData());
+        }
+
+        // delete the odd keys, and the missing one
+        Key[] odds = new Key[33];
+        for (int i = 0; i < 32; i++) {
+            odds[i] = keys[i * 2 + 1];
+        }
+        odds[32] = evens[32];
+        Cache.DeleteResponse[] deleted = cache.deleteMulti(odds);
+        for (int i = 0; i < 32; i++) {
+            assertEquals(Cache.DeleteResponse.DELETED, deleted[i]);
+        }
+        assertEquals(Cache.DeleteResponse.NOT_FOUND, deleted[32]);
+        assertEquals("cache has the even elements", 32, cache.getCurrentItems());
+    }
+
     @Test
     public void testAddReplace() {
         Key testKey = new Key(ChannelBuffers.wrappedBuffer("12345678".getBytes()));
@@ -240,4 +342,97 @@ public class BasicCacheTest extends AbstractCacheTest {
         assertEquals(ChannelBuffers.wrappedBuffer("11".getBytes()), data);
     }
 
+    @Test
+    public void testRepeatedAppendPrepend() {
+        Key testKey = new Key(ChannelBuffers.wrappedBuffer("12345678".getBytes()));
+
+        LocalCacheElement element = new LocalCacheElement(testKey, 0, NO_EXPIRE, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer("x".getBytes()));
+        assertEquals(cache.set(element), Cache.StoreResponse.STORED);
+
+        StringBuilder expected = new StringBuilder("x");
+        for (int i = 0; i < 100; i++) {
+            String chunk = Integer.toString(i);
+
+            LocalCacheElement appendEl = new LocalCacheElement(testKey, 0, NO_EXPIRE, 0L);
+            appendEl.setData(ChannelBuffers.wrappedBuffer(chunk.getBytes()));
+            assertEquals("append stored", Cache.StoreResponse.STORED, cache.append(appendEl));
+            expected.append(chunk);
+
+            LocalCacheElement prependEl = new LocalCacheElement(testKey, 0, NO_EXPIRE, 0L);
+            prependEl.setData(ChannelBuffers.wrappedBuffer(chunk.getBytes()));
+            assertEquals("prepend stored", Cache.StoreResponse.STORED, cache.prepend(prependEl));
+            expected.insert(0, chunk);
+        }
+
+        LocalCacheElement result = cache.get(testKey)[0];
+        assertNotNull("got result", result);
+        assertEquals("data matches", ChannelBuffers.wrappedBuffer(expected.toString().getBytes()), result.getData());
+        assertEquals("cache has 1 element", 1, cache.getCurrentItems());
+    }
+
+    @Test
+    public void testLargeValue() {
+        Key testKey = new Key(ChannelBuffers.wrappedBuffer("12345678".getBytes()));
+
+        // larger than any single partition of the block storage
+        byte[] value = new byte[1024 * 1024 + 17];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i;
+        }
+
+        LocalCacheElement element = new LocalCacheElement(testKey, 0, NO_EXPIRE, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer(value));
+        assertEquals(cache.set(element), Cache.StoreResponse.STORED);
+
+        LocalCacheElement result = cache.get(testKey)[0];
+        assertNotNull("got result", result);
+        assertEquals("data length matches", value.length, result.size());
+        assertEquals("data matches", ChannelBuffers.wrappedBuffer(value), result.getData());
+
+        // and it can be removed again, giving back its room
+        assertEquals(Cache.DeleteResponse.DELETED, cache.delete(testKey, 0));
+        assertEquals("cache is empty", 0, cache.getCurrentItems());
+    }
+
+    @Test
+    public void testMisses() {
+        for (int i = 0; i < 100; i++) {
+            LocalCacheElement element = new LocalCacheElement(new Key(ChannelBuffers.wrappedBuffer(("present" + i).getBytes())), 0, NO_EXPIRE, 0L);
+            element.setData(ChannelBuffers.wrappedBuffer("value".getBytes()));
+            cache.set(element);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertNotNull("hit", cache.get(new Key(ChannelBuffers.wrappedBuffer(("present" + i).getBytes())))[0]);
+            assertEquals("miss", null, cache.get(new Key(ChannelBuffers.wrappedBuffer(("absent" + i).getBytes())))[0]);
+        }
+        assertEquals("misses counted", 100, cache.getGetMisses());
+
+        if (cacheType == CacheType.BLOCK || cacheType == CacheType.MAPPED) {
+            Map<String, Set<String>> stats = cache.stat("");
+            assertNotNull("filter statistics reported", stats.get("bloom_false_positive_rate"));
+            assertTrue("filter turns away most misses", Long.parseLong(stats.get("bloom_true_negatives").iterator().next()) > 90);
+        }
+    }
+
+    @Test
+    public void testStoredItemsOwnTheirBytes() {
+        // key and value are slices of a larger buffer, as they are when decoded from the network
+        ChannelBuffer received = ChannelBuffers.wrappedBuffer("set 12345678 0 0 8\r\n87654321\r\n".getBytes());
+        Key testKey = new Key(received.slice(4, 8));
+
+        LocalCacheElement element = new LocalCacheElement(testKey, 0, NO_EXPIRE, 0L);
+        element.setData(received.slice(20, 8));
+        assertEquals(cache.set(element), Cache.StoreResponse.STORED);
+
+        // the receive buffer gets reused
+        received.setZero(0, received.capacity());
+
+        LocalCacheElement result = cache.get(new Key(ChannelBuffers.wrappedBuffer("12345678".getBytes())))[0];
+        assertNotNull("got result", result);
+        assertEquals("key unaffected", ChannelBuffers.wrappedBuffer("12345678".getBytes()), result.getKey().bytes);
+        assertEquals("data unaffected", ChannelBuffers.wrappedBuffer("87654321".getBytes()), result.getData());
+        assertEquals("size accounts for the value only", 8, cache.getCurrentBytes());
+    }
+
 }
@@ -0,0 +1,370 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * The binary protocol codec, driven over a raw socket so that the exact bytes on the wire are under the test's control.
+ */
+public class BinaryProtocolTest {
+
+    private static final int GET = 0x00;
+    private static final int SET = 0x01;
+    private static final int INCREMENT = 0x05;
+    private static final int GETQ = 0x09;
+    private static final int NOOP = 0x0A;
+    private static final int GETK = 0x0C;
+    private static final int GETKQ = 0x0D;
+    private static final int SETQ = 0x11;
+    private static final int DELETEQ = 0x14;
+    private static final int TOUCH = 0x1C;
+    private static final int GATQ = 0x1E;
+    private static final int GATK = 0x23;
+
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private InetSocketAddress address;
+    private Socket socket;
+    private DataOutputStream out;
+    private DataInputStream in;
+
+    @Before
+    public void setUp() throws IOException {
+        address = new InetSocketAddress("localhost", AvailablePortFinder.getNextAvailable());
+        daemon = new MemCacheDaemon<LocalCacheElement>(new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(
+                ConcurrentLinkedHashMap.EvictionPolicy.FIFO, 1000, AbstractCacheTest.MAX_BYTES)));
+        daemon.setAddr(address);
+        daemon.setBinary(true);
+        daemon.start();
+
+        socket = new Socket(address.getHostName(), address.getPort());
+        out = new DataOutputStream(socket.getOutputStream());
+        in = new DataInputStream(socket.getInputStream());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        socket.close();
+        daemon.stop();
+    }
+
+    private static byte[] request(int opcode, byte[] extras, String key, byte[] value, int opaque) throws IOException {
+        byte[] keyBytes = key.getBytes("US-ASCII");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream request = new DataOutputStream(bytes);
+        request.writeByte(0x80);
+        request.writeByte(opcode);
+        request.writeShort(keyBytes.length);
+        request.writeByte(extras.length);
+        request.writeByte(0);
+        request.writeShort(0);
+        request.writeInt(extras.length + keyBytes.length + value.length);
+        request.writeInt(opaque);
+        request.writeLong(0);
+        request.write(extras);
+        request.write(keyBytes);
+        request.write(value);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] set(String key, String value, int opaque) throws IOException {
+        return request(SET, new byte[8], key, value.getBytes("US-ASCII"), opaque);
+    }
+
+    private static byte[] get(int opcode, String key, int opaque) throws IOException {
+        return request(opcode, new byte[0], key, new byte[0], opaque);
+    }
+
+    /**
+     * A response as read off the wire
+     */
+    private static final class Response {
+        int opcode;
+        int status;
+        int opaque;
+        byte[] extras;
+        String key;
+        byte[] value;
+    }
+
+    private Response read() throws IOException {
+        return read(in);
+    }
+
+    private static Response read(DataInputStream in) throws IOException {
+        Response response = new Response();
+        assertEquals(0x81, in.readUnsignedByte());
+        response.opcode = in.readUnsignedByte();
+        int keyLength = in.readUnsignedShort();
+        int extrasLength = in.readUnsignedByte();
+        in.readUnsignedByte();
+        response.status = in.readUnsignedShort();
+        int bodyLength = in.readInt();
+        response.opaque = in.readInt();
+        in.readLong();
+
+        response.extras = new byte[extrasLength];
+        in.readFully(response.extras);
+        byte[] key = new byte[keyLength];
+        in.readFully(key);
+        response.key = new String(key, "US-ASCII");
+        response.value = new byte[bodyLength - extrasLength - keyLength];
+        in.readFully(response.value);
+        return response;
+    }
+
+    @Test
+    public void testSetAndGet() throws IOException {
+        out.write(set("key", "value", 1));
+        out.write(get(GET, "key", 2));
+        out.write(get(GETK, "key", 3));
+        out.flush();
+
+        Response set = read();
+        assertEquals(SET, set.opcode);
+        assertEquals(0, set.status);
+        assertEquals(1, set.opaque);
+
+        Response get = read();
+        assertEquals(GET, get.opcode);
+        assertEquals(2, get.opaque);
+        assertEquals(4, get.extras.length);
+        assertEquals("", get.key);
+        assertEquals("value", new String(get.value, "US-ASCII"));
+
+        Response getk = read();
+        assertEquals(GETK, getk.opcode);
+        assertEquals(3, getk.opaque);
+        assertEquals("key", getk.key);
+        assertEquals("value", new String(getk.value, "US-ASCII"));
+    }
+
+    @Test
+    public void testIncrement() throws IOException {
+        byte[] extras = new byte[20];
+        extras[7] = 5;                   // amount
+        out.write(set("counter", "10", 1));
+        out.write(request(INCREMENT, extras, "counter", new byte[0], 2));
+        out.flush();
+
+        assertEquals(0, read().status);
+        Response incr = read();
+        assertEquals(0, incr.status);
+        assertEquals(8, incr.value.length);
+        assertEquals(15, new DataInputStream(new ByteArrayInputStream(incr.value)).readLong());
+    }
+
+    @Test
+    public void testTouchAndGat() throws IOException {
+        byte[] expiry = new byte[] { 0, 0, 0, 100 };
+        out.write(set("key", "value", 1));
+        out.write(request(TOUCH, expiry, "key", new byte[0], 2));
+        out.write(request(TOUCH, expiry, "missing", new byte[0], 3));
+        out.write(request(GATQ, expiry, "missing", new byte[0], 4));
+        out.write(request(GATK, expiry, "key", new byte[0], 5));
+        out.flush();
+
+        assertEquals(0, read().status);
+
+        Response touch = read();
+        assertEquals(TOUCH, touch.opcode);
+        assertEquals(0, touch.status);
+        assertEquals(0, touch.value.length);
+        assertEquals(1, read().status);
+
+        // the quiet miss says nothing
+        Response gat = read();
+        assertEquals(GATK, gat.opcode);
+        assertEquals(5, gat.opaque);
+        assertEquals(0, gat.status);
+        assertEquals("key", gat.key);
+        assertEquals("value", new String(gat.value, "US-ASCII"));
+    }
+
+    @Test
+    public void testPipelinedRequests() throws IOException {
+        // many responses to one read, which straddle the encoder's output buffers
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        for (int i = 0; i < 500; i++) {
+            requests.write(set("key" + i, "value" + i, i));
+        }
+        for (int i = 0; i < 500; i++) {
+            requests.write(get(GETK, "key" + i, i));
+        }
+        out.write(requests.toByteArray());
+        out.flush();
+
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, read().opaque);
+        }
+        for (int i = 0; i < 500; i++) {
+            Response get = read();
+            assertEquals(i, get.opaque);
+            assertEquals("key" + i, get.key);
+            assertEquals("value" + i, new String(get.value, "US-ASCII"));
+        }
+    }
+
+    @Test
+    public void testQuietBatch() throws IOException {
+        // quiet sets say nothing; quiet gets answer only for hits, which arrive ahead of the noop closing the batch
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        for (int i = 0; i < 1000; i += 2) {
+            requests.write(request(SETQ, new byte[8], "key" + i, ("value" + i).getBytes("US-ASCII"), i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            requests.write(get(i % 4 == 0 ? GETKQ : GETQ, "key" + i, i));
+        }
+        requests.write(request(NOOP, new byte[0], "", new byte[0], -1));
+        out.write(requests.toByteArray());
+        out.flush();
+
+        for (int i = 0; i < 1000; i += 2) {
+            Response get = read();
+            assertEquals(i, get.opaque);
+            assertEquals(i % 4 == 0 ? GETKQ : GETQ, get.opcode);
+            assertEquals(0, get.status);
+            assertEquals(i % 4 == 0 ? "key" + i : "", get.key);
+            assertEquals("value" + i, new String(get.value, "US-ASCII"));
+        }
+
+        Response noop = read();
+        assertEquals(NOOP, noop.opcode);
+        assertEquals(0, noop.status);
+        assertEquals(-1, noop.opaque);
+    }
+
+    @Test
+    public void testQuietGetsWithoutNoop() throws IOException {
+        // a client which only ever sends quiet gets still gets its hits, once enough of them are corked
+        out.write(set("key", "value", 0));
+        out.flush();
+        assertEquals(SET, read().opcode);
+
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        for (int i = 1; i <= 256; i++) {
+            requests.write(get(GETQ, "key", i));
+        }
+        out.write(requests.toByteArray());
+        out.flush();
+
+        socket.setSoTimeout(5000);
+        for (int i = 1; i <= 256; i++) {
+            Response get = read();
+            assertEquals(i, get.opaque);
+            assertEquals("value", new String(get.value, "US-ASCII"));
+        }
+    }
+
+    @Test
+    public void testQuietDeleteBatch() throws IOException {
+        // quiet deletes of keys which are there say nothing; those of missing keys answer, in order
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            requests.write(request(SETQ, new byte[8], "key" + i, ("value" + i).getBytes("US-ASCII"), i));
+        }
+        for (int i = 0; i < 15; i++) {
+            requests.write(get(DELETEQ, "key" + i, i));
+        }
+        requests.write(get(GETK, "key3", 100));
+        requests.write(request(NOOP, new byte[0], "", new byte[0], -1));
+        out.write(requests.toByteArray());
+        out.flush();
+
+        for (int i = 10; i < 15; i++) {
+            Response delete = read();
+            assertEquals(DELETEQ, delete.opcode);
+            assertEquals(1, delete.status);
+            assertEquals(i, delete.opaque);
+        }
+
+        Response get = read();
+        assertEquals(100, get.opaque);
+        assertEquals(1, get.status);
+
+        assertEquals(NOOP, read().opcode);
+    }
+
+    @Test
+    public void testGetMiss() throws IOException {
+        out.write(get(GET, "missing", 1));
+        out.flush();
+
+        Response miss = read();
+        assertEquals(1, miss.status);
+        assertEquals(0, miss.extras.length);
+    }
+
+    @Test
+    public void testConcurrentConnectionsWithFragmentedRequests() throws Exception {
+        // each connection's requests arrive a few bytes at a time, so every connection has a request half read at once
+        final List<Throwable> failures = new CopyOnWriteArrayList<Throwable>();
+        Thread[] clients = new Thread[8];
+        for (int c = 0; c < clients.length; c++) {
+            final int client = c;
+            clients[c] = new Thread() {
+                public void run() {
+                    try {
+                        Socket socket = new Socket(address.getHostName(), address.getPort());
+                        try {
+                            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                            DataInputStream in = new DataInputStream(socket.getInputStream());
+                            for (int i = 0; i < 50; i++) {
+                                byte[] requests = concat(set("client" + client + "-" + i, "value" + i, i), get(GETK, "client" + client + "-" + i, i));
+                                for (int offset = 0; offset < requests.length; offset += 7) {
+                                    out.write(requests, offset, Math.min(7, requests.length - offset));
+                                    out.flush();
+                                }
+
+                                assertEquals(i, read(in).opaque);
+                                Response get = read(in);
+                                assertEquals("client" + client + "-" + i, get.key);
+                                assertEquals("value" + i, new String(get.value, "US-ASCII"));
+                            }
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            clients[c].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+
+        assertTrue("clients failed: " + failures, failures.isEmpty());
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] both = new byte[a.length + b.length];
+        System.arraycopy(a, 0, both, 0, a.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        return both;
+    }
+
+    @Test
+    public void testUnknownOpcode() throws IOException {
+        out.write(get(0x7f, "key", 1));
+        out.flush();
+
+        assertEquals(0x81, read().status);
+    }
+}
@@ -0,0 +1,138 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+
+/**
+ * The partition index keeps each entry's key hash alongside it; entries rewritten by an append or prepend which
+ * outgrows its slack, and entries rebuilt by a restore, must still be found by that hash. One partition and a few
+ * hundred keys, so that buckets hold several entries each.
+ */
+public class BlockStorageIndexTest {
+
+    private static final int KEYS = 300;
+    private static final int CHUNK_BYTES = 1000;
+
+    private CacheImpl cache;
+
+    private static CacheImpl newCache() {
+        return new CacheImpl(new BlockStorageCacheStorage(1, AbstractCacheTest.CEILING_SIZE, 8, AbstractCacheTest.MAX_BYTES,
+                AbstractCacheTest.MAX_SIZE, new ByteBufferBlockStore.ByteBufferBlockStoreFactory()));
+    }
+
+    private static Key key(int i) {
+        return new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes()));
+    }
+
+    private static LocalCacheElement element(int i, String data) {
+        LocalCacheElement element = new LocalCacheElement(key(i), i, 0, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer(data.getBytes()));
+        return element;
+    }
+
+    private static String chunk(char c) {
+        StringBuilder chunk = new StringBuilder(CHUNK_BYTES);
+        for (int i = 0; i < CHUNK_BYTES; i++) chunk.append(c);
+        return chunk.toString();
+    }
+
+    private static String text(LocalCacheElement element) {
+        byte[] data = new byte[element.getData().readableBytes()];
+        element.getData().getBytes(element.getData().readerIndex(), data);
+        return new String(data);
+    }
+
+    /**
+     * Check every key is found, one at a time and all together, with the value expected of it.
+     */
+    private static void assertAllFound(Cache<LocalCacheElement> cache, String[] expected) {
+        Key[] keys = new Key[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = key(i);
+            LocalCacheElement element = cache.get(keys[i])[0];
+            assertNotNull("key" + i, element);
+            assertEquals("key" + i, expected[i], text(element));
+            assertEquals("key" + i, i, element.getFlags());
+        }
+
+        LocalCacheElement[] elements = cache.get(keys);
+        for (int i = 0; i < KEYS; i++) {
+            assertNotNull("key" + i, elements[i]);
+            assertEquals("key" + i, expected[i], text(elements[i]));
+        }
+    }
+
+    @Before
+    public void setUp() {
+        cache = newCache();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cache.close();
+    }
+
+    @Test
+    public void testFoundAfterRelink() {
+        String[] expected = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            expected[i] = "value" + i;
+            cache.set(element(i, expected[i]));
+        }
+        assertAllFound(cache, expected);
+
+        // chunks bigger than the values they join, so the first of them at least can't go in the slack, and the
+        // entry is rewritten at the end of its bucket; the others in the bucket move down over it
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < KEYS; i += 2) {
+                String appended = chunk((char) ('a' + round));
+                assertEquals(Cache.StoreResponse.STORED, cache.append(element(i, appended)));
+                expected[i] = expected[i] + appended;
+            }
+            for (int i = 1; i < KEYS; i += 2) {
+                String prepended = chunk((char) ('n' + round));
+                assertEquals(Cache.StoreResponse.STORED, cache.prepend(element(i, prepended)));
+                expected[i] = prepended + expected[i];
+            }
+            assertAllFound(cache, expected);
+        }
+    }
+
+    @Test
+    public void testFoundAfterRestore() throws IOException {
+        String[] expected = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            expected[i] = "value" + i;
+            cache.set(element(i, expected[i]));
+            if (i % 3 == 0) {
+                String appended = chunk('x');
+                cache.append(element(i, appended));
+                expected[i] = expected[i] + appended;
+            }
+        }
+
+        File file = File.createTempFile("jmemcached", ".snapshot");
+        file.deleteOnExit();
+        cache.setSnapshotFile(file);
+        assertEquals(KEYS, cache.snapshot());
+
+        CacheImpl reopened = newCache();
+        try {
+            assertEquals(KEYS, reopened.restore(file));
+            assertAllFound(reopened, expected);
+        } finally {
+            reopened.close();
+        }
+    }
+}
@@ -7,7 +7,10 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 
 import static com.thimbleware.jmemcached.LocalCacheElement.Now;
 import static junit.framework.Assert.*;
@@ -21,6 +24,20 @@ public class CacheFIFOTest extends AbstractCacheTest {
         super(cacheType, blockSize, protocolMode);
     }
 
+    /**
+     * The storage types, less the arena: it evicts first in, first out within each segment, not across the whole
+     * cache, which is covered by {@link ArenaEvictionTest}
+     */
+    @Parameterized.Parameters
+    public static Collection blockSizeValues() {
+        List<Object[]> values = new ArrayList<Object[]>();
+        for (Object value : AbstractCacheTest.blockSizeValues()) {
+            Object[] parameters = (Object[]) value;
+            if (parameters[0] != CacheType.ARENA) values.add(parameters);
+        }
+        return values;
+    }
+
     @Test
     public void testExpire() {
         // max MAX_SIZE items in cache, so create fillSize items and then verify that only a MAX_SIZE are ever in the cache
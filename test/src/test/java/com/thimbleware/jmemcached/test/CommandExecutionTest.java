@@ -0,0 +1,104 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Commands executed off the I/O threads, on a pool of command threads or on a thread per connection.
+ */
+@RunWith(Parameterized.class)
+public class CommandExecutionTest {
+
+    private static final int COMMANDS = 500;
+
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private InetSocketAddress address;
+    private boolean threadPerConnection;
+
+    public CommandExecutionTest(boolean threadPerConnection) {
+        this.threadPerConnection = threadPerConnection;
+    }
+
+    @Parameterized.Parameters
+    public static Collection executionModes() {
+        return Arrays.asList(new Object[][] {
+                { false },
+                { true }
+        });
+    }
+
+    @Before
+    public void setUp() {
+        address = new InetSocketAddress("localhost", AvailablePortFinder.getNextAvailable());
+        ExecutionConfig execution = new ExecutionConfig.Builder()
+                .workerCount(1)
+                .threadNamePrefix("test")
+                .commandThreads(threadPerConnection ? 0 : 4)
+                .threadPerConnection(threadPerConnection)
+                .maxChannelMemorySize(4096)
+                .build();
+
+        daemon = new MemCacheDaemon<LocalCacheElement>(new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(
+                ConcurrentLinkedHashMap.EvictionPolicy.FIFO, 1000, AbstractCacheTest.MAX_BYTES)), execution);
+        daemon.setAddr(address);
+        daemon.start();
+    }
+
+    @After
+    public void tearDown() {
+        daemon.stop();
+    }
+
+    @Test
+    public void testPipelinedCommandsStayInOrder() throws IOException {
+        Socket socket = new Socket(address.getHostName(), address.getPort());
+        try {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+
+            // each get has to see the set before it, which it only does if the commands run in order
+            StringBuilder commands = new StringBuilder();
+            for (int i = 0; i < COMMANDS; i++) {
+                commands.append("set key 0 0 ").append(String.valueOf(i).length()).append("\r\n").append(i).append("\r\n");
+                commands.append("get key\r\n");
+            }
+            commands.append("stats\r\n");
+            out.write(commands.toString().getBytes("US-ASCII"));
+            out.flush();
+
+            for (int i = 0; i < COMMANDS; i++) {
+                assertEquals("STORED", in.readLine());
+                assertEquals("VALUE key 0 " + String.valueOf(i).length(), in.readLine());
+                assertEquals(String.valueOf(i), in.readLine());
+                assertEquals("END", in.readLine());
+            }
+
+            boolean counted = false;
+            String line;
+            while ((line = in.readLine()) != null && !line.equals("END")) {
+                if (line.startsWith(threadPerConnection ? "STAT thread_test-connection-" : "STAT thread_test-command-"))
+                    counted = true;
+            }
+            assertTrue("commands counted against the command threads", counted);
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.protocol.WorkerStats;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ */
+public class ExecutionConfigTest {
+
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private InetSocketAddress address;
+
+    @Before
+    public void setUp() {
+        address = new InetSocketAddress("localhost", AvailablePortFinder.getNextAvailable());
+        ExecutionConfig execution = new ExecutionConfig.Builder()
+                .workerCount(2)
+                .threadNamePrefix("test")
+                .threadPriority(Thread.MAX_PRIORITY)
+                .build();
+
+        daemon = new MemCacheDaemon<LocalCacheElement>(new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(
+                ConcurrentLinkedHashMap.EvictionPolicy.FIFO, 1000, AbstractCacheTest.MAX_BYTES)), execution);
+        daemon.setAddr(address);
+        daemon.start();
+    }
+
+    @After
+    public void tearDown() {
+        daemon.stop();
+    }
+
+    @Test
+    public void testWorkerStats() throws IOException {
+        Socket socket = new Socket(address.getHostName(), address.getPort());
+        try {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+
+            out.write("version\r\nstats\r\n".getBytes("US-ASCII"));
+            out.flush();
+
+            List<String> stats = new ArrayList<String>();
+            String line;
+            while ((line = in.readLine()) != null && !line.equals("END")) {
+                stats.add(line);
+            }
+
+            assertTrue("worker count reported", stats.contains("STAT threads 2"));
+            boolean counted = false;
+            for (String stat : stats) {
+                if (stat.startsWith("STAT thread_test-worker-") && stat.endsWith("_commands 2")) counted = true;
+            }
+            assertTrue("commands counted against the named worker thread: " + stats, counted);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testExitedThreadsFolded() throws InterruptedException {
+        final WorkerStats workerStats = new WorkerStats(1);
+        for (int i = 0; i < 50; i++) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    workerStats.commandExecuted();
+                    workerStats.commandExecuted();
+                }
+            }, "short-lived-" + i);
+            thread.start();
+            thread.join();
+        }
+        workerStats.commandExecuted();
+
+        Map<String, Set<String>> stats = new HashMap<String, Set<String>>();
+        workerStats.addTo(stats);
+
+        // only the live thread is listed; the others are a total
+        assertEquals("100", stats.get("exited_thread_commands").iterator().next());
+        assertEquals("1", stats.get("thread_" + Thread.currentThread().getName() + "_commands").iterator().next());
+        for (String stat : stats.keySet()) {
+            assertFalse(stat, stat.startsWith("thread_short-lived-"));
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.util.BufferUtils;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Key equality and hashing, around the lengths where the eight-bytes-at-a-time comparison hands over to the byte loop.
+ */
+public class KeyTest {
+
+    private static final int[] LENGTHS = { 0, 1, 7, 8, 9, 15, 16, 17, 250 };
+
+    private static byte[] bytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return a key over the given bytes, placed at an offset in a larger buffer whose other bytes differ
+     */
+    private static Key keyAt(byte[] bytes, int offset, boolean direct) {
+        ChannelBuffer buffer = direct ? ChannelBuffers.directBuffer(offset + bytes.length + 5) : ChannelBuffers.buffer(offset + bytes.length + 5);
+        for (int i = 0; i < buffer.capacity(); i++) buffer.setByte(i, 0x5a);
+        buffer.setBytes(offset, bytes);
+        return new Key(buffer.slice(offset, bytes.length));
+    }
+
+    @Test
+    public void testEqualBytesAreEqualKeys() {
+        for (int length : LENGTHS) {
+            byte[] bytes = bytes(length, length);
+            Key key = new Key(ChannelBuffers.wrappedBuffer(bytes.clone()));
+
+            for (int offset : new int[] { 0, 1, 3, 8, 13 }) {
+                Key other = keyAt(bytes, offset, offset % 2 == 1);
+                assertEquals("length " + length + " at " + offset, key, other);
+                assertEquals("length " + length + " at " + offset, other, key);
+                assertEquals("length " + length + " at " + offset, key.hashCode(), other.hashCode());
+                assertEquals(length, other.length());
+            }
+        }
+    }
+
+    @Test
+    public void testAnyDifferingByteMakesKeysUnequal() {
+        for (int length : LENGTHS) {
+            byte[] bytes = bytes(length, length);
+            Key key = keyAt(bytes, 3, false);
+
+            // every position, which covers the head, the last long and each byte of the tail past it
+            for (int i = 0; i < length; i++) {
+                byte[] changed = bytes.clone();
+                changed[i] ^= 0x01;
+                Key other = keyAt(changed, 5, true);
+                assertFalse("length " + length + " differing at " + i, key.equals(other));
+                assertFalse("length " + length + " differing at " + i, other.equals(key));
+            }
+        }
+    }
+
+    @Test
+    public void testPrefixIsNotEqual() {
+        byte[] bytes = bytes(250, 250);
+        for (int length : LENGTHS) {
+            if (length == bytes.length) continue;
+            byte[] prefix = new byte[length];
+            System.arraycopy(bytes, 0, prefix, 0, length);
+
+            assertFalse("length " + length, new Key(ChannelBuffers.wrappedBuffer(bytes)).equals(new Key(ChannelBuffers.wrappedBuffer(prefix))));
+        }
+    }
+
+    @Test
+    public void testBufferEqualsAtOffsets() {
+        for (int length : LENGTHS) {
+            byte[] bytes = bytes(length, length);
+            ChannelBuffer a = ChannelBuffers.buffer(length + 7);
+            a.writeZero(7);
+            a.writeBytes(bytes);
+            ChannelBuffer b = ChannelBuffers.directBuffer(length + 2);
+            b.writeZero(2);
+            b.writeBytes(bytes);
+            b.readerIndex(1);
+
+            assertTrue("length " + length, BufferUtils.equals(a, 7, b, 2, length));
+            if (length > 0) {
+                b.setByte(b.capacity() - 1, b.getByte(b.capacity() - 1) ^ 0x80);
+                assertFalse("length " + length, BufferUtils.equals(a, 7, b, 2, length));
+            }
+
+            // the indices of both buffers are left alone
+            assertEquals(0, a.readerIndex());
+            assertEquals(length + 7, a.writerIndex());
+            assertEquals(1, b.readerIndex());
+            assertEquals(length + 2, b.writerIndex());
+        }
+    }
+
+    @Test
+    public void testComparingLeavesKeyBytesAlone() {
+        Key key = new Key(ChannelBuffers.wrappedBuffer(bytes(9, 9)));
+        Key other = keyAt(bytes(9, 9), 4, false);
+        assertTrue(key.equals(other));
+
+        assertEquals(0, key.bytes.readerIndex());
+        assertEquals(9, key.bytes.writerIndex());
+        assertEquals(0, other.bytes.readerIndex());
+        assertEquals(9, other.bytes.writerIndex());
+    }
+}
@@ -0,0 +1,110 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Reads suspended from a client which doesn't read its responses, while the others carry on.
+ */
+public class OutboundThrottleTest {
+
+    private static final int VALUE_BYTES = 200 * 1000;
+    private static final int GETS = 100;
+
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private InetSocketAddress address;
+
+    @Before
+    public void setUp() {
+        address = new InetSocketAddress("localhost", AvailablePortFinder.getNextAvailable());
+        ExecutionConfig execution = new ExecutionConfig.Builder()
+                .outputHighWaterMark(64 * 1024)
+                .outputLowWaterMark(16 * 1024)
+                .build();
+
+        daemon = new MemCacheDaemon<LocalCacheElement>(new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(
+                ConcurrentLinkedHashMap.EvictionPolicy.FIFO, 1000, AbstractCacheTest.MAX_BYTES)), execution);
+        daemon.setAddr(address);
+        daemon.start();
+    }
+
+    @After
+    public void tearDown() {
+        daemon.stop();
+    }
+
+    private static Map<String, Long> stats(Socket socket) throws IOException {
+        socket.getOutputStream().write("stats\r\n".getBytes("US-ASCII"));
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+
+        Map<String, Long> stats = new HashMap<String, Long>();
+        String line;
+        while ((line = in.readLine()) != null && !line.equals("END")) {
+            String[] stat = line.split(" ");
+            if (stat[1].equals("outbound_bytes") || stat[1].equals("throttled_channels") || stat[1].equals("total_throttles"))
+                stats.put(stat[1], Long.valueOf(stat[2]));
+        }
+        return stats;
+    }
+
+    @Test
+    public void testSlowReaderIsThrottled() throws Exception {
+        StringBuilder value = new StringBuilder(VALUE_BYTES);
+        for (int i = 0; i < VALUE_BYTES; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+
+        Socket slow = new Socket();
+        slow.setReceiveBufferSize(4096);
+        slow.connect(address);
+        Socket other = new Socket(address.getHostName(), address.getPort());
+        try {
+            OutputStream out = slow.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(slow.getInputStream(), "US-ASCII"));
+            out.write(("set big 0 0 " + VALUE_BYTES + "\r\n" + value + "\r\n").getBytes("US-ASCII"));
+            assertEquals("STORED", in.readLine());
+
+            // gets arriving a few at a time, none of whose responses are read
+            for (int i = 0; i < GETS; i++) {
+                out.write("get big\r\n".getBytes("US-ASCII"));
+                Thread.sleep(10);
+            }
+
+            // the slow client's output has stopped growing well short of everything it asked for, and the others
+            // are still answered
+            Map<String, Long> stats = stats(other);
+            assertEquals(1L, (long) stats.get("throttled_channels"));
+            assertTrue(stats.toString(), stats.get("total_throttles") >= 1);
+            assertTrue(stats.toString(), stats.get("outbound_bytes") < (long) GETS * VALUE_BYTES / 4);
+
+            // once it reads, it gets every response
+            for (int i = 0; i < GETS; i++) {
+                assertEquals("VALUE big 0 " + VALUE_BYTES, in.readLine());
+                assertEquals(VALUE_BYTES, in.readLine().length());
+                assertEquals("END", in.readLine());
+            }
+
+            stats = stats(other);
+            assertEquals(0L, (long) stats.get("throttled_channels"));
+            assertEquals(0L, (long) stats.get("outbound_bytes"));
+        } finally {
+            slow.close();
+            other.close();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ */
+@RunWith(Parameterized.class)
+public class SnapshotTest extends AbstractCacheTest {
+
+    public SnapshotTest(CacheType cacheType, int blockSize, ProtocolMode protocolMode) {
+        super(cacheType, blockSize, protocolMode);
+    }
+
+    @Test
+    public void testSnapshotRestore() throws IOException {
+        File file = File.createTempFile("jmemcached", ".snapshot");
+        file.deleteOnExit();
+
+        for (int i = 0; i < 500; i++) {
+            LocalCacheElement element = new LocalCacheElement(new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes())), i, 0, 0L);
+            element.setData(ChannelBuffers.wrappedBuffer(("value" + i).getBytes()));
+            cache.set(element);
+        }
+        Key casKey = new Key(ChannelBuffers.wrappedBuffer("key7".getBytes()));
+        long cas = cache.get(casKey)[0].getCasUnique();
+
+        CacheImpl cacheImpl = (CacheImpl) cache;
+        cacheImpl.setSnapshotFile(file);
+        assertEquals("all items written", 500, cache.snapshot());
+
+        cache.flush_all();
+        assertNull("flushed", cache.get(casKey)[0]);
+
+        assertEquals("all items loaded", 500, cacheImpl.restore(file));
+        assertEquals("cache has all items", 500, cache.getCurrentItems());
+        for (int i = 0; i < 500; i++) {
+            LocalCacheElement result = cache.get(new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes())))[0];
+            assertNotNull("got result", result);
+            assertEquals("flags match", i, result.getFlags());
+            assertEquals("data matches", ChannelBuffers.wrappedBuffer(("value" + i).getBytes()), result.getData());
+        }
+        assertEquals("cas unique kept", cas, cache.get(casKey)[0].getCasUnique());
+
+        // new cas uniques must not collide with restored ones
+        LocalCacheElement element = new LocalCacheElement(new Key(ChannelBuffers.wrappedBuffer("new".getBytes())), 0, 0, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer("value".getBytes()));
+        cache.set(element);
+        assertEquals("fresh cas unique", true, element.getCasUnique() > cas);
+    }
+
+    @Test
+    public void testConcurrentSnapshots() throws Exception {
+        File file = File.createTempFile("jmemcached", ".snapshot");
+        file.deleteOnExit();
+
+        for (int i = 0; i < 500; i++) {
+            LocalCacheElement element = new LocalCacheElement(new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes())), i, 0, 0L);
+            element.setData(ChannelBuffers.wrappedBuffer(("value" + i).getBytes()));
+            cache.set(element);
+        }
+        CacheImpl cacheImpl = (CacheImpl) cache;
+        cacheImpl.setSnapshotFile(file);
+
+        // requests made while a dump is running join it rather than writing the same file alongside it
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger written = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            cache.snapshot(new Cache.SnapshotCallback() {
+                public void snapshotDone(int items, IOException failure) {
+                    if (failure != null || items != 500) failures.incrementAndGet();
+                    written.addAndGet(items);
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue("all answered", done.await(30, TimeUnit.SECONDS));
+        assertEquals("none failed", 0, failures.get());
+        assertEquals("every caller told the items written", 2500, written.get());
+
+        cache.flush_all();
+        assertEquals("all items loaded", 500, cacheImpl.restore(file));
+        assertTrue("no temporary file left", !new File(file.getPath() + ".tmp").exists());
+    }
+}
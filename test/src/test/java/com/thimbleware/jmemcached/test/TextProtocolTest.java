@@ -0,0 +1,298 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * The text protocol decoder, driven over a raw socket so that the exact bytes on the wire are under the test's control.
+ */
+public class TextProtocolTest {
+
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private Socket socket;
+    private OutputStream out;
+    private BufferedReader in;
+
+    @Before
+    public void setUp() throws IOException {
+        InetSocketAddress address = new InetSocketAddress("localhost", AvailablePortFinder.getNextAvailable());
+        daemon = new MemCacheDaemon<LocalCacheElement>(new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(
+                ConcurrentLinkedHashMap.EvictionPolicy.FIFO, 1000, AbstractCacheTest.MAX_BYTES)));
+        daemon.setAddr(address);
+        daemon.start();
+
+        socket = new Socket(address.getHostName(), address.getPort());
+        out = socket.getOutputStream();
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        socket.close();
+        daemon.stop();
+    }
+
+    private void send(String commands) throws IOException {
+        out.write(commands.getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    @Test
+    public void testLineSplitAcrossPackets() throws IOException, InterruptedException {
+        send("se");
+        Thread.sleep(50);
+        send("t key 5 0 3\r");
+        Thread.sleep(50);
+        send("\nabc\r\nget key\r\n");
+
+        assertEquals("STORED", in.readLine());
+        assertEquals("VALUE key 5 3", in.readLine());
+        assertEquals("abc", in.readLine());
+        assertEquals("END", in.readLine());
+    }
+
+    @Test
+    public void testExtraSpacesAndBareNewline() throws IOException {
+        send("set  key   0 0 1\r\nx\r\nget   key  other\n");
+
+        assertEquals("STORED", in.readLine());
+        assertEquals("VALUE key 0 1", in.readLine());
+        assertEquals("x", in.readLine());
+        assertEquals("END", in.readLine());
+    }
+
+    @Test
+    public void testNoreply() throws IOException {
+        send("set key 0 0 1 noreply\r\n1\r\nincr key 41 noreply\r\nget key\r\ndelete key noreply\r\nget key\r\n");
+
+        assertEquals("VALUE key 0 2", in.readLine());
+        assertEquals("42", in.readLine());
+        assertEquals("END", in.readLine());
+        assertEquals("END", in.readLine());
+    }
+
+    @Test
+    public void testCas() throws IOException {
+        send("set key 0 0 1\r\na\r\ngets key\r\n");
+
+        assertEquals("STORED", in.readLine());
+        String value = in.readLine();
+        long cas = Long.parseLong(value.substring(value.lastIndexOf(' ') + 1));
+        assertEquals("a", in.readLine());
+        assertEquals("END", in.readLine());
+
+        send("cas key 0 0 1 " + (cas + 1) + "\r\nb\r\ncas key 0 0 1 " + cas + "\r\nc\r\n");
+        assertEquals("EXISTS", in.readLine());
+        assertEquals("STORED", in.readLine());
+    }
+
+    @Test
+    public void testPipelinedResponsesPastTheFlushThreshold() throws IOException {
+        // enough responses to one read that they are written in several batches, which have to stay in order
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 10000; i++) value.append((char) ('a' + i % 26));
+
+        StringBuilder commands = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            commands.append("set key").append(i).append(" 0 0 ").append(value.length()).append(" noreply\r\n").append(value).append("\r\n");
+        }
+        for (int i = 0; i < 20; i++) {
+            commands.append("get key").append(i).append("\r\n");
+        }
+        send(commands.toString());
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals("VALUE key" + i + " 0 " + value.length(), in.readLine());
+            assertEquals(value.toString(), in.readLine());
+            assertEquals("END", in.readLine());
+        }
+    }
+
+    @Test
+    public void testPipelinedGetThenOverwrite() throws IOException {
+        // the response to the get is held back while the commands after it in the same read free the value's blocks
+        // and fill them with another value of the same size
+        InetSocketAddress address = new InetSocketAddress("localhost", AvailablePortFinder.getNextAvailable());
+        MemCacheDaemon<LocalCacheElement> blockDaemon = new MemCacheDaemon<LocalCacheElement>(new CacheImpl(new BlockStorageCacheStorage(
+                1, AbstractCacheTest.CEILING_SIZE, 4, AbstractCacheTest.MAX_BYTES, AbstractCacheTest.MAX_SIZE, new ByteBufferBlockStore.ByteBufferBlockStoreFactory())));
+        blockDaemon.setAddr(address);
+        blockDaemon.start();
+
+        Socket blockSocket = new Socket(address.getHostName(), address.getPort());
+        try {
+            BufferedReader blockIn = new BufferedReader(new InputStreamReader(blockSocket.getInputStream(), "US-ASCII"));
+            blockSocket.getOutputStream().write(("set key 0 0 8\r\naaaaaaaa\r\nget key\r\n"
+                    + "set key 0 0 8 noreply\r\nbbbbbbbb\r\ndelete key noreply\r\n"
+                    + "set other 0 0 8 noreply\r\ncccccccc\r\nget key\r\n").getBytes("US-ASCII"));
+
+            assertEquals("STORED", blockIn.readLine());
+            assertEquals("VALUE key 0 8", blockIn.readLine());
+            assertEquals("aaaaaaaa", blockIn.readLine());
+            assertEquals("END", blockIn.readLine());
+            assertEquals("END", blockIn.readLine());
+        } finally {
+            blockSocket.close();
+            blockDaemon.stop();
+        }
+    }
+
+    @Test
+    public void testMetaCommands() throws IOException {
+        send("ms key 3 F5 T0 c Oabc\r\nfoo\r\nmg key v f s k t\r\nmg missing v\r\n");
+
+        String stored = in.readLine();
+        assertTrue(stored, stored.startsWith("HD c"));
+        assertTrue(stored, stored.endsWith(" Oabc"));
+        long cas = Long.parseLong(stored.substring(4, stored.indexOf(' ', 4)));
+        assertEquals("VA 3 f5 s3 kkey t-1", in.readLine());
+        assertEquals("foo", in.readLine());
+        assertEquals("EN", in.readLine());
+
+        // a stale cas is refused, and the add mode only adds
+        send("ms key 3 C" + (cas + 1) + "\r\nbar\r\nms key 3 ME\r\nbar\r\nms key 3 C" + cas + "\r\nbar\r\nmg key v c\r\n");
+        assertEquals("EX", in.readLine());
+        assertEquals("NS", in.readLine());
+        assertEquals("HD", in.readLine());
+        String value = in.readLine();
+        assertTrue(value, value.startsWith("VA 3 c"));
+        assertEquals("bar", in.readLine());
+
+        send("ms counter 2\r\n10\r\nma counter D5 v\r\nma counter MD\r\nmg counter v\r\nma missing\r\n");
+        assertEquals("HD", in.readLine());
+        assertEquals("VA 2", in.readLine());
+        assertEquals("15", in.readLine());
+        assertEquals("HD", in.readLine());
+        assertEquals("VA 2", in.readLine());
+        assertEquals("14", in.readLine());
+        assertEquals("NF", in.readLine());
+
+        send("md key O1\r\nmd key\r\nmg key\r\n");
+        assertEquals("HD O1", in.readLine());
+        assertEquals("NF", in.readLine());
+        assertEquals("EN", in.readLine());
+    }
+
+    @Test
+    public void testMetaQuietMode() throws IOException {
+        // quiet commands only speak up for the unusual outcome; mn marks the end of the batch
+        send("ms a 1 q\r\n1\r\nms b 1 q ME\r\n2\r\nms a 1 q ME O7\r\n3\r\nmg a v q\r\nmg b q\r\nmd c q\r\nmd a q\r\nmn\r\n");
+
+        assertEquals("NS O7", in.readLine());
+        assertEquals("VA 1", in.readLine());
+        assertEquals("1", in.readLine());
+        assertEquals("HD", in.readLine());
+        assertEquals("NF", in.readLine());
+        assertEquals("MN", in.readLine());
+    }
+
+    @Test
+    public void testMetaTouch() throws IOException {
+        send("ms key 1\r\nx\r\nmg key t\r\nmg key T100 t\r\nmg key X\r\n");
+
+        assertEquals("HD", in.readLine());
+        assertEquals("HD t-1", in.readLine());
+        String touched = in.readLine();
+        assertTrue(touched, touched.equals("HD t100") || touched.equals("HD t99"));
+        assertEquals("CLIENT_ERROR", in.readLine());
+
+        // a touching get is counted as a get, hit or miss
+        send("mg missing T100\r\nmn\r\n");
+        assertEquals("EN", in.readLine());
+        assertEquals("MN", in.readLine());
+        assertEquals(2, daemon.getCache().getGetHits());
+        assertEquals(1, daemon.getCache().getGetMisses());
+    }
+
+    @Test
+    public void testTouchAndGat() throws IOException {
+        send("set key 5 0 1\r\nx\r\ntouch key 100\r\ntouch missing 100\r\nmg key t\r\n");
+        assertEquals("STORED", in.readLine());
+        assertEquals("TOUCHED", in.readLine());
+        assertEquals("NOT_FOUND", in.readLine());
+        String touched = in.readLine();
+        assertTrue(touched, touched.equals("HD t100") || touched.equals("HD t99"));
+
+        send("touch key 100 noreply\r\ngat 200 missing key\r\nmg key t\r\n");
+        assertEquals("VALUE key 5 1", in.readLine());
+        assertEquals("x", in.readLine());
+        assertEquals("END", in.readLine());
+        touched = in.readLine();
+        assertTrue(touched, touched.equals("HD t200") || touched.equals("HD t199"));
+
+        // gats returns the cas unique, which a touch leaves alone
+        send("gets key\r\n");
+        String gets = in.readLine();
+        assertTrue(gets, gets.startsWith("VALUE key 5 1 "));
+        in.readLine();
+        assertEquals("END", in.readLine());
+        send("gats 300 key\r\n");
+        assertEquals(gets, in.readLine());
+        assertEquals("x", in.readLine());
+        assertEquals("END", in.readLine());
+
+        send("touch key\r\n");
+        assertEquals("CLIENT_ERROR", in.readLine());
+
+        send("gat key\r\n");
+        assertEquals("CLIENT_ERROR", in.readLine());
+    }
+
+    @Test
+    public void testMetaLeases() throws IOException {
+        // of the clients missing at once, only the first is told to recompute
+        send("mg key v N30\r\nmg key v N30\r\nmg key v\r\n");
+        assertEquals("VA 0 W", in.readLine());
+        assertEquals("", in.readLine());
+        assertEquals("VA 0 Z", in.readLine());
+        assertEquals("", in.readLine());
+        assertEquals("EN", in.readLine());
+
+        // storing the value releases the lease
+        send("ms key 3\r\none\r\nmg key v N30\r\n");
+        assertEquals("HD", in.readLine());
+        assertEquals("VA 3", in.readLine());
+        assertEquals("one", in.readLine());
+
+        // an invalidated item is served stale while its replacement is computed, but is a miss to plain gets
+        send("md key I\r\nmg key v N30\r\nmg key v N30\r\nmg key v\r\nget key\r\n");
+        assertEquals("HD", in.readLine());
+        assertEquals("VA 3 W X", in.readLine());
+        assertEquals("one", in.readLine());
+        assertEquals("VA 3 Z X", in.readLine());
+        assertEquals("one", in.readLine());
+        assertEquals("EN", in.readLine());
+        assertEquals("END", in.readLine());
+
+        send("ms key 3\r\ntwo\r\nmg key v N30\r\n");
+        assertEquals("HD", in.readLine());
+        assertEquals("VA 3", in.readLine());
+        assertEquals("two", in.readLine());
+    }
+
+    @Test
+    public void testErrors() throws IOException {
+        send("bogus key\r\n");
+        assertEquals("CLIENT_ERROR", in.readLine());
+
+        send("incr key\r\n");
+        assertEquals("CLIENT_ERROR", in.readLine());
+
+        send("version\r\n");
+        assertEquals("VERSION " + MemCacheDaemon.memcachedVersion, in.readLine());
+    }
+}
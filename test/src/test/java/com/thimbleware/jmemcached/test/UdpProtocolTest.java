@@ -0,0 +1,131 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * The text protocol over UDP, driven with raw datagrams so that the frame headers are under the test's control.
+ */
+public class UdpProtocolTest {
+
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private InetSocketAddress udpAddress;
+    private DatagramSocket socket;
+
+    @Before
+    public void setUp() throws IOException {
+        InetSocketAddress address = new InetSocketAddress("localhost", AvailablePortFinder.getNextAvailable());
+        udpAddress = new InetSocketAddress("localhost", AvailablePortFinder.getNextAvailable(address.getPort() + 1));
+        daemon = new MemCacheDaemon<LocalCacheElement>(new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(
+                ConcurrentLinkedHashMap.EvictionPolicy.FIFO, 1000, AbstractCacheTest.MAX_BYTES)));
+        daemon.setAddr(address);
+        daemon.setUdpAddr(udpAddress);
+        daemon.start();
+
+        socket = new DatagramSocket();
+        socket.setSoTimeout(5000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        socket.close();
+        daemon.stop();
+    }
+
+    private void send(int requestId, int datagrams, String commands) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream request = new DataOutputStream(bytes);
+        request.writeShort(requestId);
+        request.writeShort(0);
+        request.writeShort(datagrams);
+        request.writeShort(0);
+        request.write(commands.getBytes("US-ASCII"));
+        socket.send(new DatagramPacket(bytes.toByteArray(), bytes.size(), udpAddress));
+    }
+
+    /**
+     * Receive the datagrams of a response and put it back together, checking their headers along the way
+     */
+    private String receive(int requestId) throws IOException {
+        String[] parts = null;
+        int received = 0;
+        do {
+            DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+            socket.receive(packet);
+            assertTrue(packet.getLength() <= 1400);
+
+            DataInputStream datagram = new DataInputStream(new ByteArrayInputStream(packet.getData(), 0, packet.getLength()));
+            assertEquals(requestId, datagram.readUnsignedShort());
+            int sequence = datagram.readUnsignedShort();
+            int datagrams = datagram.readUnsignedShort();
+            assertEquals(0, datagram.readUnsignedShort());
+
+            if (parts == null) parts = new String[datagrams];
+            assertEquals(parts.length, datagrams);
+            parts[sequence] = new String(packet.getData(), 8, packet.getLength() - 8, "US-ASCII");
+            received++;
+        } while (received < parts.length);
+
+        StringBuilder response = new StringBuilder();
+        for (String part : parts) {
+            response.append(part);
+        }
+        return response.toString();
+    }
+
+    @Test
+    public void testSetAndGet() throws IOException {
+        send(1, 1, "set key 0 0 5\r\nvalue\r\n");
+        assertEquals("STORED\r\n", receive(1));
+
+        send(2, 1, "get key missing\r\n");
+        assertEquals("VALUE key 0 5\r\nvalue\r\nEND\r\n", receive(2));
+
+        // a noreply command has nothing to answer with, so the next response is the version's
+        send(3, 1, "set other 0 0 1 noreply\r\nx\r\n");
+        send(4, 1, "version\r\n");
+        assertEquals("VERSION " + MemCacheDaemon.memcachedVersion + "\r\n", receive(4));
+    }
+
+    @Test
+    public void testResponseSpanningDatagrams() throws IOException {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        send(7, 1, "set big 0 0 5000\r\n" + value + "\r\n");
+        assertEquals("STORED\r\n", receive(7));
+
+        send(8, 1, "get big\r\n");
+        assertEquals("VALUE big 0 5000\r\n" + value + "\r\nEND\r\n", receive(8));
+    }
+
+    @Test
+    public void testErrors() throws IOException {
+        send(1, 2, "get key\r\n");
+        assertEquals("SERVER_ERROR multi-packet request not supported\r\n", receive(1));
+
+        send(2, 1, "bogus\r\n");
+        assertEquals("CLIENT_ERROR\r\n", receive(2));
+
+        // the channel is shared by every client, so quitting mustn't close it
+        send(3, 1, "quit\r\n");
+        send(4, 1, "version\r\n");
+        assertEquals("VERSION " + MemCacheDaemon.memcachedVersion + "\r\n", receive(4));
+    }
+}
@@ -0,0 +1,242 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Both protocols served on a Unix domain socket, alongside TCP. Skipped on JDKs without Unix domain sockets.
+ */
+public class UnixSocketTest {
+
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private File path;
+    private SocketChannel socket;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue(supported());
+
+        path = File.createTempFile("jmemcached", ".sock");
+        path.delete();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (socket != null) socket.close();
+        if (daemon != null) daemon.stop();
+        if (path != null) assertFalse(path.exists());
+    }
+
+    private static boolean supported() {
+        try {
+            Class.forName("java.net.UnixDomainSocketAddress");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private void start(boolean binary) throws Exception {
+        daemon = newDaemon();
+        daemon.setBinary(binary);
+        daemon.start();
+        socket = connect();
+    }
+
+    private MemCacheDaemon<LocalCacheElement> newDaemon() {
+        MemCacheDaemon<LocalCacheElement> daemon = new MemCacheDaemon<LocalCacheElement>(new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(
+                ConcurrentLinkedHashMap.EvictionPolicy.FIFO, 1000, AbstractCacheTest.MAX_BYTES)));
+        daemon.setAddr(new InetSocketAddress("localhost", AvailablePortFinder.getNextAvailable()));
+        daemon.setUnixSocket(path);
+        return daemon;
+    }
+
+    private Object open(Class<?> channelClass) throws Exception {
+        Class<?> protocolFamily = Class.forName("java.net.ProtocolFamily");
+        Object unix = Class.forName("java.net.StandardProtocolFamily").getField("UNIX").get(null);
+        return channelClass.getMethod("open", protocolFamily).invoke(null, unix);
+    }
+
+    private SocketAddress address() throws Exception {
+        return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path.getPath());
+    }
+
+    private SocketChannel connect() throws Exception {
+        SocketChannel socket = (SocketChannel) open(SocketChannel.class);
+        socket.connect(address());
+        return socket;
+    }
+
+    /**
+     * Send a version command and return the response, or null if the connection is closed instead
+     */
+    private static String version(SocketChannel socket) throws IOException {
+        socket.write(ByteBuffer.wrap("version\r\n".getBytes("US-ASCII")));
+        return new BufferedReader(new InputStreamReader(Channels.newInputStream(socket), "US-ASCII")).readLine();
+    }
+
+    @Test
+    public void testStaleSocketReplaced() throws Exception {
+        // a socket file left behind by a listener which has gone
+        ServerSocketChannel stale = (ServerSocketChannel) open(ServerSocketChannel.class);
+        ServerSocketChannel.class.getMethod("bind", SocketAddress.class).invoke(stale, address());
+        stale.close();
+        assertTrue(path.exists());
+
+        start(false);
+        assertTrue(version(socket).startsWith("VERSION "));
+    }
+
+    @Test
+    public void testFileNotReplaced() throws Exception {
+        assertTrue(path.createNewFile());
+        daemon = newDaemon();
+        try {
+            daemon.start();
+            fail("started over a regular file");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertTrue(path.isFile());
+        assertTrue(path.delete());
+    }
+
+    @Test
+    public void testLiveSocketNotReplaced() throws Exception {
+        start(false);
+
+        MemCacheDaemon<LocalCacheElement> other = newDaemon();
+        try {
+            other.start();
+            fail("started over a socket in use");
+        } catch (RuntimeException e) {
+            // expected
+        } finally {
+            other.stop();
+        }
+
+        // the first listener is still there, and still reachable
+        assertTrue(version(socket).startsWith("VERSION "));
+        SocketChannel again = connect();
+        try {
+            assertTrue(version(again).startsWith("VERSION "));
+        } finally {
+            again.close();
+        }
+    }
+
+    @Test
+    public void testConnectionLimit() throws Exception {
+        daemon = newDaemon();
+        daemon.setUnixSocketMaxConnections(1);
+        daemon.start();
+        socket = connect();
+        assertTrue(version(socket).startsWith("VERSION "));
+
+        // one too many is closed straight away
+        SocketChannel extra = connect();
+        try {
+            assertEquals(null, version(extra));
+        } catch (IOException e) {
+            // or reset
+        } finally {
+            extra.close();
+        }
+
+        // and once the first has gone, there is room again
+        socket.close();
+        socket = null;
+        for (int attempt = 0; ; attempt++) {
+            SocketChannel next = connect();
+            try {
+                String version = version(next);
+                if (version != null) {
+                    assertTrue(version.startsWith("VERSION "));
+                    break;
+                }
+            } catch (IOException e) {
+                // not released yet
+            } finally {
+                next.close();
+            }
+            if (attempt == 50) fail("connection slot never released");
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void testTextProtocol() throws Exception {
+        start(false);
+        OutputStream out = Channels.newOutputStream(socket);
+        BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(socket), "US-ASCII"));
+
+        out.write("set key 0 0 5\r\nvalue\r\nget key\r\n".getBytes("US-ASCII"));
+        assertEquals("STORED", in.readLine());
+        assertEquals("VALUE key 0 5", in.readLine());
+        assertEquals("value", in.readLine());
+        assertEquals("END", in.readLine());
+
+        // the same cache is behind every listener
+        assertEquals(1, daemon.getCache().getCurrentItems());
+    }
+
+    @Test
+    public void testBinaryProtocol() throws Exception {
+        start(true);
+        OutputStream out = Channels.newOutputStream(socket);
+        DataInputStream in = new DataInputStream(Channels.newInputStream(socket));
+
+        // a set of "key" to "value", with empty extras, then a get of it
+        DataOutputStream requests = new DataOutputStream(out);
+        requests.write(new byte[] { (byte) 0x80, 0x01, 0, 3, 8, 0, 0, 0 });
+        requests.writeInt(8 + 3 + 5);
+        requests.write(new byte[12 + 8]);
+        requests.write("keyvalue".getBytes("US-ASCII"));
+        requests.write(new byte[] { (byte) 0x80, 0x00, 0, 3, 0, 0, 0, 0 });
+        requests.writeInt(3);
+        requests.write(new byte[12]);
+        requests.write("key".getBytes("US-ASCII"));
+
+        assertEquals("", response(in));
+        assertEquals("value", response(in));
+    }
+
+    /**
+     * Read a binary response which should have succeeded, and return its value
+     */
+    private static String response(DataInputStream in) throws IOException {
+        assertEquals(0x81, in.readUnsignedByte());
+        in.skipBytes(3);
+        int extrasLength = in.readUnsignedByte();
+        in.skipBytes(1);
+        assertEquals(0, in.readUnsignedShort());
+        int bodyLength = in.readInt();
+        in.skipBytes(12 + extrasLength);
+        byte[] value = new byte[bodyLength - extrasLength];
+        in.readFully(value);
+        return new String(value, "US-ASCII");
+    }
+}
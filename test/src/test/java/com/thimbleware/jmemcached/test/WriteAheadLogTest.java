@@ -0,0 +1,147 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.persistence.LoggedCacheStorage;
+import com.thimbleware.jmemcached.persistence.WriteAheadLog;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+/**
+ */
+public class WriteAheadLogTest {
+
+    private File file;
+
+    @Before
+    public void setup() throws IOException {
+        file = File.createTempFile("jmemcached", ".wal");
+        file.delete();
+    }
+
+    @After
+    public void teardown() {
+        file.delete();
+    }
+
+    private CacheImpl open(WriteAheadLog.SyncPolicy syncPolicy) throws IOException {
+        CacheStorage<Key, LocalCacheElement> storage = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.FIFO, 1000, AbstractCacheTest.MAX_BYTES);
+        WriteAheadLog log = new WriteAheadLog(file, syncPolicy, 10);
+        CacheImpl cache = new CacheImpl(new LoggedCacheStorage(storage, log));
+        cache.recover(log);
+        return cache;
+    }
+
+    private static LocalCacheElement element(String key, String value) {
+        LocalCacheElement element = new LocalCacheElement(new Key(ChannelBuffers.wrappedBuffer(key.getBytes())), 0, 0, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer(value.getBytes()));
+        return element;
+    }
+
+    private static Key key(String key) {
+        return new Key(ChannelBuffers.wrappedBuffer(key.getBytes()));
+    }
+
+    @Test
+    public void testReplay() throws IOException {
+        for (WriteAheadLog.SyncPolicy syncPolicy : WriteAheadLog.SyncPolicy.values()) {
+            file.delete();
+
+            CacheImpl cache = open(syncPolicy);
+            cache.set(element("a", "1"));
+            cache.set(element("b", "2"));
+            cache.add(element("c", "3"));
+            cache.append(element("a", "x"));
+            cache.prepend(element("a", "y"));
+            cache.replace(element("b", "22"));
+            cache.delete(key("c"), 0);
+            long cas = cache.get(key("a"))[0].getCasUnique();
+            cache.close();
+
+            // twice over: once from the raw log, once from the compacted one
+            for (int i = 0; i < 2; i++) {
+                cache = open(syncPolicy);
+                assertEquals("items recovered", 2, cache.getCurrentItems());
+                assertEquals("appends recovered", ChannelBuffers.wrappedBuffer("y1x".getBytes()), cache.get(key("a"))[0].getData());
+                assertEquals("cas recovered", cas, cache.get(key("a"))[0].getCasUnique());
+                assertEquals("replace recovered", ChannelBuffers.wrappedBuffer("22".getBytes()), cache.get(key("b"))[0].getData());
+                assertNull("delete recovered", cache.get(key("c"))[0]);
+                cache.close();
+            }
+        }
+    }
+
+    @Test
+    public void testTornTail() throws IOException {
+        CacheImpl cache = open(WriteAheadLog.SyncPolicy.ALWAYS);
+        cache.set(element("a", "1"));
+        cache.set(element("b", "2"));
+        cache.close();
+
+        // the frame of a record cut short, whose length is garbage
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true));
+        out.writeInt(Integer.MAX_VALUE - 8);
+        out.writeInt(0);
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+
+        cache = open(WriteAheadLog.SyncPolicy.ALWAYS);
+        assertEquals("records before the torn one recovered", 2, cache.getCurrentItems());
+        assertEquals(ChannelBuffers.wrappedBuffer("2".getBytes()), cache.get(key("b"))[0].getData());
+
+        // and the log is usable again once compacted
+        cache.set(element("c", "3"));
+        cache.close();
+        cache = open(WriteAheadLog.SyncPolicy.ALWAYS);
+        assertEquals("later records recovered", 3, cache.getCurrentItems());
+        cache.close();
+    }
+
+    @Test
+    public void testRefusedMutationsNotLogged() throws IOException {
+        CacheImpl cache = open(WriteAheadLog.SyncPolicy.ALWAYS);
+        cache.set(element("a", "1"));
+        long cas = cache.get(key("a"))[0].getCasUnique();
+        cache.set(element("a", "2"));
+        assertEquals(Cache.StoreResponse.EXISTS, cache.cas(cas, element("a", "stale")));
+        assertEquals(Cache.StoreResponse.NOT_STORED, cache.add(element("a", "added")));
+        assertEquals(Cache.StoreResponse.NOT_STORED, cache.replace(element("missing", "replaced")));
+        cache.close();
+
+        cache = open(WriteAheadLog.SyncPolicy.ALWAYS);
+        assertEquals("only the applied mutations recovered", 1, cache.getCurrentItems());
+        assertEquals(ChannelBuffers.wrappedBuffer("2".getBytes()), cache.get(key("a"))[0].getData());
+        cache.close();
+    }
+
+    @Test
+    public void testFlushAndPrefix() throws IOException {
+        CacheStorage<Key, LocalCacheElement> storage = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.FIFO, 1000, AbstractCacheTest.MAX_BYTES);
+        WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.SyncPolicy.ALWAYS, 10);
+        log.addPrefix("session:");
+        CacheImpl cache = new CacheImpl(new LoggedCacheStorage(storage, log));
+        cache.recover(log);
+
+        cache.set(element("session:1", "old"));
+        cache.flush_all();
+        cache.set(element("session:2", "kept"));
+        cache.set(element("other", "not logged"));
+        cache.close();
+
+        cache = open(WriteAheadLog.SyncPolicy.ALWAYS);
+        assertEquals("only the covered item recovered", 1, cache.getCurrentItems());
+        assertEquals(ChannelBuffers.wrappedBuffer("kept".getBytes()), cache.get(key("session:2"))[0].getData());
+        cache.close();
+    }
+}